@@ -15,12 +15,15 @@
  */
 package org.fcrepo.auth.roles.basic;
 
-import java.security.Principal;
+import static java.util.Arrays.asList;
+
 import java.util.Set;
 
 import javax.jcr.Session;
 
 import org.fcrepo.auth.roles.common.AbstractRolesAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.AuthorizationMetrics;
+import org.fcrepo.auth.roles.common.RoleSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,27 +32,43 @@ import org.slf4j.LoggerFactory;
  */
 public class BasicRolesAuthorizationDelegate extends AbstractRolesAuthorizationDelegate {
 
-    public static final String EVERYONE_NAME = "EVERYONE";
+    private static final Logger LOGGER = LoggerFactory
+            .getLogger(BasicRolesAuthorizationDelegate.class);
+
+    private static final String READ_ACTION = "read";
+
+    private static final int READER = 1;
+
+    private static final int WRITER = 1 << 1;
+
+    private static final int ADMIN = 1 << 2;
 
     /**
-     * The security principal for every request, that represents the "EVERYONE" user.
+     * The interned ids of the reader, writer and admin roles, in the order of their bits.
      */
-    private static final Principal EVERYONE = new Principal() {
+    private static final String[] ROLES = {"reader", "writer", "admin"};
 
-        @Override
-        public String getName() {
-            return BasicRolesAuthorizationDelegate.EVERYONE_NAME;
-        }
+    private static final int[] ROLE_IDS = RoleSet.ids(ROLES);
 
-        @Override
-        public String toString() {
-            return getName();
-        }
+    static {
+        AuthorizationMetrics.meterRoles(asList(ROLES));
+    }
 
-    };
+    private static final int ACL_PATH = 1 << 1;
 
-    private static final Logger LOGGER = LoggerFactory
-            .getLogger(BasicRolesAuthorizationDelegate.class);
+    private static final int READ_ONLY = 1;
+
+    /**
+     * Grants, one bit per combination of role mask, ACL path and read-only request, indexed by
+     * {@code roles << 2 | aclPath << 1 | readOnly}.
+     */
+    private static final int GRANTS = compileGrants();
+
+    /**
+     * Combinations of role mask and read-only request whose grant depends on whether the path is an ACL node, indexed
+     * by {@code roles << 1 | readOnly}.
+     */
+    private static final int ACL_SENSITIVE = compileAclSensitive();
 
     /*
      * (non-Javadoc)
@@ -60,47 +79,85 @@ public class BasicRolesAuthorizationDelegate extends AbstractRolesAuthorizationD
     public boolean rolesHavePermission(final Session userSession,
             final String absPath,
             final String[] actions, final Set<String> roles) {
-        if (roles.isEmpty()) {
-            LOGGER.debug("A caller without content roles can do nothing in the repository.");
+        final int mask = roleMask(roles);
+        if (mask == 0) {
+            if (!roles.isEmpty()) {
+                LOGGER.error("There are roles in session that aren't recognized by this authorization delegate: {}",
+                        roles);
+            }
             return false;
         }
-        if (roles.contains("admin")) {
-            LOGGER.debug("Granting an admin role permission to perform any action.");
-            return true;
+        final int readOnly = actions.length == 1 && READ_ACTION.equals(actions[0]) ? READ_ONLY : 0;
+        int index = mask << 2 | readOnly;
+        if ((ACL_SENSITIVE >>> (mask << 1 | readOnly) & 1) != 0 && isAclPath(absPath)) {
+            index |= ACL_PATH;
         }
-        if (roles.contains("writer")) {
-            if (absPath.contains(AUTHZ_DETECTION)) {
-                if (actions.length == 1 && "read".equals(actions[0])) {
-                    LOGGER.debug("Granting reader role permission to perform a read action.");
-                    return true;
-                } else {
-                    LOGGER.debug("Denying writer role permission to perform an action on an ACL node.");
-                    return false;
-                }
-            } else {
-                LOGGER.debug("Granting writer role permission to perform any action on a non-ACL node.");
-                return true;
-            }
+        return (GRANTS >>> index & 1) != 0;
+    }
+
+    /**
+     * @param roles effective roles
+     * @return the recognized roles as a bit mask
+     */
+    private static int roleMask(final Set<String> roles) {
+        if (roles instanceof RoleSet) {
+            return ((RoleSet) roles).mask(ROLE_IDS);
         }
+        int mask = 0;
         if (roles.contains("reader")) {
-            if (actions.length == 1 && "read".equals(actions[0])) {
-                LOGGER.debug("Granting reader role permission to perform a read action.");
-                return true;
-            }
-            LOGGER.debug("Denying reader role permission to perform a non-read action.");
-            return false;
+            mask |= READER;
         }
-        LOGGER.error("There are roles in session that aren't recognized by this authorization delegate: {}",
-                roles);
-        return false;
+        if (roles.contains("writer")) {
+            mask |= WRITER;
+        }
+        if (roles.contains("admin")) {
+            mask |= ADMIN;
+        }
+        return mask;
     }
 
     /**
-     * Get the principal that represents the "EVERYONE" user.
+     * An admin may do anything. A writer may do anything except change ACL nodes and access control properties,
+     * which it may only read. A reader may only read.
+     *
+     * @param mask recognized roles
+     * @param aclPath true if the path is an ACL node
+     * @param readOnly true if the only requested action is read
+     * @return true if the roles grant the request
      */
-    @Override
-    public Principal getEveryonePrincipal() {
-        return EVERYONE;
+    private static boolean grants(final int mask, final boolean aclPath, final boolean readOnly) {
+        if ((mask & ADMIN) != 0) {
+            return true;
+        }
+        if ((mask & WRITER) != 0) {
+            return !aclPath || readOnly;
+        }
+        if ((mask & READER) != 0) {
+            return readOnly;
+        }
+        return false;
+    }
+
+    private static int compileGrants() {
+        int grants = 0;
+        for (int index = 0; index < 32; index++) {
+            if (grants(index >> 2, (index & ACL_PATH) != 0, (index & READ_ONLY) != 0)) {
+                grants |= 1 << index;
+            }
+        }
+        return grants;
+    }
+
+    private static int compileAclSensitive() {
+        int sensitive = 0;
+        for (int index = 0; index < 16; index++) {
+            final int mask = index >> 1;
+            final boolean readOnly = (index & READ_ONLY) != 0;
+            if (grants(mask, true, readOnly) != grants(mask, false, readOnly)) {
+                sensitive |= 1 << index;
+            }
+        }
+        return sensitive;
     }
 
 }
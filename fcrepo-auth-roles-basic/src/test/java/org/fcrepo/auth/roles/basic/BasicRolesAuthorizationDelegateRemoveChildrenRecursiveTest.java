@@ -16,6 +16,7 @@
 package org.fcrepo.auth.roles.basic;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyMap;
 import static java.util.Collections.singleton;
 import static java.util.Collections.singletonMap;
 import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_ALL_PRINCIPALS;
@@ -24,19 +25,33 @@ import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
 import static org.fcrepo.kernel.modeshape.testutilities.TestNodeIterator.nodeIterator;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.auth.roles.common.RemoveCheckMode;
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.modeshape.jcr.api.Workspace;
+import org.modeshape.jcr.api.index.IndexDefinition;
+import org.modeshape.jcr.api.index.IndexDefinition.IndexKind;
+import org.modeshape.jcr.api.index.IndexManager;
 import org.modeshape.jcr.value.Path;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
 
 import java.security.Principal;
 import java.util.List;
@@ -90,10 +105,43 @@ public class BasicRolesAuthorizationDelegateRemoveChildrenRecursiveTest {
     @Mock
     private Node noAclNode;
 
+    @Mock
+    private Node aclNode;
+
+    @Mock
+    private Node assignmentNode;
+
+    @Mock
+    private Workspace workspace;
+
+    @Mock
+    private QueryManager queryManager;
+
+    @Mock
+    private IndexManager indexManager;
+
+    @Mock
+    private IndexDefinition nodeTypeIndex;
+
+    @Mock
+    private Query query;
+
+    @Mock
+    private QueryResult queryResult;
+
     @Before
     public void setUp() throws RepositoryException {
         initMocks(this);
 
+        when(mockSession.getWorkspace()).thenReturn(workspace);
+        when(workspace.getQueryManager()).thenReturn(queryManager);
+        when(workspace.getIndexManager()).thenReturn(indexManager);
+        when(nodeTypeIndex.getKind()).thenReturn(IndexKind.NODE_TYPE);
+        when(nodeTypeIndex.getNodeTypeName()).thenReturn("nt:base");
+        when(indexManager.getIndexDefinitions()).thenReturn(singletonMap("nodeTypes", nodeTypeIndex));
+        when(queryManager.createQuery(anyString(), anyString())).thenReturn(query);
+        when(query.execute()).thenReturn(queryResult);
+
         authorizationDelegate = new BasicRolesAuthorizationDelegate();
         setField(authorizationDelegate, "accessRolesProvider",
                 accessRolesProvider);
@@ -108,6 +156,7 @@ public class BasicRolesAuthorizationDelegateRemoveChildrenRecursiveTest {
                 principal);
         when(mockSession.getAttribute(FEDORA_ALL_PRINCIPALS)).thenReturn(
                 allPrincipals);
+        when(accessRolesProvider.mayHaveRoles(allPrincipals)).thenReturn(true);
 
         // ACLs for paths and nodes
 
@@ -211,4 +260,148 @@ public class BasicRolesAuthorizationDelegateRemoveChildrenRecursiveTest {
                 authorizationDelegate.hasPermission(mockSession, parentPath, REMOVE_ACTION));
     }
 
+    @Test
+    public void shouldPermitForWritableAclDescendant() throws RepositoryException {
+        authorizationDelegate.setRemoveCheckMode(RemoveCheckMode.ACL_QUERY);
+        when(queryResult.getNodes()).thenReturn(nodeIterator(writableNode));
+
+        assertTrue("Should permit remove for writable node with writable ACL descendant",
+                authorizationDelegate.hasPermission(mockSession, parentPath, REMOVE_ACTION));
+        verify(parentNode, never()).getNodes();
+    }
+
+    @Test
+    public void shouldDenyForUnwritableAclDescendant() throws RepositoryException {
+        authorizationDelegate.setRemoveCheckMode(RemoveCheckMode.ACL_QUERY);
+        when(queryResult.getNodes()).thenReturn(nodeIterator(writableNode, readableNode));
+
+        assertFalse("Should deny remove for writable node with unwritable ACL descendant",
+                authorizationDelegate.hasPermission(mockSession, parentPath, REMOVE_ACTION));
+        verify(queryManager).createQuery(contains("ISDESCENDANTNODE(n, 'parent')"), eq(Query.JCR_SQL2));
+    }
+
+    @Test
+    public void shouldWalkDescendantsWithoutNodeTypeIndex() throws RepositoryException {
+        authorizationDelegate.setRemoveCheckMode(RemoveCheckMode.ACL_QUERY);
+        when(indexManager.getIndexDefinitions()).thenReturn(emptyMap());
+        when(parentNode.hasNodes()).thenReturn(true);
+        when(parentNode.getNodes()).thenReturn(nodeIterator(readableNode));
+
+        assertFalse("Should deny remove for writable node with unwritable child found by walking the subtree",
+                authorizationDelegate.hasPermission(mockSession, parentPath, REMOVE_ACTION));
+        verify(queryManager, never()).createQuery(anyString(), anyString());
+    }
+
+    @Test
+    public void shouldPermitWriterRemovingNodeWithOwnAclInEveryMode() throws RepositoryException {
+        withAclNode(parentNode, "parent");
+        when(parentNode.hasNodes()).thenReturn(true);
+        when(parentNode.getNodes()).thenAnswer(i -> nodeIterator(aclNode));
+        when(queryResult.getNodes()).thenAnswer(i -> nodeIterator());
+
+        for (final RemoveCheckMode mode : RemoveCheckMode.values()) {
+            assertTrue("Writer should remove a node together with its own ACL with " + mode,
+                    hasPermission(mode, parentPath));
+        }
+    }
+
+    @Test
+    public void shouldDenyWriterRemovingDescendantAclInEveryMode() throws RepositoryException {
+        withAclNode(writableNode, "writable");
+        when(parentNode.hasNodes()).thenReturn(true);
+        when(parentNode.getNodes()).thenAnswer(i -> nodeIterator(writableNode));
+        when(writableNode.hasNodes()).thenReturn(true);
+        when(writableNode.getNodes()).thenAnswer(i -> nodeIterator(aclNode));
+        when(queryResult.getNodes()).thenAnswer(i -> nodeIterator(writableNode));
+
+        for (final RemoveCheckMode mode : RemoveCheckMode.values()) {
+            assertFalse("Writer should not remove the ACL of a descendant with " + mode,
+                    hasPermission(mode, parentPath));
+        }
+    }
+
+    @Test
+    public void shouldPermitAdminRemovingAclInEveryMode() throws RepositoryException {
+        final Map<String, List<String>> adminAcl = singletonMap("user", asList("admin"));
+        when(accessRolesProvider.findRolesForPath(parentPath, mockSession)).thenReturn(adminAcl);
+        when(accessRolesProvider.getRoles(parentNode, false)).thenReturn(adminAcl);
+        when(accessRolesProvider.getRoles(writableNode, false)).thenReturn(adminAcl);
+        withAclNode(writableNode, "writable");
+        when(parentNode.hasNodes()).thenReturn(true);
+        when(parentNode.getNodes()).thenAnswer(i -> nodeIterator(writableNode));
+        when(writableNode.hasNodes()).thenReturn(true);
+        when(writableNode.getNodes()).thenAnswer(i -> nodeIterator(aclNode));
+        when(queryResult.getNodes()).thenAnswer(i -> nodeIterator(writableNode));
+
+        for (final RemoveCheckMode mode : RemoveCheckMode.values()) {
+            assertTrue("Admin should remove ACLs with " + mode, hasPermission(mode, parentPath));
+        }
+    }
+
+    /**
+     * Give a node an ACL node holding one assignment, with qualified paths as the repository returns them.
+     */
+    private void withAclNode(final Node node, final String path) throws RepositoryException {
+        when(node.hasNode("authz:rbacl")).thenReturn(true);
+        when(node.getNode("authz:rbacl")).thenReturn(aclNode);
+        when(aclNode.getName()).thenReturn("authz:rbacl");
+        when(aclNode.getPath()).thenReturn(path + "/authz:rbacl");
+        when(aclNode.getSession()).thenReturn(mockSession);
+        when(aclNode.hasNodes()).thenReturn(true);
+        when(aclNode.getNodes()).thenAnswer(i -> nodeIterator(assignmentNode));
+        when(assignmentNode.getPath()).thenReturn(path + "/authz:rbacl/authz:assignment");
+        when(assignmentNode.getSession()).thenReturn(mockSession);
+        when(assignmentNode.getNodes()).thenAnswer(i -> nodeIterator());
+        when(mockSession.getNode(path + "/authz:rbacl")).thenReturn(aclNode);
+        when(mockSession.getNode(path + "/authz:rbacl/authz:assignment")).thenReturn(assignmentNode);
+        when(mockSession.getNamespaceURI("authz")).thenReturn("http://fedora.info/definitions/v4/authorization#");
+        when(accessRolesProvider.getRoles(aclNode, false)).thenReturn(null);
+        when(accessRolesProvider.getRoles(assignmentNode, false)).thenReturn(null);
+    }
+
+    private boolean hasPermission(final RemoveCheckMode mode, final Path path) {
+        authorizationDelegate.setRemoveCheckMode(mode);
+        authorizationDelegate.setRemoveCheckParallelism(2);
+        try {
+            return authorizationDelegate.hasPermission(mockSession, path, REMOVE_ACTION);
+        } finally {
+            authorizationDelegate.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldPermitForWritableChildInParallel() throws RepositoryException {
+        authorizationDelegate.setRemoveCheckMode(RemoveCheckMode.PARALLEL);
+        authorizationDelegate.setRemoveCheckParallelism(2);
+        when(parentNode.hasNodes()).thenReturn(true);
+        when(parentNode.getNodes()).thenReturn(nodeIterator(writableNode, noAclNode));
+
+        try {
+            assertTrue("Should permit remove for writable node with writable children",
+                    authorizationDelegate.hasPermission(mockSession, parentPath, REMOVE_ACTION));
+        } finally {
+            authorizationDelegate.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldDenyWithRecursionInParallel() throws RepositoryException {
+        authorizationDelegate.setRemoveCheckMode(RemoveCheckMode.PARALLEL);
+        authorizationDelegate.setRemoveCheckParallelism(2);
+        when(parentNode.hasNodes()).thenReturn(true);
+        when(parentNode.getNodes()).thenReturn(nodeIterator(writableNode));
+
+        when(writableNode.hasNodes()).thenReturn(true);
+        when(writableNode.getNodes()).thenReturn(nodeIterator(readableNode));
+
+        try {
+            assertFalse("Should deny remove for a writable node which has an unwritable grandchild",
+                    authorizationDelegate.hasPermission(mockSession, parentPath, REMOVE_ACTION));
+        } finally {
+            authorizationDelegate.shutdown();
+        }
+        // worker sessions are released on shutdown
+        verify(mockSession, atLeastOnce()).logout();
+    }
+
 }
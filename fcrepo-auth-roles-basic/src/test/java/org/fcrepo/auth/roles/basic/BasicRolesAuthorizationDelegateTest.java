@@ -21,8 +21,16 @@ import static java.util.Collections.singletonMap;
 import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_ALL_PRINCIPALS;
 import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_USER_PRINCIPAL;
 import static org.fcrepo.http.commons.test.util.TestHelpers.setField;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -39,6 +47,7 @@ import javax.jcr.Session;
 
 import java.security.Principal;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -104,6 +113,7 @@ public class BasicRolesAuthorizationDelegateTest {
                 principal);
         when(mockSession.getAttribute(FEDORA_ALL_PRINCIPALS)).thenReturn(
                 allPrincipals);
+        when(accessRolesProvider.mayHaveRoles(allPrincipals)).thenReturn(true);
 
         // ACLs for paths
 
@@ -204,4 +214,202 @@ public class BasicRolesAuthorizationDelegateTest {
                 .hasPermission(mockSession, authzPath, WRITE_ACTION));
     }
 
+    @Test
+    public void testDenyWriterSettingAclProperties() throws RepositoryException {
+        final String[] setProperty = {"set_property"};
+        final Set<String> writer = singleton("writer");
+        for (final String property : asList("assignments", "revision")) {
+            final Path propertyPath = mock(Path.class);
+            when(propertyPath.toString()).thenReturn("/blah/{" + JcrName.NS_URI + "}" + property);
+            when(accessRolesProvider.findRolesForPath(propertyPath, mockSession))
+                    .thenReturn(singletonMap("user", asList("writer")));
+
+            assertFalse("Should deny a writer setting authz:" + property,
+                    authorizationDelegate.hasPermission(mockSession, propertyPath, setProperty));
+            assertFalse("Should deny a writer setting authz:" + property + " by its qualified name",
+                    authorizationDelegate.rolesHavePermission(mockSession, "/blah/authz:" + property, setProperty,
+                            writer));
+            assertTrue("Should permit a writer reading authz:" + property,
+                    authorizationDelegate.hasPermission(mockSession, propertyPath, READ_ACTION));
+            assertTrue("Should permit an admin setting authz:" + property,
+                    authorizationDelegate.rolesHavePermission(mockSession, propertyPath.toString(), setProperty,
+                            singleton("admin")));
+        }
+        assertTrue("Should permit a writer setting other properties",
+                authorizationDelegate.rolesHavePermission(mockSession,
+                        "/blah/{http://purl.org/dc/elements/1.1/}title", setProperty, writer));
+    }
+
+    @Test
+    public void testDecisionCacheSharesEvaluation() throws RepositoryException {
+        authorizationDelegate.setDecisionCacheEnabled(true);
+
+        assertTrue("Should permit read for path with reader role",
+                authorizationDelegate.hasPermission(mockSession, readablePath, READ_ACTION));
+        assertTrue("Should permit read for path with reader role from the decision cache",
+                authorizationDelegate.hasPermission(mockSession, readablePath, READ_ACTION));
+        assertFalse("Should deny write for path with reader role",
+                authorizationDelegate.hasPermission(mockSession, readablePath, WRITE_ACTION));
+
+        assertEquals("One check should be answered by the decision cache", 1,
+                authorizationDelegate.getDecisionCacheHits());
+        assertEquals("Two checks should be evaluated", 2, authorizationDelegate.getDecisionCacheMisses());
+        verify(accessRolesProvider, times(2)).findRolesForPath(readablePath, mockSession);
+    }
+
+    @Test
+    public void testDecisionCacheMissesChangedAcl() throws RepositoryException {
+        authorizationDelegate.setDecisionCacheEnabled(true);
+        when(accessRolesProvider.findAclPathForPath(readablePath, mockSession)).thenReturn("/readable");
+        when(accessRolesProvider.getRolesVersion()).thenReturn(1L);
+
+        assertTrue("Should permit read for path with reader role",
+                authorizationDelegate.hasPermission(mockSession, readablePath, READ_ACTION));
+
+        when(accessRolesProvider.findRolesForPath(readablePath, mockSession))
+                .thenReturn(singletonMap("user", Collections.<String>emptyList()));
+        when(accessRolesProvider.getRolesVersion()).thenReturn(2L);
+
+        assertFalse("Should deny read once the reader role is removed from the same ACL",
+                authorizationDelegate.hasPermission(mockSession, readablePath, READ_ACTION));
+        assertEquals("No check should be answered by the decision cache", 0,
+                authorizationDelegate.getDecisionCacheHits());
+    }
+
+    @Test
+    public void testDecisionCacheUnusedWithoutVersion() throws RepositoryException {
+        authorizationDelegate.setDecisionCacheEnabled(true);
+        when(accessRolesProvider.getRolesVersion()).thenReturn(-1L);
+
+        assertTrue("Should permit read for path with reader role",
+                authorizationDelegate.hasPermission(mockSession, readablePath, READ_ACTION));
+        assertTrue("Should permit read for path with reader role",
+                authorizationDelegate.hasPermission(mockSession, readablePath, READ_ACTION));
+
+        assertEquals("No check should be answered by the decision cache", 0,
+                authorizationDelegate.getDecisionCacheHits());
+        verify(accessRolesProvider, times(2)).findRolesForPath(readablePath, mockSession);
+    }
+
+    @Test
+    public void testBatchSharesGoverningAcl() throws RepositoryException {
+        final Path siblingPath = mock(Path.class);
+        when(accessRolesProvider.findAclPathForPath(readablePath, mockSession)).thenReturn("/readable");
+        when(accessRolesProvider.findAclPathForPath(siblingPath, mockSession)).thenReturn("/readable");
+        when(accessRolesProvider.findAclPathForPath(writablePath, mockSession)).thenReturn("/writable");
+        when(accessRolesProvider.findRolesForAclPath("/readable", mockSession))
+                .thenReturn(singletonMap("user", asList("reader")));
+        when(accessRolesProvider.findRolesForAclPath("/writable", mockSession))
+                .thenReturn(singletonMap("user", asList("writer")));
+
+        final List<Map<String, Boolean>> decisions = authorizationDelegate.hasPermissions(mockSession,
+                asList(readablePath, siblingPath, writablePath), asList("read", "write"));
+
+        assertEquals("Should decide every path", 3, decisions.size());
+        assertTrue("Should permit read for path with reader role", decisions.get(0).get("read"));
+        assertFalse("Should deny write for path with reader role", decisions.get(0).get("write"));
+        assertTrue("Should permit read for path governed by the same ACL", decisions.get(1).get("read"));
+        assertFalse("Should deny write for path governed by the same ACL", decisions.get(1).get("write"));
+        assertTrue("Should permit write for path with writer role", decisions.get(2).get("write"));
+        verify(accessRolesProvider, times(1)).findRolesForAclPath("/readable", mockSession);
+        verify(accessRolesProvider, never()).findRolesForPath(any(Path.class), eq(mockSession));
+    }
+
+    @Test
+    public void testBatchFallsBackWhenAclLost() throws RepositoryException {
+        when(accessRolesProvider.findAclPathForPath(readablePath, mockSession)).thenReturn("/readable");
+
+        assertTrue("Should permit read for path with reader role once its ACL is looked up again",
+                authorizationDelegate.hasPermissions(mockSession, asList(readablePath), asList("read")).get(0)
+                        .get("read"));
+        verify(accessRolesProvider).findRolesForAclPath("/readable", mockSession);
+        verify(accessRolesProvider).findRolesForPath(readablePath, mockSession);
+    }
+
+    @Test
+    public void testBatchWithoutAcl() throws RepositoryException {
+        final Path siblingPath = mock(Path.class);
+        when(accessRolesProvider.findRolesForPath(siblingPath, mockSession))
+                .thenReturn(singletonMap("user", asList("admin")));
+
+        final List<Map<String, Boolean>> decisions = authorizationDelegate.hasPermissions(mockSession,
+                asList(unreadablePath, siblingPath), asList("read"));
+
+        assertFalse("Should deny read for path governed by no ACL", decisions.get(0).get("read"));
+        assertFalse("Should share the roles of paths governed by no ACL", decisions.get(1).get("read"));
+        verify(accessRolesProvider, never()).findRolesForPath(siblingPath, mockSession);
+        verify(accessRolesProvider, never()).findRolesForAclPath(anyString(), eq(mockSession));
+    }
+
+    @Test
+    public void testSuperuserSkipsLookup() throws RepositoryException {
+        authorizationDelegate.setSuperuserPrincipals(singleton("user"));
+
+        assertTrue("Should permit write for a superuser on a path without roles",
+                authorizationDelegate.hasPermission(mockSession, unreadablePath, WRITE_ACTION));
+        assertTrue("Should permit every action for a superuser in a batch", authorizationDelegate.hasPermissions(
+                mockSession, asList(unreadablePath), asList("read", "remove")).get(0).get("remove"));
+        verify(accessRolesProvider, never()).findRolesForPath(unreadablePath, mockSession);
+    }
+
+    @Test
+    public void testUnassignedPrincipalsSkipLookup() throws RepositoryException {
+        when(accessRolesProvider.mayHaveRoles(allPrincipals)).thenReturn(false);
+
+        assertFalse("Should deny read for principals assigned no roles",
+                authorizationDelegate.hasPermission(mockSession, adminablePath, READ_ACTION));
+        assertFalse("Should deny read in a batch for principals assigned no roles",
+                authorizationDelegate.hasPermissions(mockSession, asList(adminablePath), asList("read")).get(0)
+                        .get("read"));
+        verify(accessRolesProvider, never()).findRolesForPath(adminablePath, mockSession);
+        verify(accessRolesProvider, never()).findAclPathForPath(adminablePath, mockSession);
+    }
+
+    @Test
+    public void testBatchWithoutPrincipal() {
+        when(mockSession.getAttribute(FEDORA_USER_PRINCIPAL)).thenReturn(null);
+
+        final List<Map<String, Boolean>> decisions = authorizationDelegate.hasPermissions(mockSession,
+                asList(adminablePath), asList("read"));
+
+        assertFalse("Should deny every action without a user principal", decisions.get(0).get("read"));
+    }
+
+    @Test
+    public void testDecisionTableMatchesRoleSemantics() {
+        final String[] roleNames = {"reader", "writer", "admin", "something_else"};
+        final String[][] actionSets = {READ_ACTION, WRITE_ACTION, {"read", "write"}, {"remove"}};
+        final String[] paths = {"/blah", "/blah/{" + JcrName.NS_URI + "}rbacl"};
+
+        for (int subset = 0; subset < 1 << roleNames.length; subset++) {
+            final Set<String> roles = new HashSet<>();
+            for (int i = 0; i < roleNames.length; i++) {
+                if ((subset & 1 << i) != 0) {
+                    roles.add(roleNames[i]);
+                }
+            }
+            for (final String[] actions : actionSets) {
+                for (final String path : paths) {
+                    assertEquals("Decision for roles " + roles + ", actions " + asList(actions) + ", path " + path,
+                            expectedPermission(path, actions, roles),
+                            authorizationDelegate.rolesHavePermission(mockSession, path, actions, roles));
+                }
+            }
+        }
+    }
+
+    private static boolean expectedPermission(final String absPath, final String[] actions, final Set<String> roles) {
+        final boolean readOnly = actions.length == 1 && "read".equals(actions[0]);
+        if (roles.contains("admin")) {
+            return true;
+        }
+        if (roles.contains("writer")) {
+            return !absPath.contains("/{" + JcrName.NS_URI + "}") || readOnly;
+        }
+        if (roles.contains("reader")) {
+            return readOnly;
+        }
+        return false;
+    }
+
 }
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.basic.integration;
+
+import static javax.ws.rs.core.Response.Status.FORBIDDEN;
+import static javax.ws.rs.core.Response.Status.NO_CONTENT;
+import static javax.ws.rs.core.Response.Status.OK;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPatch;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.fcrepo.auth.roles.common.integration.RolesFadTestObjectBean;
+import org.junit.Test;
+
+/**
+ * Verifies that the access control properties kept on a resource carrying roles, authz:assignments and
+ * authz:revision, survive a round trip of its RDF and cannot be changed through it by a writer.
+ *
+ * @author whikloj
+ */
+public class BasicRolesAclPropertiesIT extends AbstractBasicRolesIT {
+
+    private final static String testObj = getRandomPid();
+
+    private final static List<RolesFadTestObjectBean> acl_test_objs = defineAclTestObjects();
+
+    private static List<RolesFadTestObjectBean> defineAclTestObjects() {
+        final List<RolesFadTestObjectBean> objs = new ArrayList<>();
+        final RolesFadTestObjectBean obj = new RolesFadTestObjectBean();
+        obj.setPath(testObj);
+        obj.addACL("examplewriter", "writer");
+        obj.addACL("exampleadmin", "admin");
+        objs.add(obj);
+        return objs;
+    }
+
+    @Override
+    protected List<RolesFadTestObjectBean> getTestObjs() {
+        return acl_test_objs;
+    }
+
+    @Test
+    public void testWriterRdfRoundTripKeepsRoles() throws IOException {
+        final String roles = getRolesAsAdmin();
+
+        final HttpGet get = getObjectMethod(testObj);
+        setAuth(get, "examplewriter");
+        get.setHeader("Accept", "text/turtle");
+        final HttpResponse response = execute(get);
+        assertEquals("Writer cannot read the object!", OK.getStatusCode(), response.getStatusLine().getStatusCode());
+        final String rdf = EntityUtils.toString(response.getEntity());
+
+        final HttpPut put = putObjMethod(testObj);
+        setAuth(put, "examplewriter");
+        put.setEntity(new StringEntity(rdf, "UTF-8"));
+        put.setHeader("Content-Type", "text/turtle");
+        assertEquals("Writer cannot put back the RDF of an object carrying roles!", NO_CONTENT.getStatusCode(),
+                getStatus(put));
+
+        assertEquals("Putting back the RDF should leave the roles unchanged", roles, getRolesAsAdmin());
+    }
+
+    @Test
+    public void testWriterCannotSetAssignments() throws IOException {
+        assertWriterCannotInsert(JcrName.assignments.getExpanded(), "examplewriter=admin");
+    }
+
+    @Test
+    public void testWriterCannotSetRevision() throws IOException {
+        assertWriterCannotInsert(JcrName.revision.getExpanded(), "forged");
+    }
+
+    /**
+     * Assert that a writer inserting an access control property with SPARQL Update is refused and leaves the roles
+     * unchanged.
+     *
+     * @param property the expanded name of the property
+     * @param value the value to insert
+     */
+    private void assertWriterCannotInsert(final String property, final String value) throws IOException {
+        final String roles = getRolesAsAdmin();
+        final String uri = property.substring(1).replace("}", "");
+
+        final HttpPatch patch = new HttpPatch(serverAddress + testObj);
+        setAuth(patch, "examplewriter");
+        patch.setHeader("Content-Type", "application/sparql-update");
+        patch.setEntity(new StringEntity("INSERT { <> <" + uri + "> \"" + value + "\" } WHERE { }", "UTF-8"));
+        assertEquals("Writer should not be allowed to set " + uri + "!", FORBIDDEN.getStatusCode(),
+                getStatus(patch));
+
+        assertEquals("A refused change should leave the roles unchanged", roles, getRolesAsAdmin());
+    }
+
+    private String getRolesAsAdmin() throws IOException {
+        final HttpGet get = getRolesMethod(testObj);
+        setAuth(get, "fedoraAdmin");
+        final HttpResponse response = execute(get);
+        assertEquals(OK.getStatusCode(), response.getStatusLine().getStatusCode());
+        return EntityUtils.toString(response.getEntity());
+    }
+}
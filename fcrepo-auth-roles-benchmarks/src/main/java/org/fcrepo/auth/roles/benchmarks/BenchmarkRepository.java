@@ -0,0 +1,242 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks;
+
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_ALL_PRINCIPALS;
+import static org.fcrepo.auth.common.FedoraAuthorizationDelegate.FEDORA_USER_PRINCIPAL;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.basic.BasicRolesAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.AccessRolesProvider;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * An in-process repository configured like the integration tests, with helpers to build content trees carrying
+ * access roles and to impersonate users holding a given number of principals.
+ *
+ * @author whikloj
+ */
+public class BenchmarkRepository implements AutoCloseable {
+
+    /**
+     * The principal of the benchmarked user.
+     */
+    public static final Principal USER = principal("benchmark-user");
+
+    private static final String NODE_TYPE = "nt:unstructured";
+
+    private final ClassPathXmlApplicationContext context;
+
+    private final SessionFactory sessionFactory;
+
+    private final AccessRolesProvider accessRolesProvider;
+
+    private final BasicRolesAuthorizationDelegate delegate;
+
+    private final PathFactory pathFactory = new ExecutionContext().getValueFactories().getPathFactory();
+
+    private final Session session;
+
+    private final Node root;
+
+    private final List<Node> assigned = new ArrayList<>();
+
+    /**
+     * Start the repository and create an empty root node for the benchmark content.
+     *
+     * @throws RepositoryException if the root node could not be created
+     */
+    public BenchmarkRepository() throws RepositoryException {
+        context = new ClassPathXmlApplicationContext("/benchmark-context.xml");
+        sessionFactory = context.getBean(SessionFactory.class);
+        accessRolesProvider = context.getBean(AccessRolesProvider.class);
+        delegate = context.getBean(BasicRolesAuthorizationDelegate.class);
+        session = sessionFactory.getInternalSession();
+        root = session.getRootNode().addNode("benchmark-" + UUID.randomUUID(), NODE_TYPE);
+        session.save();
+    }
+
+    /**
+     * @return the node under which all benchmark content is created
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * @param parent the parent node
+     * @param name the name of the child
+     * @return the new node, not yet saved
+     * @throws RepositoryException if the node could not be added
+     */
+    public Node addNode(final Node parent, final String name) throws RepositoryException {
+        return parent.addNode(name, NODE_TYPE);
+    }
+
+    /**
+     * Assign roles on a node.
+     *
+     * @param node the node
+     * @param roles roles keyed by principal name
+     * @throws RepositoryException if the roles could not be assigned
+     */
+    public void assignRoles(final Node node, final Map<String, Set<String>> roles) throws RepositoryException {
+        accessRolesProvider.postRoles(node, roles);
+        assigned.add(node);
+    }
+
+    /**
+     * Persist pending changes.
+     *
+     * @throws RepositoryException if the changes could not be saved
+     */
+    public void save() throws RepositoryException {
+        session.save();
+        for (final Node node : assigned) {
+            accessRolesProvider.rolesSaved(node);
+        }
+        assigned.clear();
+    }
+
+    /**
+     * @param node a node
+     * @return the path of the node in the form passed to authorization delegates
+     * @throws RepositoryException if the path could not be read
+     */
+    public Path pathOf(final Node node) throws RepositoryException {
+        return pathFactory.create(node.getPath());
+    }
+
+    /**
+     * Build the principals of a request: the user, "EVERYONE" and as many groups as needed to reach the given count.
+     *
+     * @param count total number of principals, at least two
+     * @return the principals
+     */
+    public Set<Principal> principals(final int count) {
+        final Set<Principal> principals = new HashSet<>();
+        principals.add(USER);
+        principals.add(delegate.getEveryonePrincipal());
+        for (int i = 0; principals.size() < count; i++) {
+            principals.add(principal("group-" + i));
+        }
+        return principals;
+    }
+
+    /**
+     * Open a session that carries the principals a servlet container would attach to an authenticated request.
+     *
+     * @param principals the principals of the request
+     * @return the user session
+     */
+    public Session userSession(final Set<Principal> principals) {
+        final Session internal = sessionFactory.getInternalSession();
+        final Map<String, Object> attributes = new HashMap<>();
+        attributes.put(FEDORA_USER_PRINCIPAL, USER);
+        attributes.put(FEDORA_ALL_PRINCIPALS, principals);
+        return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] {Session.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("getAttribute")) {
+                        return attributes.get(args[0]);
+                    }
+                    try {
+                        return method.invoke(internal, args);
+                    } catch (final InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    /**
+     * @return the access roles provider
+     */
+    public AccessRolesProvider getAccessRolesProvider() {
+        return accessRolesProvider;
+    }
+
+    /**
+     * @return the authorization delegate
+     */
+    public BasicRolesAuthorizationDelegate getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @return the session factory
+     */
+    public SessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    /**
+     * Remove the benchmark content and stop the repository.
+     *
+     * @throws RepositoryException if the content could not be removed
+     */
+    @Override
+    public void close() throws RepositoryException {
+        try {
+            root.remove();
+            session.save();
+        } finally {
+            session.logout();
+            context.close();
+        }
+    }
+
+    private static Principal principal(final String name) {
+        return new Principal() {
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public boolean equals(final Object o) {
+                return o instanceof Principal && name.equals(((Principal) o).getName());
+            }
+
+            @Override
+            public int hashCode() {
+                return name.hashCode();
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks;
+
+import static java.util.Collections.singleton;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AbstractRolesAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.RoleAssignments;
+import org.modeshape.jcr.value.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the steps of a single permission check on the deepest node of a chain of nodes: the whole check, the
+ * lookup of the governing access roles, the resolution of the user's roles and the evaluation of those roles.
+ *
+ * @author whikloj
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PermissionBenchmark {
+
+    private static final String[] READ = {"read"};
+
+    private static final String[] WRITE = {"write"};
+
+    /**
+     * Number of nodes between the benchmark root and the checked node.
+     */
+    @Param({"4", "16", "64"})
+    public int depth;
+
+    /**
+     * Fraction of the nodes on the way to the checked node that carry their own access roles. The benchmark root
+     * always carries some.
+     */
+    @Param({"0.0", "0.25", "1.0"})
+    public double aclDensity;
+
+    /**
+     * Number of principals held by the user.
+     */
+    @Param({"2", "16", "128"})
+    public int principals;
+
+    private BenchmarkRepository repository;
+
+    private AbstractRolesAuthorizationDelegate delegate;
+
+    private Session userSession;
+
+    private Session internalSession;
+
+    private Path path;
+
+    private Set<Principal> allPrincipals;
+
+    private Map<String, List<String>> acl;
+
+    private Map<String, List<String>> internedAcl;
+
+    private Set<String> roles;
+
+    /**
+     * Build the chain of nodes and the user's session.
+     *
+     * @throws RepositoryException if the content could not be created
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws RepositoryException {
+        repository = new BenchmarkRepository();
+        delegate = repository.getDelegate();
+        allPrincipals = repository.principals(principals);
+
+        Node node = repository.getRoot();
+        repository.assignRoles(node, roles("writer"));
+        final int aclEvery = aclDensity > 0 ? (int) Math.round(1 / aclDensity) : 0;
+        for (int level = 1; level <= depth; level++) {
+            node = repository.addNode(node, "n" + level);
+            if (aclEvery > 0 && level % aclEvery == 0) {
+                repository.assignRoles(node, roles(level % 2 == 0 ? "writer" : "reader"));
+            }
+        }
+        repository.save();
+
+        path = repository.pathOf(node);
+        userSession = repository.userSession(allPrincipals);
+        internalSession = repository.getSessionFactory().getInternalSession();
+        acl = repository.getAccessRolesProvider().findRolesForPath(path, internalSession);
+        internedAcl = RoleAssignments.of(acl);
+        roles = AbstractRolesAuthorizationDelegate.resolveUserRoles(acl, allPrincipals);
+    }
+
+    private static Map<String, Set<String>> roles(final String role) {
+        final Map<String, Set<String>> assignments = new HashMap<>();
+        assignments.put(BenchmarkRepository.USER.getName(), singleton(role));
+        assignments.put("group-0", singleton("reader"));
+        return assignments;
+    }
+
+    /**
+     * Remove the content and stop the repository.
+     *
+     * @throws RepositoryException if the content could not be removed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws RepositoryException {
+        userSession.logout();
+        internalSession.logout();
+        repository.close();
+    }
+
+    /**
+     * @return the decision
+     */
+    @Benchmark
+    public boolean hasPermissionRead() {
+        return delegate.hasPermission(userSession, path, READ);
+    }
+
+    /**
+     * @return the decision
+     */
+    @Benchmark
+    public boolean hasPermissionWrite() {
+        return delegate.hasPermission(userSession, path, WRITE);
+    }
+
+    /**
+     * @return the governing access roles
+     * @throws RepositoryException if the roles could not be read
+     */
+    @Benchmark
+    public Map<String, List<String>> findRolesForPath() throws RepositoryException {
+        return repository.getAccessRolesProvider().findRolesForPath(path, internalSession);
+    }
+
+    /**
+     * @return the user's roles
+     */
+    @Benchmark
+    public Set<String> resolveUserRoles() {
+        return AbstractRolesAuthorizationDelegate.resolveUserRoles(acl, allPrincipals);
+    }
+
+    /**
+     * @return the user's roles, resolved by principal id
+     */
+    @Benchmark
+    public Set<String> resolveInternedUserRoles() {
+        return AbstractRolesAuthorizationDelegate.resolveUserRoles(internedAcl, allPrincipals);
+    }
+
+    /**
+     * @return the decision
+     */
+    @Benchmark
+    public boolean rolesHavePermission() {
+        return delegate.rolesHavePermission(userSession, path.toString(), WRITE, roles);
+    }
+}
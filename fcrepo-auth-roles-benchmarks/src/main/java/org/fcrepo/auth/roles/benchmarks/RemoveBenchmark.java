@@ -0,0 +1,139 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.benchmarks;
+
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AbstractRolesAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.RemoveCheckMode;
+import org.modeshape.jcr.value.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the check that a node and all of its children may be removed. The node is never actually removed. The user
+ * is an admin of the node and of every child carrying access roles, so that every mode walks the whole tree, ACL
+ * nodes included, and permits the remove.
+ *
+ * @author whikloj
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RemoveBenchmark {
+
+    private static final String[] REMOVE = {"remove"};
+
+    /**
+     * Number of children of the removed node.
+     */
+    @Param({"10", "100", "1000"})
+    public int children;
+
+    /**
+     * Fraction of the children that carry their own access roles.
+     */
+    @Param({"0.0", "0.1", "1.0"})
+    public double aclDensity;
+
+    /**
+     * How the delegate checks the children.
+     */
+    @Param({"RECURSIVE", "ACL_QUERY", "PARALLEL"})
+    public RemoveCheckMode removeCheckMode;
+
+    private BenchmarkRepository repository;
+
+    private AbstractRolesAuthorizationDelegate delegate;
+
+    private Session userSession;
+
+    private Path path;
+
+    /**
+     * Build the node and its children, and check that every mode permits the remove.
+     *
+     * @throws RepositoryException if the content could not be created
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws RepositoryException {
+        repository = new BenchmarkRepository();
+        delegate = repository.getDelegate();
+
+        final Node parent = repository.getRoot();
+        repository.assignRoles(parent, singletonMap(BenchmarkRepository.USER.getName(), singleton("admin")));
+        final int aclEvery = aclDensity > 0 ? (int) Math.round(1 / aclDensity) : 0;
+        for (int i = 0; i < children; i++) {
+            final Node child = repository.addNode(parent, "c" + i);
+            if (aclEvery > 0 && i % aclEvery == 0) {
+                repository.assignRoles(child, singletonMap(BenchmarkRepository.USER.getName(), singleton("admin")));
+            }
+        }
+        repository.save();
+
+        path = repository.pathOf(parent);
+        userSession = repository.userSession(repository.principals(2));
+
+        // modes reaching different decisions would not be doing the same work
+        for (final RemoveCheckMode mode : RemoveCheckMode.values()) {
+            delegate.setRemoveCheckMode(mode);
+            if (!delegate.hasPermission(userSession, path, REMOVE)) {
+                throw new IllegalStateException("Remove check mode " + mode + " denies the remove");
+            }
+        }
+        delegate.setRemoveCheckMode(removeCheckMode);
+    }
+
+    /**
+     * Stop the remove check workers, remove the content and stop the repository.
+     *
+     * @throws RepositoryException if the content could not be removed
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws RepositoryException {
+        userSession.logout();
+        delegate.shutdown();
+        repository.close();
+    }
+
+    /**
+     * @return the decision
+     */
+    @Benchmark
+    public boolean hasPermissionRemove() {
+        return delegate.hasPermission(userSession, path, REMOVE);
+    }
+}
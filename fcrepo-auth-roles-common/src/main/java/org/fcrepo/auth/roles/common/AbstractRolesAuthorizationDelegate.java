@@ -15,58 +15,144 @@
  */
 package org.fcrepo.auth.roles.common;
 
+import static java.util.Collections.emptySet;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+
 import java.security.Principal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PreDestroy;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
 
 import org.fcrepo.auth.common.FedoraAuthorizationDelegate;
 import org.fcrepo.auth.common.FedoraUserSecurityContext;
 import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 
+import org.modeshape.jcr.api.index.IndexDefinition;
+import org.modeshape.jcr.api.index.IndexDefinition.IndexKind;
 import org.modeshape.jcr.value.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import com.codahale.metrics.Timer;
+
 /**
  * Policy enforcement point for roles-based authentication
  * @author Gregory Jansen
  */
 public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthorizationDelegate {
 
+    public static final String EVERYONE_NAME = "EVERYONE";
+
+    /**
+     * The security principal for every request, that represents the "EVERYONE" user.
+     */
+    private static final Principal EVERYONE = new Principal() {
+
+        @Override
+        public String getName() {
+            return AbstractRolesAuthorizationDelegate.EVERYONE_NAME;
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+
+    };
+
     private static final Logger LOGGER = LoggerFactory
             .getLogger(AbstractRolesAuthorizationDelegate.class);
 
     protected static final String AUTHZ_DETECTION = "/{" +
             Constants.JcrName.NS_URI + "}";
 
+    protected static final String AUTHZ_PREFIX_DETECTION = "/" + Constants.JcrName.NS_PREFIX + ":";
+
     private static final String[] REMOVE_ACTIONS = {"remove"};
 
+    private static final String NT_BASE = "nt:base";
+
+    /**
+     * Stands in for the governing ACL of a path in {@link #hasPermissions(Session, List, List)} when no node carries
+     * one. Expanded paths start with a slash, so it is never the path of an ACL.
+     */
+    private static final String NO_ACL = "";
+
+    /**
+     * Stands in for the governing ACL of every path in {@link #hasPermissions(Session, List, List)} when no ACL
+     * assigns the principals any role.
+     */
+    private static final String UNASSIGNED = "-";
+
     @Autowired
     private AccessRolesProvider accessRolesProvider = null;
 
     @Autowired
     private SessionFactory sessionFactory = null;
 
+    private long decisionCacheExpire = 10;
+
+    private DecisionCache decisionCache = null;
+
+    private RemoveCheckMode removeCheckMode = RemoveCheckMode.RECURSIVE;
+
+    private volatile Boolean aclQueryIndexed = null;
+
+    private int removeCheckParallelism = Runtime.getRuntime().availableProcessors();
+
+    private ForkJoinPool removeCheckPool = null;
+
+    private volatile AuthorizationSessions authorizationSessions = null;
+
+    private Set<String> superuserPrincipals = emptySet();
+
     /**
-     * Gather effectives roles
+     * Gather effectives roles.
      *
      * @param acl access control list
      * @param principals effective principals
-     * @return set of effective content roles
+     * @return set of effective content roles, which the caller may modify
      */
     public static Set<String>
     resolveUserRoles(final Map<String, List<String>> acl,
                     final Set<Principal> principals) {
+        return new HashSet<>(resolveRoles(acl, principals));
+    }
+
+    /**
+     * Gather effectives roles without copying them. An ACL held as {@link RoleAssignments} is matched against the
+     * interned ids of the principals, normalized once per principal set, and answers a set shared by every principal
+     * set holding the same roles.
+     *
+     * @param acl access control list
+     * @param principals effective principals
+     * @return set of effective content roles, which must not be modified
+     */
+    static Set<String> resolveRoles(final Map<String, List<String>> acl, final Set<Principal> principals) {
+        if (acl instanceof RoleAssignments) {
+            return ((RoleAssignments) acl).resolve(PrincipalIds.normalize(principals));
+        }
         final Set<String> roles = new HashSet<>();
         for (final Principal p : principals) {
             final List<String> matchedRoles = acl.get(p.getName());
@@ -81,15 +167,16 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
     @Override
     public boolean hasPermission(final Session session, final Path absPath, final String[] actions) {
         LOGGER.debug("Does user have permission for actions: {}, on path: {}", actions, absPath);
-        final boolean permission = doHasPermission(session, absPath, actions);
+        final boolean permission;
+        try (final Timer.Context context = AuthorizationMetrics.permissionTimer(actions).time()) {
+            permission = doHasPermission(session, absPath, actions);
+        }
 
         LOGGER.debug("Permission for actions: {}, on: {} = {}", actions, absPath, permission);
         return permission;
     }
 
     private boolean doHasPermission(final Session session, final Path absPath, final String[] actions) {
-        final Set<String> roles;
-
         final Principal userPrincipal = getUserPrincipal(session);
         if (userPrincipal == null) {
             return false;
@@ -100,18 +187,19 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
             return false;
         }
 
-        try {
-            final Session internalSession = sessionFactory.getInternalSession();
-            final Map<String, List<String>> acl =
-                    accessRolesProvider.findRolesForPath(absPath,
-                            internalSession);
-            roles = resolveUserRoles(acl, allPrincipals);
-            LOGGER.debug("roles for this request: {}", roles);
-        } catch (final RepositoryException e) {
-            throw new RepositoryRuntimeException("Cannot look up node information on " + absPath +
-                    " for permissions check.", e);
+        final Boolean preDecision = preDecide(session, absPath, actions, allPrincipals);
+        if (preDecision != null) {
+            return preDecision;
+        }
+
+        final Session internalSession = getAuthorizationSession();
+
+        if (decisionCache != null && !isRemove(actions)) {
+            return memoizedHasPermission(session, internalSession, absPath, actions, allPrincipals);
         }
 
+        final Set<String> roles = findUserRoles(internalSession, absPath, allPrincipals);
+
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("roles: {}, actions: {}, path: {}", roles, actions, absPath);
             if (actions.length > 1) { // have yet to see more than one
@@ -127,19 +215,387 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
             return true;
         }
 
-        if (!rolesHavePermission(session, absPath.toString(), actions, roles)) {
+        final boolean permitted = rolesHavePermission(session, absPath.toString(), actions, roles);
+        AuthorizationMetrics.recordDecision(roles, permitted);
+        if (!permitted) {
             return false;
         }
 
-        if (actions.length == 1 && "remove".equals(actions[0])) {
+        if (isRemove(actions)) {
             // you must be able to delete all the children
-            // TODO make recursive/ACL-query-based check configurable
-            return canRemoveChildrenRecursive(session, absPath.toString(),
-                    allPrincipals, roles);
+            return canRemoveDescendants(session, internalSession, absPath.toString(), allPrincipals, roles);
         }
         return true;
     }
 
+    /**
+     * Decide a permission check without reading access roles, where the roles cannot matter: superuser principals are
+     * granted every action, and principals assigned no roles anywhere in the repository hold no roles on any path.
+     * A remove permitted without roles still needs its descendants checked, so is left undecided.
+     *
+     * @param session the user session
+     * @param absPath path to the object
+     * @param actions requested actions
+     * @param allPrincipals all principals of the session
+     * @return the decision, or null if the access roles must be read
+     */
+    private Boolean preDecide(final Session session, final Path absPath, final String[] actions,
+            final Set<Principal> allPrincipals) {
+        if (isSuperuser(allPrincipals)) {
+            LOGGER.debug("Superuser granted actions: {}, on path: {}", actions, absPath);
+            return true;
+        }
+        if (accessRolesProvider.mayHaveRoles(allPrincipals)) {
+            return null;
+        }
+        if (actions.length == 1 && "remove_child_nodes".equals(actions[0])) {
+            return true;
+        }
+        final Set<String> roles = RoleSet.EMPTY;
+        final boolean permitted = rolesHavePermission(session, absPath.toString(), actions, roles);
+        if (permitted && isRemove(actions)) {
+            return null;
+        }
+        AuthorizationMetrics.recordDecision(roles, permitted);
+        return permitted;
+    }
+
+    private boolean isSuperuser(final Set<Principal> allPrincipals) {
+        if (!superuserPrincipals.isEmpty()) {
+            for (final Principal p : allPrincipals) {
+                if (superuserPrincipals.contains(p.getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decide whether a session may perform each of some actions on each of some paths. The roles of each governing
+     * ACL are resolved once for every path it governs, and a decision is shared by the paths governed by the same ACL
+     * within the same {@link #getDecisionScope(String) decision scope}. Removals still check the descendants of each
+     * path.
+     *
+     * @param session the user session
+     * @param paths paths to the objects
+     * @param actions the actions, each decided on its own
+     * @return the decision of each action keyed by action, for each path in order
+     */
+    public List<Map<String, Boolean>> hasPermissions(final Session session, final List<Path> paths,
+            final List<String> actions) {
+        final List<Map<String, Boolean>> results = new ArrayList<>(paths.size());
+        final Set<Principal> allPrincipals = getUserPrincipal(session) == null ? null : getPrincipals(session);
+        final boolean superuser = allPrincipals != null && isSuperuser(allPrincipals);
+        final boolean unassigned = allPrincipals != null && !accessRolesProvider.mayHaveRoles(allPrincipals);
+        final Session internalSession = allPrincipals == null ? null : getAuthorizationSession();
+        final Map<String, Set<String>> rolesByAcl = new HashMap<>();
+        final Map<String, Boolean> decisions = new HashMap<>();
+
+        for (final Path absPath : paths) {
+            final Map<String, Boolean> result = new LinkedHashMap<>();
+            results.add(result);
+            if (allPrincipals == null || superuser) {
+                for (final String action : actions) {
+                    result.put(action, superuser);
+                }
+                continue;
+            }
+            final String path = absPath.toString();
+            final String aclPath;
+            final Set<String> roles;
+            if (unassigned) {
+                // no ACL assigns these principals any role, so every path shares the same empty roles
+                aclPath = UNASSIGNED;
+                roles = RoleSet.EMPTY;
+            } else {
+                final String found;
+                try {
+                    found = accessRolesProvider.findAclPathForPath(absPath, internalSession);
+                } catch (final RepositoryException e) {
+                    throw new RepositoryRuntimeException("Cannot look up node information on " + absPath +
+                            " for permissions check.", e);
+                }
+                aclPath = found == null ? NO_ACL : found;
+                roles = rolesByAcl.computeIfAbsent(aclPath, p -> found == null ?
+                        findUserRoles(internalSession, absPath, allPrincipals) :
+                        findAclRoles(internalSession, absPath, found, allPrincipals));
+            }
+            final String scope = aclPath + '\n' + getDecisionScope(path) + '\n';
+            for (final String action : actions) {
+                final String[] requested = {action};
+                final boolean permitted;
+                if ("remove_child_nodes".equals(action)) {
+                    permitted = true;
+                } else if (isRemove(requested)) {
+                    permitted = rolesHavePermission(session, path, requested, roles) &&
+                            canRemoveDescendants(session, internalSession, path, allPrincipals, roles);
+                    AuthorizationMetrics.recordDecision(roles, permitted);
+                } else {
+                    permitted = decisions.computeIfAbsent(scope + action, k -> {
+                        final boolean decision = rolesHavePermission(session, path, requested, roles);
+                        AuthorizationMetrics.recordDecision(roles, decision);
+                        return decision;
+                    });
+                }
+                result.put(action, permitted);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Check that every descendant of a node may be removed, using the configured remove check mode. The ACL node of the
+     * removed node itself is not checked: the roles assigned to a node go with it, so whoever may remove the node may
+     * remove them. The ACL nodes of its descendants are checked like any other descendant.
+     *
+     * @param session the user session
+     * @param internalSession the session reading access roles
+     * @param path path to the node
+     * @param allPrincipals all principals of the session
+     * @param roles the roles on the node
+     * @return true if permitted
+     */
+    private boolean canRemoveDescendants(final Session session, final Session internalSession, final String path,
+            final Set<Principal> allPrincipals, final Set<String> roles) {
+        final AtomicLong visited = new AtomicLong();
+        try (final Timer.Context context = AuthorizationMetrics.removeCheckTimer().time()) {
+            if (removeCheckMode == RemoveCheckMode.ACL_QUERY && isAclQueryIndexed(internalSession)) {
+                return canRemoveAclDescendants(session, internalSession, path, allPrincipals, visited);
+            }
+            if (removeCheckMode == RemoveCheckMode.PARALLEL) {
+                return new ParallelRemoveCheck(this, accessRolesProvider, getAuthorizationSessions(), session,
+                        allPrincipals, visited).run(getRemoveCheckPool(), path, roles);
+            }
+            return canRemoveChildrenRecursive(session, internalSession, path, allPrincipals, roles, true, visited);
+        } finally {
+            AuthorizationMetrics.recordRemoveCheckNodes(visited.get());
+        }
+    }
+
+    /**
+     * Determine whether the repository has a node type index answering the query of
+     * {@link RemoveCheckMode#ACL_QUERY}. Without one, the query scans the whole subtree, which costs more than
+     * {@link RemoveCheckMode#RECURSIVE}, so that is used instead. Indexes are looked up once.
+     *
+     * @param internalSession the session reading access roles
+     * @return true if the query is indexed
+     */
+    private boolean isAclQueryIndexed(final Session internalSession) {
+        Boolean indexed = aclQueryIndexed;
+        if (indexed == null) {
+            try {
+                indexed = hasNodeTypeIndex(internalSession.getWorkspace());
+            } catch (final RepositoryException e) {
+                throw new RepositoryRuntimeException("Cannot look up the indexes of the repository", e);
+            }
+            if (!indexed) {
+                LOGGER.warn("No node type index covers {}, checking removals with {} instead of {}",
+                        rbaclAssignable.getQualified(), RemoveCheckMode.RECURSIVE, RemoveCheckMode.ACL_QUERY);
+            }
+            aclQueryIndexed = indexed;
+        }
+        return indexed;
+    }
+
+    /**
+     * @param workspace a workspace
+     * @return true if the workspace has a node type index covering nodes carrying access roles
+     * @throws RepositoryException if the indexes cannot be read
+     */
+    static boolean hasNodeTypeIndex(final Workspace workspace) throws RepositoryException {
+        if (!(workspace instanceof org.modeshape.jcr.api.Workspace)) {
+            return false;
+        }
+        for (final IndexDefinition index :
+                ((org.modeshape.jcr.api.Workspace) workspace).getIndexManager().getIndexDefinitions().values()) {
+            final String nodeType = index.getNodeTypeName();
+            if (index.getKind() == IndexKind.NODE_TYPE && (NT_BASE.equals(nodeType) ||
+                    rbaclAssignable.getQualified().equals(nodeType) || rbaclAssignable.getExpanded().equals(
+                            nodeType))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Answer a permission check from the decision cache, evaluating and recording it on a miss. Not used for remove
+     * actions, which depend on the whole subtree rather than on the governing ACL alone, nor with providers that do
+     * not track changes to the roles they provide.
+     *
+     * @param session the user session
+     * @param internalSession the session reading access roles
+     * @param absPath path to the object
+     * @param actions requested actions
+     * @param allPrincipals all principals of the session
+     * @return true if permitted
+     */
+    private boolean memoizedHasPermission(final Session session, final Session internalSession, final Path absPath,
+            final String[] actions, final Set<Principal> allPrincipals) {
+        if (actions.length == 1 && "remove_child_nodes".equals(actions[0])) {
+            return true;
+        }
+        final String path = absPath.toString();
+        // read before the roles, so that a decision is never recorded against a version newer than its roles
+        final long version = accessRolesProvider.getRolesVersion();
+        if (version < 0) {
+            final Set<String> roles = findUserRoles(internalSession, absPath, allPrincipals);
+            final boolean decision = rolesHavePermission(session, path, actions, roles);
+            AuthorizationMetrics.recordDecision(roles, decision);
+            return decision;
+        }
+        final String scope = getDecisionScope(path);
+        final String aclPath;
+        try {
+            aclPath = accessRolesProvider.findAclPathForPath(absPath, internalSession);
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException("Cannot look up node information on " + absPath +
+                    " for permissions check.", e);
+        }
+        final Boolean cached = decisionCache.get(allPrincipals, aclPath, version, scope, actions);
+        if (cached != null) {
+            return cached;
+        }
+        final Set<String> roles = findUserRoles(internalSession, absPath, allPrincipals);
+        final boolean decision = rolesHavePermission(session, path, actions, roles);
+        AuthorizationMetrics.recordDecision(roles, decision);
+        decisionCache.put(allPrincipals, aclPath, version, scope, actions, decision);
+        return decision;
+    }
+
+    /**
+     * Resolve the roles of some principals from the ACL already found to govern a path, falling back to looking the
+     * ACL up again if its node has lost its roles since.
+     *
+     * @param internalSession the session reading access roles
+     * @param absPath the path
+     * @param aclPath the expanded path of the node found to carry the governing ACL
+     * @param allPrincipals the principals
+     * @return the roles of the principals
+     */
+    private Set<String> findAclRoles(final Session internalSession, final Path absPath, final String aclPath,
+            final Set<Principal> allPrincipals) {
+        final Map<String, List<String>> acl;
+        try {
+            acl = accessRolesProvider.findRolesForAclPath(aclPath, internalSession);
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException("Cannot look up node information on " + aclPath +
+                    " for permissions check.", e);
+        }
+        if (acl == null) {
+            LOGGER.debug("Node no longer carries access roles: {}", aclPath);
+            return findUserRoles(internalSession, absPath, allPrincipals);
+        }
+        final Set<String> roles = resolveRoles(acl, allPrincipals);
+        LOGGER.debug("roles for this request: {}", roles);
+        return roles;
+    }
+
+    private Set<String> findUserRoles(final Session internalSession, final Path absPath,
+            final Set<Principal> allPrincipals) {
+        try {
+            final Map<String, List<String>> acl =
+                    accessRolesProvider.findRolesForPath(absPath,
+                            internalSession);
+            final Set<String> roles = resolveRoles(acl, allPrincipals);
+            LOGGER.debug("roles for this request: {}", roles);
+            return roles;
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException("Cannot look up node information on " + absPath +
+                    " for permissions check.", e);
+        }
+    }
+
+    /**
+     * @return the authorization session of the calling thread
+     */
+    private Session getAuthorizationSession() {
+        return getAuthorizationSessions().getSession();
+    }
+
+    private AuthorizationSessions getAuthorizationSessions() {
+        AuthorizationSessions sessions = authorizationSessions;
+        if (sessions == null) {
+            synchronized (this) {
+                sessions = authorizationSessions;
+                if (sessions == null) {
+                    sessions = new AuthorizationSessions(sessionFactory);
+                    authorizationSessions = sessions;
+                }
+            }
+        }
+        return sessions;
+    }
+
+    private static boolean isRemove(final String[] actions) {
+        return actions.length == 1 && "remove".equals(actions[0]);
+    }
+
+    /**
+     * Get the scope within which a permission decision may be shared by every path governed by the same ACL. The
+     * default distinguishes ACL nodes from content nodes, matching delegates whose decisions depend only on the roles,
+     * the actions and whether the path is an ACL node. Delegates whose decisions depend on the path in other ways
+     * must override this to return a scope that separates such paths.
+     *
+     * @param absPath path to the object
+     * @return the decision scope
+     */
+    protected String getDecisionScope(final String absPath) {
+        return isAclPath(absPath) ? "acl" : "content";
+    }
+
+    /**
+     * Determine whether a path names access control data: an ACL node or a node below one, or an access control
+     * property of a content node, such as the assignments held by the compact format or the revision of the roles.
+     * Writing any of them changes who may do what, wherever it is stored. Both expanded and qualified names are
+     * recognized.
+     *
+     * @param absPath path to the object
+     * @return true if the path names access control data
+     */
+    public static boolean isAclPath(final String absPath) {
+        return absPath.contains(AUTHZ_DETECTION) || absPath.contains(AUTHZ_PREFIX_DETECTION);
+    }
+
+    /**
+     * Enable or disable the memo of permission decisions, which lets the many checks made while serving a single
+     * request share the evaluation of their governing ACL.
+     *
+     * @param enabled true to enable the decision cache
+     */
+    public void setDecisionCacheEnabled(final boolean enabled) {
+        this.decisionCache = enabled ? new DecisionCache(decisionCacheExpire) : null;
+        if (enabled) {
+            AuthorizationMetrics.registerHitRatio(AbstractRolesAuthorizationDelegate.class, "decision-cache",
+                    this::getDecisionCacheHits, this::getDecisionCacheMisses);
+        }
+    }
+
+    /**
+     * @param seconds seconds after which the decisions made for a session are discarded
+     */
+    public void setDecisionCacheExpire(final long seconds) {
+        this.decisionCacheExpire = seconds;
+        if (decisionCache != null) {
+            decisionCache = new DecisionCache(seconds);
+        }
+    }
+
+    /**
+     * @return the number of permission checks answered by the decision cache
+     */
+    public long getDecisionCacheHits() {
+        return decisionCache == null ? 0 : decisionCache.getHitCount();
+    }
+
+    /**
+     * @return the number of permission checks the decision cache could not answer
+     */
+    public long getDecisionCacheMisses() {
+        return decisionCache == null ? 0 : decisionCache.getMissCount();
+    }
+
     @Override
     public FedoraUserSecurityContext getFedoraUserSecurityContext(final Principal userPrincipal) {
         return new FedoraUserSecurityContext(userPrincipal, this);
@@ -165,17 +621,22 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
 
     /**
      * @param userSession the user session
+     * @param internalSession the session reading access roles
      * @param parentPath the parent path
      * @param allPrincipals all principals
      * @param parentRoles the roles on the parent
+     * @param removed true if the parent is the removed node, whose own ACL node is not checked
+     * @param visited counts the descendants visited
      * @return true if permitted
      */
     private boolean canRemoveChildrenRecursive(final Session userSession,
+                                               final Session internalSession,
                                                final String parentPath,
                                                final Set<Principal> allPrincipals,
-                                               final Set<String> parentRoles) {
+                                               final Set<String> parentRoles,
+                                               final boolean removed,
+                                               final AtomicLong visited) {
         try {
-            final Session internalSession = sessionFactory.getInternalSession();
             LOGGER.debug("Recursive child remove permission checks for: {}",
                          parentPath);
             final Node parent = internalSession.getNode(parentPath);
@@ -185,21 +646,25 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
             final NodeIterator ni = parent.getNodes();
             while (ni.hasNext()) {
                 final Node n = ni.nextNode();
+                if (removed && isAclNode(n)) {
+                    continue;
+                }
+                visited.incrementAndGet();
                 // are there unique roles?
                 final Set<String> roles;
                 final Map<String, List<String>> acl = accessRolesProvider.getRoles(n, false);
 
                 if (acl != null) {
-                    roles = resolveUserRoles(acl, allPrincipals);
+                    roles = resolveRoles(acl, allPrincipals);
                 } else {
                     roles = parentRoles;
                 }
-                if (rolesHavePermission(userSession, n.getPath(),
+                if (rolesHavePermission(userSession, checkedPath(n),
                         REMOVE_ACTIONS,
                         roles)) {
 
-                    if (!canRemoveChildrenRecursive(userSession, n.getPath(),
-                            allPrincipals, roles)) {
+                    if (!canRemoveChildrenRecursive(userSession, internalSession, n.getPath(),
+                            allPrincipals, roles, false, visited)) {
                         return false;
                     }
                 } else {
@@ -215,6 +680,163 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
         }
     }
 
+    /**
+     * Check remove permission only at the descendants carrying access roles and at the ACL nodes below them. Every
+     * other descendant shares the roles of the nearest of those nodes or of the parent, whose permission has already
+     * been checked, and the ACL node of the parent goes with it.
+     *
+     * @param userSession the user session
+     * @param internalSession the session reading access roles
+     * @param parentPath the parent path
+     * @param allPrincipals all principals
+     * @param visited counts the descendants visited
+     * @return true if permitted
+     */
+    private boolean canRemoveAclDescendants(final Session userSession,
+                                            final Session internalSession,
+                                            final String parentPath,
+                                            final Set<Principal> allPrincipals,
+                                            final AtomicLong visited) {
+        try {
+            LOGGER.debug("ACL query child remove permission checks for: {}", parentPath);
+            final Node parent = internalSession.getNode(parentPath);
+            final QueryManager queryManager = internalSession.getWorkspace().getQueryManager();
+            final Query query = queryManager.createQuery("SELECT * FROM [" + rbaclAssignable.getQualified() +
+                    "] AS n WHERE ISDESCENDANTNODE(n, '" + parent.getPath().replace("'", "''") + "')",
+                    Query.JCR_SQL2);
+            for (final NodeIterator ni = query.execute().getNodes(); ni.hasNext();) {
+                final Node n = ni.nextNode();
+                visited.incrementAndGet();
+                final Map<String, List<String>> acl = accessRolesProvider.getRoles(n, false);
+                if (acl == null) {
+                    continue;
+                }
+                final Set<String> roles = resolveRoles(acl, allPrincipals);
+                if (!rolesHavePermission(userSession, checkedPath(n), REMOVE_ACTIONS, roles) ||
+                        !canRemoveAclNodes(userSession, n, roles, visited)) {
+                    LOGGER.info("Remove permission denied at {} with roles {}", n.getPath(), roles);
+                    return false;
+                }
+            }
+            return true;
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(
+                    "Cannot lookup child permission check information for " +
+                            parentPath, e);
+        }
+    }
+
+    /**
+     * Check remove permission at the ACL node of a node and at every node below it, with the roles of the node, as
+     * {@link RemoveCheckMode#RECURSIVE} would on reaching them.
+     *
+     * @param userSession the user session
+     * @param node a node that may carry an ACL node
+     * @param roles the roles on the node
+     * @param visited counts the descendants visited
+     * @return true if permitted
+     * @throws RepositoryException if the ACL nodes cannot be read
+     */
+    private boolean canRemoveAclNodes(final Session userSession, final Node node, final Set<String> roles,
+            final AtomicLong visited) throws RepositoryException {
+        if (!node.hasNode(rbacl.getQualified())) {
+            return true;
+        }
+        final Deque<Node> pending = new ArrayDeque<>();
+        pending.push(node.getNode(rbacl.getQualified()));
+        while (!pending.isEmpty()) {
+            final Node n = pending.pop();
+            visited.incrementAndGet();
+            if (!rolesHavePermission(userSession, checkedPath(n), REMOVE_ACTIONS, roles)) {
+                LOGGER.info("Remove permission denied at {} with roles {}", n.getPath(), roles);
+                return false;
+            }
+            for (final NodeIterator ni = n.getNodes(); ni.hasNext();) {
+                pending.push(ni.nextNode());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param node a descendant of a removed node
+     * @return true if it is the ACL node of its parent
+     * @throws RepositoryException if the name cannot be read
+     */
+    static boolean isAclNode(final Node node) throws RepositoryException {
+        return rbacl.getQualified().equals(node.getName());
+    }
+
+    /**
+     * Get the path of a descendant as passed to {@link #rolesHavePermission(Session, String, String[], Set)}, with its
+     * namespace prefixes expanded like the paths of the permission checks made by the repository, so that ACL nodes
+     * are recognized in every remove check mode.
+     *
+     * @param node a descendant of a removed node
+     * @return its expanded path
+     * @throws RepositoryException if the path cannot be read
+     */
+    static String checkedPath(final Node node) throws RepositoryException {
+        return EffectiveRolesCache.pathKey(node);
+    }
+
+    /**
+     * Principals granted every action on every path without reading access roles.
+     *
+     * @param superuserPrincipals names of the superuser principals, none by default
+     */
+    public void setSuperuserPrincipals(final Set<String> superuserPrincipals) {
+        this.superuserPrincipals = superuserPrincipals == null ? emptySet() : new HashSet<>(superuserPrincipals);
+    }
+
+    /**
+     * Select how the descendants of a node are checked before it may be removed.
+     *
+     * @param removeCheckMode the remove check mode, {@link RemoveCheckMode#RECURSIVE} by default
+     */
+    public void setRemoveCheckMode(final RemoveCheckMode removeCheckMode) {
+        this.removeCheckMode = removeCheckMode;
+        this.aclQueryIndexed = null;
+    }
+
+    /**
+     * @param parallelism the number of worker threads used by {@link RemoveCheckMode#PARALLEL}, the number of
+     *        available processors by default
+     */
+    public void setRemoveCheckParallelism(final int parallelism) {
+        this.removeCheckParallelism = parallelism;
+    }
+
+    private synchronized ForkJoinPool getRemoveCheckPool() {
+        if (removeCheckPool == null) {
+            removeCheckPool = new ForkJoinPool(removeCheckParallelism);
+        }
+        return removeCheckPool;
+    }
+
+    /**
+     * Stop the worker threads of the parallel remove check and log out the sessions reading access roles.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        if (removeCheckPool != null) {
+            removeCheckPool.shutdownNow();
+            removeCheckPool = null;
+        }
+        if (authorizationSessions != null) {
+            authorizationSessions.close();
+            authorizationSessions = null;
+        }
+    }
+
+    /**
+     * Get the principal that represents the "EVERYONE" user.
+     */
+    @Override
+    public Principal getEveryonePrincipal() {
+        return EVERYONE;
+    }
+
     /**
      * Subclasses must override this method to determine permissions based on
      * supplied roles.
@@ -222,7 +844,8 @@ public abstract class AbstractRolesAuthorizationDelegate implements FedoraAuthor
      * @param userSession the user session
      * @param absPath path to the object
      * @param actions requested action
-     * @param roles effective roles for this request and content
+     * @param roles effective roles for this request and content, which may be shared with other checks and must not
+     *        be modified
      * @return true if role has permission
      */
     public abstract boolean rolesHavePermission(final Session userSession, final String absPath,
@@ -0,0 +1,189 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static org.fcrepo.auth.roles.common.EffectiveRolesCache.pathKey;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Inject;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.UriInfo;
+
+import org.fcrepo.auth.common.FedoraAuthorizationDelegate;
+import org.fcrepo.http.commons.AbstractResource;
+import org.fcrepo.http.commons.api.rdf.HttpResourceConverter;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.jvnet.hk2.annotations.Optional;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.value.PathFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Scope;
+
+import com.codahale.metrics.annotation.Timed;
+import com.google.common.annotations.VisibleForTesting;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * RESTful interface answering which of some actions the current user may perform on each of some resources, so that
+ * clients need not fetch and interpret the effective access roles of every resource they show:
+ *
+ * <pre>
+ * POST /fcr:permissions
+ * {"paths": ["/objects/1", "/objects/2"], "actions": ["read", "add_node"]}
+ *
+ * {"/objects/1": {"read": true, "add_node": true},
+ *  "/objects/2": {"read": true, "add_node": false}}
+ * </pre>
+ *
+ * Deciding "remove" checks every descendant of a path, so it may only be asked about one path at a time. Each path
+ * may be asked about only once.
+ *
+ * @author whikloj
+ */
+@Scope("request")
+@Path("/fcr:permissions")
+public class AccessPermissions extends AbstractResource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccessPermissions.class);
+
+    static final int MAX_PATHS = 1000;
+
+    private static final String REMOVE = "remove";
+
+    private static final PathFactory pathFactory = new ExecutionContext().getValueFactories().getPathFactory();
+
+    @Inject
+    protected Session session;
+
+    @Inject
+    @Optional
+    private FedoraAuthorizationDelegate authorizationDelegate;
+
+    @Context protected UriInfo uriInfo;
+
+    protected IdentifierConverter<Resource, FedoraResource> identifierTranslator;
+
+    /**
+     * Decide the requested actions on each requested path for the current user.
+     *
+     * @param query the "paths" and the "actions" to decide
+     * @return the decision of each action keyed by action, keyed by path
+     */
+    @POST
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response post(final Map<String, List<String>> query) {
+        try {
+            if (!(authorizationDelegate instanceof AbstractRolesAuthorizationDelegate)) {
+                throw new WebApplicationException(Response.status(Status.NOT_IMPLEMENTED)
+                        .entity("Permissions are not decided by a roles-based authorization delegate").build());
+            }
+            final List<String> paths = query.get("paths");
+            final List<String> actions = query.get("actions");
+            if (paths == null || actions == null || paths.isEmpty() || actions.isEmpty()) {
+                throw badRequest("The query must include one or more paths and one or more actions");
+            }
+            if (paths.size() > MAX_PATHS) {
+                throw badRequest("The query may include at most " + MAX_PATHS + " paths");
+            }
+            if (actions.contains(REMOVE) && paths.size() > 1) {
+                throw badRequest("The \"" + REMOVE + "\" action may only be asked about one path at a time");
+            }
+
+            final List<org.modeshape.jcr.value.Path> absPaths = new ArrayList<>(paths.size());
+            final Set<String> seen = new HashSet<>();
+            for (final String path : paths) {
+                if (path == null || path.isEmpty()) {
+                    throw badRequest("Paths cannot be empty");
+                }
+                // the decisions are keyed by path, so a repeated path would lose its place in the answer
+                if (!seen.add(path)) {
+                    throw badRequest("The query may include each path only once: " + path);
+                }
+                absPaths.add(toAbsolutePath(toInternalPath(path)));
+            }
+
+            final List<Map<String, Boolean>> decisions = ((AbstractRolesAuthorizationDelegate) authorizationDelegate)
+                    .hasPermissions(session, absPaths, actions);
+            final Map<String, Map<String, Boolean>> result = new LinkedHashMap<>();
+            for (int i = 0; i < paths.size(); i++) {
+                result.put(paths.get(i), decisions.get(i));
+            }
+            LOGGER.debug("Decided {} actions on {} paths", actions.size(), paths.size());
+            return Response.ok(result).build();
+        } finally {
+            session.logout();
+        }
+    }
+
+    private static WebApplicationException badRequest(final String message) {
+        return new WebApplicationException(Response.status(Status.BAD_REQUEST).entity(message).build());
+    }
+
+    /**
+     * @param externalPath a path relative to the repository endpoint
+     * @return the path of the repository node
+     */
+    @VisibleForTesting
+    protected String toInternalPath(final String externalPath) {
+        return translator().asString(translator().toDomain(externalPath));
+    }
+
+    /**
+     * @param internalPath the path of a repository node, using the namespace prefixes of the session
+     * @return the path, its names expanded so that they do not depend on the prefixes of the session
+     */
+    private org.modeshape.jcr.value.Path toAbsolutePath(final String internalPath) {
+        final List<org.modeshape.jcr.value.Path.Segment> segments = new ArrayList<>();
+        try {
+            for (final String segment : AclPathIndex.split(pathKey(internalPath, session))) {
+                segments.add(pathFactory.createSegment(segment));
+            }
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+        return pathFactory.createAbsolutePath(segments);
+    }
+
+    protected IdentifierConverter<Resource, FedoraResource> translator() {
+        if (identifierTranslator == null) {
+            identifierTranslator = new HttpResourceConverter(session,
+                    uriInfo.getBaseUriBuilder().clone().path("{path: .*}"));
+        }
+
+        return identifierTranslator;
+    }
+}
@@ -15,19 +15,29 @@
  */
 package org.fcrepo.auth.roles.common;
 
+import static java.util.Collections.singletonList;
+import static javax.ws.rs.core.HttpHeaders.IF_MATCH;
+import static javax.ws.rs.core.HttpHeaders.IF_NONE_MATCH;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 import javax.inject.Inject;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
@@ -36,13 +46,17 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriInfo;
 
+import org.fcrepo.auth.roles.common.AclImport.SubtreeRecordReader;
 import org.fcrepo.http.commons.AbstractResource;
 import org.fcrepo.http.commons.api.rdf.HttpResourceConverter;
+import org.fcrepo.http.commons.domain.PATCH;
+import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.api.identifiers.IdentifierConverter;
 import org.fcrepo.kernel.api.models.FedoraBinary;
 import org.fcrepo.kernel.api.models.FedoraResource;
@@ -79,7 +93,11 @@ public class AccessRoles extends AbstractResource {
     @Optional
     private AccessRolesProvider accessRolesProvider;
 
+    @Inject
+    private SessionFactory sessionFactory;
+
     @Context protected Request request;
+    @Context protected HttpServletRequest servletRequest;
     @Context protected HttpServletResponse servletResponse;
     @Context protected UriInfo uriInfo;
 
@@ -113,7 +131,8 @@ public class AccessRoles extends AbstractResource {
     }
 
     /**
-     * Retrieve the roles assigned to each principal on this specific path.
+     * Retrieve the roles assigned to each principal on this specific path. The response carries an ETag of the
+     * governing roles, and a request whose If-None-Match matches it is answered with 304 without reading the roles.
      *
      * @param effective the effective roles
      * @return JSON representation of assignment map
@@ -134,6 +153,16 @@ public class AccessRoles extends AbstractResource {
                 node = resource().getNode();
             }
 
+            final String tag = this.getAccessRolesProvider().getRolesTag(node, (effective != null));
+            final EntityTag etag = tag == null ? null : new EntityTag(tag);
+            if (etag != null) {
+                final Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+                if (notModified != null) {
+                    LOGGER.debug("not modified response");
+                    return notModified.tag(etag).build();
+                }
+            }
+
             final Map<String, List<String>> data =
                     this.getAccessRolesProvider().getRoles(node,
                             (effective != null));
@@ -141,7 +170,7 @@ public class AccessRoles extends AbstractResource {
                 LOGGER.debug("no content response");
                 response = Response.noContent();
             } else {
-                response = Response.ok(data);
+                response = Response.ok(data).tag(etag);
             }
         } finally {
             session.logout();
@@ -150,35 +179,45 @@ public class AccessRoles extends AbstractResource {
     }
 
     /**
-     * Apply new role assignments at the specified node.
+     * Apply new role assignments at the specified node. The assignments are parsed, validated and written one
+     * principal at a time, and saved only if all of them are valid.
      *
-     * @param data access roles
+     * @param body access roles, a JSON object of role names keyed by principal
      * @return response
      * @throws RepositoryException if IllegalArgumentException can not handle
      */
     @POST
     @Consumes(APPLICATION_JSON)
     @Timed
-    public Response post(final Map<String, Set<String>> data)
+    public Response post(final InputStream body)
         throws RepositoryException {
         LOGGER.debug("POST Received request param: {}", request);
         Response.ResponseBuilder response;
 
-        try {
-            validatePOST(data);
+        try (final AssignmentsReader assignments = new AssignmentsReader(body)) {
+            if (!assignments.hasNext()) {
+                throw new IllegalArgumentException(
+                        "Posted access roles must include role assignments");
+            }
 
             final FedoraResource resource = resource();
+            final Node node;
 
             if (resource instanceof FedoraBinary) {
-                this.getAccessRolesProvider().postRoles(((FedoraBinary) resource).getDescription().getNode(), data);
+                node = ((FedoraBinary) resource).getDescription().getNode();
             } else {
-                this.getAccessRolesProvider().postRoles(resource.getNode(), data);
+                node = resource.getNode();
             }
-            session.save();
-            LOGGER.debug("Saved access roles {}", data);
+            final String tag = evaluateWritePreconditions(node);
+
+            this.getAccessRolesProvider().postRoles(node, assignments);
+            saveRoles(node, tag);
+            this.getAccessRolesProvider().rolesSaved(node);
+            LOGGER.debug("Saved access roles at {}", externalPath);
             response =
                     Response.created(getUriInfo().getBaseUriBuilder()
-                            .path(externalPath).path("fcr:accessroles").build());
+                            .path(externalPath).path("fcr:accessroles").build())
+                            .tag(this.getAccessRolesProvider().getRolesTag(node, false));
 
         } catch (final IllegalArgumentException e) {
             throw new WebApplicationException(e, Response.status(Status.BAD_REQUEST).build());
@@ -189,28 +228,137 @@ public class AccessRoles extends AbstractResource {
         return response.build();
     }
 
+    /**
+     * Change the roles of some principals at the specified node, leaving the other assignments in place. A principal
+     * given an empty list of roles is removed.
+     *
+     * @param delta the new roles of each changed principal
+     * @return response
+     * @throws RepositoryException if IllegalArgumentException can not handle
+     */
+    @PATCH
+    @Consumes(APPLICATION_JSON)
+    @Timed
+    public Response patch(final Map<String, Set<String>> delta)
+        throws RepositoryException {
+        LOGGER.debug("PATCH Received request param: {}", request);
+
+        try {
+            validateAssignments(delta, true);
+
+            final FedoraResource resource = resource();
+            final Node node;
+
+            if (resource instanceof FedoraBinary) {
+                node = ((FedoraBinary) resource).getDescription().getNode();
+            } else {
+                node = resource.getNode();
+            }
+            final String tag = evaluateWritePreconditions(node);
+
+            this.getAccessRolesProvider().patchRoles(node, delta);
+            saveRoles(node, tag);
+            this.getAccessRolesProvider().rolesSaved(node);
+            LOGGER.debug("Saved access role changes {}", delta);
+            return Response.noContent().tag(this.getAccessRolesProvider().getRolesTag(node, false)).build();
+
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(e, Response.status(Status.BAD_REQUEST).build());
+        } finally {
+            session.logout();
+        }
+    }
+
+    /**
+     * Apply the same role assignments at the specified node and at every repository resource below it, replacing
+     * their existing assignments. The subtree is walked as it is written, saving once per batch of resources, so a
+     * failure leaves the batches saved before it in place.
+     *
+     * @param batchSize number of resources written per save
+     * @param workers number of writers assigning roles in parallel, each with its own session
+     * @param data access roles, role names keyed by principal
+     * @return a report of the resources written and of those that failed
+     * @throws IOException if interrupted
+     * @throws RepositoryException if the node cannot be read
+     */
+    @POST
+    @Path("subtree")
+    @Consumes(APPLICATION_JSON)
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response postSubtree(@QueryParam("batchSize") @DefaultValue("500") final int batchSize,
+            @QueryParam("workers") @DefaultValue("1") final int workers, final Map<String, Set<String>> data)
+        throws IOException, RepositoryException {
+        LOGGER.debug("POST subtree Received request param: {}", request);
+        final List<Session> writers = new ArrayList<>(workers);
+        try {
+            if (batchSize < 1 || workers < 1 || workers > BulkAccessRoles.MAX_WORKERS) {
+                throw new IllegalArgumentException("Batch size must be positive and workers between 1 and " +
+                        BulkAccessRoles.MAX_WORKERS);
+            }
+            validateAssignments(data, false);
+
+            final FedoraResource resource = resource();
+            final Node node;
+
+            if (resource instanceof FedoraBinary) {
+                node = ((FedoraBinary) resource).getDescription().getNode();
+            } else {
+                node = resource.getNode();
+            }
+            evaluateWritePreconditions(node);
+
+            // the subtree is walked through the request session, which parallel writers must not share
+            if (workers == 1) {
+                writers.add(session);
+            }
+            while (writers.size() < workers) {
+                writers.add(sessionFactory.getSession(servletRequest));
+            }
+            final AclImport subtree = new AclImport(nodeService, this.getAccessRolesProvider(), batchSize);
+            return Response.ok(subtree.run(new SubtreeRecordReader(node, data), writers)).build();
+
+        } catch (final IllegalArgumentException e) {
+            throw new WebApplicationException(e, Response.status(Status.BAD_REQUEST).build());
+        } finally {
+            writers.remove(session);
+            writers.forEach(Session::logout);
+            session.logout();
+        }
+    }
+
     /**
      * @param data
+     * @param removals whether principals may be given no roles
      */
-    private void validatePOST(final Map<String, Set<String>> data) {
+    static void validateAssignments(final Map<String, Set<String>> data, final boolean removals) {
         if (data.isEmpty()) {
             throw new IllegalArgumentException(
                     "Posted access roles must include role assignments");
         }
         for (final Map.Entry<String, Set<String>> entry : data.entrySet()) {
-            if (entry.getKey() == null || entry.getValue() == null || entry.getValue().isEmpty()) {
-                throw new IllegalArgumentException(
-                        "Assignments must include principal name and one or more roles");
-            }
-            if (entry.getKey().trim().length() == 0) {
+            validateAssignment(entry.getKey(), entry.getValue(), removals);
+        }
+    }
+
+    /**
+     * @param principal
+     * @param roles
+     * @param removals whether the principal may be given no roles
+     */
+    static void validateAssignment(final String principal, final Set<String> roles, final boolean removals) {
+        if (principal == null || roles == null || (!removals && roles.isEmpty())) {
+            throw new IllegalArgumentException(
+                    "Assignments must include principal name and one or more roles");
+        }
+        if (principal.trim().length() == 0) {
+            throw new IllegalArgumentException(
+                    "Principal names cannot be an empty strings or whitespace.");
+        }
+        for (final String r : roles) {
+            if (r.trim().length() == 0) {
                 throw new IllegalArgumentException(
-                        "Principal names cannot be an empty strings or whitespace.");
-            }
-            for (final String r : entry.getValue()) {
-                if (r.trim().length() == 0) {
-                    throw new IllegalArgumentException(
-                            "Role names cannot be an empty strings or whitespace.");
-                }
+                        "Role names cannot be an empty strings or whitespace.");
             }
         }
     }
@@ -233,14 +381,77 @@ public class AccessRoles extends AbstractResource {
                 node = resource().getNode();
             }
 
+            final String tag = evaluateWritePreconditions(node);
+
             this.getAccessRolesProvider().deleteRoles(node);
-            session.save();
+            saveRoles(node, tag);
+            this.getAccessRolesProvider().rolesSaved(node);
             return Response.noContent().build();
         } finally {
             session.logout();
         }
     }
 
+    /**
+     * Evaluate If-Match and If-None-Match against the ETag of the roles assigned to a node, so that clients may
+     * change roles only if nobody else has changed them since they were read.
+     *
+     * @param node the node carrying the roles
+     * @return the ETag of the roles, or null if no roles are assigned
+     */
+    private String evaluateWritePreconditions(final Node node) {
+        final String tag = this.getAccessRolesProvider().getRolesTag(node, false);
+        final Response.ResponseBuilder failed =
+                tag == null ? request.evaluatePreconditions() : request.evaluatePreconditions(new EntityTag(tag));
+        if (failed != null) {
+            throw new WebApplicationException(failed.build());
+        }
+        return tag;
+    }
+
+    /**
+     * Save the changed roles of a node. The roles last saved are compared with those the preconditions were evaluated
+     * against and the changes saved while holding the write lock of the node, so that no other write of its roles
+     * through this repository instance can land in between.
+     *
+     * @param node the node carrying the roles
+     * @param tag the ETag the preconditions were evaluated against
+     * @throws RepositoryException if the roles cannot be saved
+     */
+    private void saveRoles(final Node node, final String tag) throws RepositoryException {
+        final List<Lock> locks = AclWriteLocks.lock(singletonList(node));
+        try {
+            recheckWritePreconditions(node, tag);
+            session.save();
+        } finally {
+            AclWriteLocks.unlock(locks);
+        }
+    }
+
+    /**
+     * Just before the changes of a conditional request are saved, read the roles of the node as last saved through
+     * any session, and fail the request if another request changed them after its preconditions were evaluated.
+     *
+     * @param node the node carrying the roles
+     * @param tag the ETag the preconditions were evaluated against
+     * @throws RepositoryException if the saved roles cannot be read
+     */
+    private void recheckWritePreconditions(final Node node, final String tag) throws RepositoryException {
+        if (servletRequest.getHeader(IF_MATCH) == null && servletRequest.getHeader(IF_NONE_MATCH) == null) {
+            return;
+        }
+        final Session saved = sessionFactory.getInternalSession();
+        try {
+            final String current = this.getAccessRolesProvider().getRolesTag(saved.getNode(node.getPath()), false);
+            if (!Objects.equals(tag, current)) {
+                LOGGER.debug("Access roles at {} changed while the request was processed", externalPath);
+                throw new WebApplicationException(Response.status(Status.PRECONDITION_FAILED).build());
+            }
+        } finally {
+            saved.logout();
+        }
+    }
+
     private UriInfo getUriInfo() {
         return this.uriInfo;
     }
@@ -15,11 +15,15 @@
  */
 package org.fcrepo.auth.roles.common;
 
-import static java.util.Collections.emptyMap;
-
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -35,10 +39,11 @@ import org.modeshape.jcr.value.Path;
  */
 public interface AccessRolesProvider {
 
-    public static final Map<String, List<String>> DEFAULT_ACCESS_ROLES = emptyMap();
+    public static final Map<String, List<String>> DEFAULT_ACCESS_ROLES = RoleAssignments.EMPTY;
 
     /**
-     * Get the roles assigned to this Node. Optionally search up the tree for the effective roles.
+     * Get the roles assigned to this Node. Optionally search up the tree for the effective roles. The roles may be
+     * shared with other callers and must not be modified.
      *
      * @param node the subject Node
      * @param effective if true then search for effective roles
@@ -47,7 +52,20 @@ public interface AccessRolesProvider {
     public Map<String, List<String>> getRoles(final Node node, final boolean effective);
 
     /**
-     * Assigns the given set of roles to each principal.
+     * Get a tag identifying the current state of the roles that {@link #getRoles(Node, boolean)} would return, which
+     * changes whenever those roles change.
+     *
+     * @param node the subject Node
+     * @param effective if true then identify the effective roles
+     * @return the tag, or null if no roles are assigned or the provider does not tag roles
+     */
+    public default String getRolesTag(final Node node, final boolean effective) {
+        return null;
+    }
+
+    /**
+     * Assigns the given set of roles to each principal, replacing all existing assignments. Only the assignments of
+     * principals that were added, changed or removed are written.
      *
      * @param node the Node to edit
      * @param data the roles to assign
@@ -56,6 +74,56 @@ public interface AccessRolesProvider {
     public void postRoles(final Node node, final Map<String, Set<String>> data)
             throws RepositoryException;
 
+    /**
+     * Assigns roles to each principal as the assignments are read, replacing all existing assignments, so that the
+     * assignments need not all be held in memory at once. An exception thrown while reading them leaves the node
+     * partly written, to be discarded with the unsaved session.
+     *
+     * @param node the Node to edit
+     * @param data the roles to assign, each principal at most once
+     * @throws RepositoryException if repository exception occurred
+     */
+    public default void postRoles(final Node node, final Iterator<Map.Entry<String, Set<String>>> data)
+            throws RepositoryException {
+        final Map<String, Set<String>> roles = new LinkedHashMap<>();
+        while (data.hasNext()) {
+            final Map.Entry<String, Set<String>> entry = data.next();
+            roles.put(entry.getKey(), entry.getValue());
+        }
+        postRoles(node, roles);
+    }
+
+    /**
+     * Changes the roles of some principals, leaving the assignments of all other principals in place. A principal
+     * given an empty set of roles is removed.
+     *
+     * @param node the Node to edit
+     * @param delta the new roles of each changed principal
+     * @throws RepositoryException if repository exception occurred
+     * @throws IllegalArgumentException if the change would remove every assignment
+     */
+    public default void patchRoles(final Node node, final Map<String, Set<String>> delta)
+            throws RepositoryException {
+        final Map<String, Set<String>> data = new HashMap<>();
+        final Map<String, List<String>> current = getRoles(node, false);
+        if (current != null) {
+            for (final Map.Entry<String, List<String>> entry : current.entrySet()) {
+                data.put(entry.getKey(), new HashSet<>(entry.getValue()));
+            }
+        }
+        for (final Map.Entry<String, Set<String>> entry : delta.entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                data.remove(entry.getKey());
+            } else {
+                data.put(entry.getKey(), entry.getValue());
+            }
+        }
+        if (data.isEmpty()) {
+            throw new IllegalArgumentException("Patch would remove every role assignment, delete the roles instead");
+        }
+        postRoles(node, data);
+    }
+
     /**
      * Deletes all roles assigned on this node and removes the mixin type.
      *
@@ -64,6 +132,17 @@ public interface AccessRolesProvider {
      */
     public void deleteRoles(final Node node) throws RepositoryException;
 
+    /**
+     * Brings what the provider knows of the roles of a node up to date once the changes made to them through
+     * {@link #postRoles(Node, Map)}, {@link #patchRoles(Node, Map)} or {@link #deleteRoles(Node)} have been saved.
+     * Callers invoke it only after a successful save, so that changes discarded with the session are never seen.
+     *
+     * @param node the node whose roles were saved
+     */
+    public default void rolesSaved(final Node node) {
+        // nothing is kept beyond the repository
+    }
+
     /**
      * Finds effective roles assigned to a path, using first real ancestor node.
      *
@@ -75,4 +154,80 @@ public interface AccessRolesProvider {
     public Map<String, List<String>> findRolesForPath(final Path absPath,
             final Session session) throws RepositoryException;
 
+    /**
+     * Get a number that changes whenever the provider sees a change to any of the roles it provides, which callers
+     * may use to tell whether something derived from those roles is still current.
+     *
+     * @return the version of the roles, or a negative number if the provider does not track changes
+     */
+    public default long getRolesVersion() {
+        return -1;
+    }
+
+    /**
+     * Determine whether any of some principals may be assigned roles anywhere in the repository. A provider that
+     * cannot tell answers true.
+     *
+     * @param principals the principals of a request
+     * @return false only if none of the principals is assigned any role
+     */
+    public default boolean mayHaveRoles(final Set<Principal> principals) {
+        return true;
+    }
+
+    /**
+     * Find the nodes at which a principal is assigned roles, in path order, a page at a time.
+     *
+     * @param principal the principal name
+     * @param after the expanded path of the last node of the previous page, or null for the first page
+     * @param limit the maximum number of nodes
+     * @return the roles assigned to the principal keyed by the expanded path of each node, or null if the provider
+     *         does not index principals
+     */
+    public default SortedMap<String, List<String>> findPrincipalRoles(final String principal, final String after,
+            final int limit) {
+        return null;
+    }
+
+    /**
+     * Finds the node whose role assignments govern a path, using first real ancestor node.
+     *
+     * @param absPath the real or potential node path
+     * @param session session
+     * @return the expanded path of the node carrying the effective roles, or null if no node carries any
+     * @throws RepositoryException if PathNotFoundException can not handle
+     */
+    public default String findAclPathForPath(final Path absPath, final Session session)
+            throws RepositoryException {
+        Path nearest = absPath;
+        while (!nearest.isRoot() && !session.nodeExists(nearest.getString())) {
+            nearest = nearest.getParent();
+        }
+        Node node = nearest.isRoot() ? session.getRootNode() : session.getNode(nearest.getString());
+        while (getRoles(node, false) == null) {
+            if (node.getDepth() == 0) {
+                return null;
+            }
+            node = node.getParent();
+        }
+        return EffectiveRolesCache.pathKey(node);
+    }
+
+    /**
+     * Finds the roles assigned at a node found by {@link #findAclPathForPath(Path, Session)}, without looking up the
+     * node governing a path again.
+     *
+     * @param aclPath the expanded path of the node carrying the roles
+     * @param session session
+     * @return the roles assigned to each principal, or null if the node no longer carries any
+     * @throws RepositoryException if the node cannot be read
+     */
+    public default Map<String, List<String>> findRolesForAclPath(final String aclPath, final Session session)
+            throws RepositoryException {
+        if (!session.nodeExists(aclPath)) {
+            return null;
+        }
+        return getRoles(session.getNode(aclPath), false);
+    }
+
 }
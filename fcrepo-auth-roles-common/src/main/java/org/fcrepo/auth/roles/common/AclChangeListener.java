@@ -0,0 +1,310 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static javax.jcr.observation.Event.NODE_MOVED;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_ADDED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static javax.jcr.observation.Event.PROPERTY_REMOVED;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.Assignment;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.Rbacl;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.assignments;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.revision;
+import static org.fcrepo.auth.roles.common.EffectiveRolesCache.pathKey;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.query.Query;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the effective roles cache and the ACL index of a provider in step with access roles changed through any
+ * session of the repository, as delivered by ModeShape in events once the changes are saved.
+ *
+ * The provider brings its cache and indexes up to date as soon as its own writes are saved; this listener covers
+ * changes saved through other sessions and the removal or move of nodes carrying access roles. It is registered
+ * twice: once for the properties set on nodes of the access control node types, and once, without a node type
+ * filter, for removals and moves, which may take access roles away from nodes that no longer carry those types. The
+ * session is refreshed only for a batch of events that changed access roles or moved nodes. Each registration has a
+ * session of its own, since the two may receive events at the same time.
+ *
+ * @author whikloj
+ */
+class AclChangeListener implements EventListener {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AclChangeListener.class);
+
+    /**
+     * The events setting access roles, received only for nodes of the {@link #ACL_NODE_TYPES}.
+     */
+    static final int SET_EVENT_TYPES = PROPERTY_ADDED | PROPERTY_CHANGED;
+
+    /**
+     * The node types whose properties hold access roles.
+     */
+    static final String[] ACL_NODE_TYPES = {rbaclAssignable.getQualified(), Rbacl.getQualified(),
+        Assignment.getQualified()};
+
+    /**
+     * The events that may take access roles away, received for nodes of every type.
+     */
+    static final int REMOVE_EVENT_TYPES = NODE_REMOVED | NODE_MOVED | PROPERTY_REMOVED;
+
+    private static final String RBACL_SEGMENT = "/" + rbacl.getQualified();
+
+    private static final String ASSIGNMENTS_SEGMENT = "/" + assignments.getQualified();
+
+    private static final String REVISION_SEGMENT = "/" + revision.getQualified();
+
+    private static final String SOURCE_PATH = "srcAbsPath";
+
+    private final AccessRolesProvider accessRolesProvider;
+
+    private final EffectiveRolesCache rolesCache;
+
+    private final AclPathIndex aclIndex;
+
+    private final PrincipalIndex principalIndex;
+
+    private final AtomicLong rolesVersion;
+
+    private final Session session;
+
+    /**
+     * @param accessRolesProvider the provider reading the access roles of changed nodes
+     * @param rolesCache the effective roles cache, or null if caching is disabled
+     * @param aclIndex the index of nodes carrying access roles, or null if indexing is disabled
+     * @param principalIndex the index of principals assigned roles, or null if it is disabled
+     * @param rolesVersion the version of the roles known to the provider, advanced on each change seen
+     * @param session the session through which events are received and changed nodes are read
+     */
+    AclChangeListener(final AccessRolesProvider accessRolesProvider, final EffectiveRolesCache rolesCache,
+            final AclPathIndex aclIndex, final PrincipalIndex principalIndex, final AtomicLong rolesVersion,
+            final Session session) {
+        this.accessRolesProvider = accessRolesProvider;
+        this.rolesCache = rolesCache;
+        this.aclIndex = aclIndex;
+        this.principalIndex = principalIndex;
+        this.rolesVersion = rolesVersion;
+        this.session = session;
+    }
+
+    /**
+     * @return the session through which events are received, used by this listener alone
+     */
+    Session getSession() {
+        return session;
+    }
+
+    @Override
+    public void onEvent(final EventIterator events) {
+        try {
+            boolean refreshed = false;
+            final Set<String> changed = new LinkedHashSet<>();
+            while (events.hasNext()) {
+                final Event event = events.nextEvent();
+                if (event.getType() == NODE_MOVED) {
+                    if (!refreshed) {
+                        session.refresh(false);
+                        refreshed = true;
+                    }
+                    removed(pathKey((String) event.getInfo().get(SOURCE_PATH), session));
+                    moved(event.getPath(), pathKey(event.getPath(), session));
+                    continue;
+                }
+                if (event.getType() == NODE_REMOVED) {
+                    removed(pathKey(event.getPath(), session));
+                }
+                if (mayConcernRoles(event.getPath())) {
+                    final String aclPath = getAclPath(pathKey(event.getPath(), session));
+                    if (aclPath != null) {
+                        changed.add(aclPath);
+                    }
+                }
+            }
+            if (!changed.isEmpty() && !refreshed) {
+                session.refresh(false);
+            }
+            for (final String aclPath : changed) {
+                refresh(aclPath);
+            }
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Could not apply access role changes, discarding all cached roles", e);
+            if (rolesCache != null) {
+                rolesCache.invalidateAll();
+            }
+            rolesVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * Tell cheaply, without resolving namespaces, whether a change to an item may concern access roles.
+     *
+     * @param path the qualified path of the changed item
+     * @return false if the change cannot concern access roles
+     */
+    static boolean mayConcernRoles(final String path) {
+        return path.contains(RBACL_SEGMENT) || path.endsWith(ASSIGNMENTS_SEGMENT) || path.endsWith(REVISION_SEGMENT);
+    }
+
+    /**
+     * Find the node whose access roles are changed by a change to an item.
+     *
+     * @param path the expanded path of the changed item
+     * @return the expanded path of the node, or null if the change does not concern access roles
+     */
+    static String getAclPath(final String path) {
+        final List<String> segments = AclPathIndex.split(path);
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i).equals(rbacl.getExpanded())) {
+                return join(segments, i);
+            }
+        }
+        if (segments.isEmpty()) {
+            return null;
+        }
+        final String name = segments.get(segments.size() - 1);
+        // every write of access roles sets or removes the revision, including the addition of the mixin type
+        if (name.equals(assignments.getExpanded()) || name.equals(revision.getExpanded())) {
+            return join(segments, segments.size() - 1);
+        }
+        return null;
+    }
+
+    private static String join(final List<String> segments, final int end) {
+        if (end == 0) {
+            return "/";
+        }
+        final StringBuilder path = new StringBuilder();
+        for (int i = 0; i < end; i++) {
+            path.append('/').append(segments.get(i));
+        }
+        return path.toString();
+    }
+
+    /**
+     * Discard what is known of a node whose access roles may have changed, and record whether it still carries any
+     * and to whom they are assigned.
+     *
+     * @param aclPath the expanded path of the node
+     * @throws RepositoryException
+     */
+    private void refresh(final String aclPath) throws RepositoryException {
+        if (rolesCache != null) {
+            rolesCache.invalidate(aclPath);
+        }
+        final Node node = getAssignable(aclPath);
+        if (aclIndex != null) {
+            if (node != null) {
+                aclIndex.add(aclPath);
+            } else {
+                aclIndex.remove(aclPath);
+            }
+        }
+        if (principalIndex != null) {
+            if (node != null) {
+                principalIndex.put(aclPath, accessRolesProvider.getRoles(node, false));
+            } else {
+                principalIndex.remove(aclPath);
+            }
+        }
+        rolesVersion.incrementAndGet();
+        LOGGER.debug("Access roles changed at {}", aclPath);
+    }
+
+    /**
+     * @param path the expanded path of a node
+     * @return the node, or null if it does not exist or carries no access roles
+     * @throws RepositoryException
+     */
+    private Node getAssignable(final String path) throws RepositoryException {
+        try {
+            final Node node = session.getNode(path);
+            return node.isNodeType(rbaclAssignable.getExpanded()) ? node : null;
+        } catch (final PathNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Discard what is known of a removed subtree.
+     *
+     * @param path the expanded path of the removed node
+     */
+    private void removed(final String path) {
+        if (rolesCache != null) {
+            rolesCache.invalidateSubtree(path);
+        }
+        if (aclIndex != null) {
+            aclIndex.removeSubtree(path);
+        }
+        if (principalIndex != null) {
+            principalIndex.removeSubtree(path);
+        }
+    }
+
+    /**
+     * Index the nodes carrying access roles in a subtree moved into place.
+     *
+     * @param destination the path of the moved node, as given by the event
+     * @param path the expanded path of the moved node
+     * @throws RepositoryException
+     */
+    private void moved(final String destination, final String path) throws RepositoryException {
+        if (rolesCache != null) {
+            rolesCache.invalidateSubtree(path);
+        }
+        if (aclIndex == null && principalIndex == null) {
+            return;
+        }
+        final Node moved = getAssignable(path);
+        if (moved != null) {
+            indexMoved(moved);
+        }
+        final Query query = session.getWorkspace().getQueryManager().createQuery(
+                "SELECT * FROM [" + rbaclAssignable.getQualified() + "] AS n WHERE ISDESCENDANTNODE(n, '" +
+                        destination.replace("'", "''") + "')", Query.JCR_SQL2);
+        for (final NodeIterator ni = query.execute().getNodes(); ni.hasNext();) {
+            indexMoved(ni.nextNode());
+        }
+    }
+
+    private void indexMoved(final Node node) throws RepositoryException {
+        final String aclPath = pathKey(node);
+        if (aclIndex != null) {
+            aclIndex.add(aclPath);
+        }
+        if (principalIndex != null) {
+            principalIndex.put(aclPath, accessRolesProvider.getRoles(node, false));
+        }
+    }
+}
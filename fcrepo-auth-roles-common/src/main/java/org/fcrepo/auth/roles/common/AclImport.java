@@ -0,0 +1,688 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
+import static org.fcrepo.kernel.api.FedoraJcrTypes.FEDORA_BINARY;
+import static org.fcrepo.kernel.api.FedoraJcrTypes.FEDORA_RESOURCE;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.models.FedoraBinary;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Applies access role records through one writer per session, each saving its session once per batch of records. A
+ * record that cannot be read or found is reported and skipped. A record that fails while its roles are written may
+ * leave them partly written, so the whole unsaved batch is discarded; if a batch is discarded or cannot be saved,
+ * every record in it is reported and the writer carries on with the next batch. A writer stopped by an unexpected
+ * failure reports its unsaved batch and every record handed to it afterwards as failed.
+ *
+ * With several writers, each runs on its own thread and the records are partitioned by group: records read from a
+ * request body are grouped by the parent of their path, so that a writer receives whole groups of siblings, while
+ * the records of a walked subtree are spread across writers one resource at a time. Either way the records of one
+ * resource are applied in the order they were read. Records are handed to the writers through bounded queues, so
+ * memory use does not grow with the import.
+ *
+ * @author whikloj
+ */
+class AclImport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AclImport.class);
+
+    static final int MAX_REPORTED_ERRORS = 1000;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final TypeReference<Map<String, Set<String>>> ASSIGNMENTS =
+            new TypeReference<Map<String, Set<String>>>() { };
+
+    private static final Record END = new Record(0);
+
+    private final NodeService nodeService;
+
+    private final AccessRolesProvider accessRolesProvider;
+
+    private final int batchSize;
+
+    private final Report report = new Report();
+
+    /**
+     * @param nodeService the node service
+     * @param accessRolesProvider the access roles provider
+     * @param batchSize number of records applied per save
+     */
+    AclImport(final NodeService nodeService, final AccessRolesProvider accessRolesProvider, final int batchSize) {
+        this.nodeService = nodeService;
+        this.accessRolesProvider = accessRolesProvider;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Apply every record.
+     *
+     * @param records the records
+     * @param sessions the session of each writer
+     * @return a report of the records applied and of those that failed
+     * @throws IOException if the records cannot be read
+     */
+    Map<String, Object> run(final RecordReader records, final List<Session> sessions) throws IOException {
+        if (sessions.size() == 1) {
+            final Writer writer = new Writer(sessions.get(0));
+            for (Record record = records.next(); record != null; record = records.next()) {
+                writer.accept(record);
+            }
+            writer.finish();
+        } else {
+            runParallel(records, sessions);
+        }
+        LOGGER.info("Bulk access roles applied to {} resources, {} failed, {} per second by {} writers",
+                report.applied, report.failed, report.throughput(), sessions.size());
+        return report.toMap();
+    }
+
+    private void runParallel(final RecordReader records, final List<Session> sessions) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(sessions.size(), r -> {
+            final Thread t = new Thread(r, "fcrepo-auth-roles-import");
+            t.setDaemon(true);
+            return t;
+        });
+        final List<Writer> writers = new ArrayList<>(sessions.size());
+        final List<Future<Void>> running = new ArrayList<>(sessions.size());
+        try {
+            for (final Session session : sessions) {
+                final Writer writer = new Writer(session);
+                writers.add(writer);
+                running.add(executor.submit(writer::drain));
+            }
+            try {
+                for (Record record = records.next(); record != null; record = records.next()) {
+                    writers.get(partition(record.group, writers.size())).put(record);
+                }
+            } finally {
+                for (final Writer writer : writers) {
+                    writer.put(END);
+                }
+                await(running);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for every writer to finish.
+     *
+     * @param running the writers
+     * @throws IOException if interrupted
+     */
+    private static void await(final List<Future<Void>> running) throws IOException {
+        RuntimeException failure = null;
+        for (final Future<Void> writer : running) {
+            try {
+                writer.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while importing access roles");
+            } catch (final ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                            : new RepositoryRuntimeException(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param group the group of a record
+     * @param writers the number of writers
+     * @return the writer of the record, the same for every record of the group
+     */
+    static int partition(final String group, final int writers) {
+        return group == null ? 0 : Math.floorMod(group.hashCode(), writers);
+    }
+
+    /**
+     * @param path a path
+     * @return the path of its parent, or the empty string for the root and for paths that cannot be read
+     */
+    static String parent(final String path) {
+        return path == null ? "" : path.substring(0, Math.max(path.lastIndexOf('/'), 0));
+    }
+
+    /**
+     * Applies records through one session.
+     */
+    private class Writer {
+
+        private final Session session;
+
+        private final List<Record> pending = new ArrayList<>(batchSize);
+
+        private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(batchSize);
+
+        private RuntimeException failure;
+
+        private Writer(final Session session) {
+            this.session = session;
+        }
+
+        /**
+         * Hand a record to the thread of this writer, waiting while it is busy.
+         *
+         * @param record the record
+         * @throws IOException if interrupted
+         */
+        private void put(final Record record) throws IOException {
+            try {
+                queue.put(record);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while importing access roles");
+            }
+        }
+
+        /**
+         * Apply the records handed to this writer until the end of the import. After an unexpected failure the
+         * remaining records are still taken, so that the reader is never blocked, and reported as failed.
+         *
+         * @return nothing
+         * @throws InterruptedException if interrupted
+         */
+        private Void drain() throws InterruptedException {
+            for (Record record = queue.take(); record != END; record = queue.take()) {
+                accept(record);
+            }
+            finish();
+            return null;
+        }
+
+        /**
+         * Apply a record, or report it as failed if this writer has been stopped.
+         *
+         * @param record the record
+         */
+        private void accept(final Record record) {
+            if (failure != null) {
+                report.failed(record, failure);
+                return;
+            }
+            try {
+                apply(record);
+            } catch (final RuntimeException e) {
+                stop(e);
+            }
+        }
+
+        /**
+         * Save the last batch, unless this writer has been stopped.
+         */
+        private void finish() {
+            if (failure != null) {
+                return;
+            }
+            try {
+                save();
+            } catch (final RuntimeException e) {
+                stop(e);
+            }
+        }
+
+        /**
+         * Stop applying records after an unexpected failure, reporting each record of the unsaved batch as failed.
+         * Its changes are left in the session, which is never saved again.
+         *
+         * @param cause the failure
+         */
+        private void stop(final RuntimeException cause) {
+            LOGGER.error("Access role import writer stopped, its remaining records fail", cause);
+            failure = cause;
+            for (final Record record : pending) {
+                report.failed(record, cause);
+            }
+            pending.clear();
+        }
+
+        /**
+         * Apply a record, saving the session once the batch is full.
+         *
+         * @param record the record
+         */
+        private void apply(final Record record) {
+            if (record.error != null) {
+                report.failed(record, record.error);
+                return;
+            }
+            try {
+                record.node = find(record.path);
+            } catch (final IllegalArgumentException | RepositoryException | RepositoryRuntimeException e) {
+                report.failed(record, e);
+                return;
+            }
+            pending.add(record);
+            try {
+                accessRolesProvider.postRoles(record.node, record.roles);
+            } catch (final IllegalArgumentException | RepositoryException | RepositoryRuntimeException e) {
+                // the roles may be partly written, and would otherwise be saved with the rest of the batch
+                discard(e);
+                return;
+            }
+            if (pending.size() >= batchSize) {
+                save();
+            }
+        }
+
+        private Node find(final String path) throws RepositoryException {
+            final FedoraResource resource = nodeService.find(session, path);
+            if (resource instanceof FedoraBinary) {
+                return ((FedoraBinary) resource).getDescription().getNode();
+            }
+            return resource.getNode();
+        }
+
+        /**
+         * Save the records of the batch.
+         */
+        private void save() {
+            if (pending.isEmpty()) {
+                return;
+            }
+            final List<Node> nodes = new ArrayList<>(pending.size());
+            for (final Record record : pending) {
+                nodes.add(record.node);
+            }
+            try {
+                final List<Lock> locks = AclWriteLocks.lock(nodes);
+                try {
+                    session.save();
+                } finally {
+                    AclWriteLocks.unlock(locks);
+                }
+            } catch (final RepositoryException | RepositoryRuntimeException e) {
+                discard(e);
+                return;
+            }
+            report.applied(pending.size());
+            try {
+                for (final Record record : pending) {
+                    accessRolesProvider.rolesSaved(record.node);
+                }
+            } catch (final RepositoryRuntimeException e) {
+                LOGGER.warn("Saved access roles may not be seen until their repository events arrive", e);
+            }
+            pending.clear();
+        }
+
+        /**
+         * Drop the unsaved changes of the batch, reporting each record in it as failed.
+         *
+         * @param cause why the batch failed
+         */
+        private void discard(final Exception cause) {
+            LOGGER.warn("Discarding a batch of {} access role records", pending.size(), cause);
+            try {
+                session.refresh(false);
+            } catch (final RepositoryException e) {
+                throw new RepositoryRuntimeException(e);
+            }
+            for (final Record record : pending) {
+                report.failed(record, cause);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Source of the records of an import.
+     */
+    interface RecordReader {
+
+        /**
+         * @return the next record, holding the error that made it unreadable if any, or null after the last record
+         * @throws IOException if the records cannot be read
+         */
+        Record next() throws IOException;
+    }
+
+    /**
+     * Reads records of one JSON object per line, naming a path and the roles to assign there:
+     *
+     * <pre>
+     * {"path": "/objects/1", "roles": {"alice": ["writer"], "EVERYONE": ["reader"]}}
+     * </pre>
+     */
+    static class JsonRecordReader implements RecordReader {
+
+        private final BufferedReader reader;
+
+        private int lineNumber;
+
+        /**
+         * @param reader the records
+         */
+        JsonRecordReader(final BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Record next() throws IOException {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final Record record = new Record(lineNumber);
+                try {
+                    final JsonNode json = MAPPER.readTree(line);
+                    if (json == null || !json.path("path").isTextual() || !json.path("roles").isObject()) {
+                        throw new IllegalArgumentException("Records must include a path and an object of roles");
+                    }
+                    record.path = json.get("path").asText();
+                    record.group = parent(record.path);
+                    record.roles = MAPPER.convertValue(json.get("roles"), ASSIGNMENTS);
+                    AccessRoles.validateAssignments(record.roles, false);
+                } catch (final IOException | IllegalArgumentException e) {
+                    record.error = e;
+                }
+                return record;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads records of one role assignment per row, with an optional header. Consecutive rows with the same path make
+     * up the record of that path, and fields holding commas are enclosed in double quotes:
+     *
+     * <pre>
+     * path,principal,role
+     * /objects/1,alice,writer
+     * /objects/1,EVERYONE,reader
+     * /objects/2,"CN=bob,O=example",admin
+     * </pre>
+     */
+    static class CsvRecordReader implements RecordReader {
+
+        private static final String[] HEADER = {"path", "principal", "role"};
+
+        private final BufferedReader reader;
+
+        private int lineNumber;
+
+        private int rowLine;
+
+        private String[] row;
+
+        /**
+         * @param reader the records
+         */
+        CsvRecordReader(final BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Record next() throws IOException {
+            if (row == null && !readRow()) {
+                return null;
+            }
+            final Record record = new Record(rowLine);
+            record.path = row[0];
+            record.group = parent(record.path);
+            if (!isValid(row)) {
+                record.error = new IllegalArgumentException("Rows must hold a path, a principal and a role");
+                row = null;
+                return record;
+            }
+            record.roles = new LinkedHashMap<>();
+            do {
+                record.roles.computeIfAbsent(row[1], p -> new LinkedHashSet<>()).add(row[2]);
+            } while (readRow() && isValid(row) && row[0].equals(record.path));
+            try {
+                AccessRoles.validateAssignments(record.roles, false);
+            } catch (final IllegalArgumentException e) {
+                record.error = e;
+            }
+            return record;
+        }
+
+        /**
+         * Read the next row that is neither blank nor the header.
+         *
+         * @return false after the last row
+         * @throws IOException if the records cannot be read
+         */
+        private boolean readRow() throws IOException {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                row = split(line);
+                rowLine = lineNumber;
+                if (rowLine == 1 && Arrays.equals(row, HEADER)) {
+                    continue;
+                }
+                return true;
+            }
+            row = null;
+            return false;
+        }
+
+        private static boolean isValid(final String[] fields) {
+            return fields.length == 3 && !fields[0].isEmpty() && !fields[1].isEmpty() && !fields[2].isEmpty();
+        }
+
+        /**
+         * @param line a row
+         * @return the fields of the row, unquoted
+         */
+        static String[] split(final String line) {
+            final List<String> fields = new ArrayList<>();
+            final StringBuilder field = new StringBuilder();
+            boolean quoted = false;
+            int i = 0;
+            while (i < line.length()) {
+                final char c = line.charAt(i++);
+                if (quoted && c == '"' && i < line.length() && line.charAt(i) == '"') {
+                    field.append(c);
+                    i++;
+                } else if (c == '"') {
+                    quoted = !quoted;
+                } else if (c == ',' && !quoted) {
+                    fields.add(field.toString().trim());
+                    field.setLength(0);
+                } else {
+                    field.append(c);
+                }
+            }
+            fields.add(field.toString().trim());
+            return fields.toArray(new String[fields.size()]);
+        }
+    }
+
+    /**
+     * Walks a subtree depth first, reading a record assigning the same roles for the root and for every repository
+     * resource below it. Only the children of the nodes being walked are held open, and neither access control nodes
+     * nor binary content are descended into.
+     */
+    static class SubtreeRecordReader implements RecordReader {
+
+        private final Map<String, Set<String>> roles;
+
+        private final Deque<NodeIterator> walk = new ArrayDeque<>();
+
+        private Node root;
+
+        /**
+         * @param root the root of the subtree
+         * @param roles the roles to assign
+         */
+        SubtreeRecordReader(final Node root, final Map<String, Set<String>> roles) {
+            this.root = root;
+            this.roles = roles;
+        }
+
+        @Override
+        public Record next() {
+            try {
+                Node node = root;
+                if (root != null) {
+                    descend(root);
+                    root = null;
+                }
+                while (node == null && !walk.isEmpty()) {
+                    final NodeIterator children = walk.peek();
+                    if (!children.hasNext()) {
+                        walk.pop();
+                        continue;
+                    }
+                    final Node child = children.nextNode();
+                    if (child.getName().equals(rbacl.getQualified()) || child.isNodeType(FEDORA_BINARY)) {
+                        continue;
+                    }
+                    descend(child);
+                    if (child.isNodeType(FEDORA_RESOURCE)) {
+                        node = child;
+                    }
+                }
+                if (node == null) {
+                    return null;
+                }
+                final Record record = new Record(0);
+                record.path = node.getPath();
+                record.group = record.path;
+                record.roles = roles;
+                return record;
+            } catch (final RepositoryException e) {
+                throw new RepositoryRuntimeException(e);
+            }
+        }
+
+        private void descend(final Node node) throws RepositoryException {
+            if (node.hasNodes()) {
+                walk.push(node.getNodes());
+            }
+        }
+    }
+
+    /**
+     * The roles to assign at one path.
+     */
+    static final class Record {
+
+        private final int line;
+
+        private String path;
+
+        private String group;
+
+        private Map<String, Set<String>> roles;
+
+        private Exception error;
+
+        private Node node;
+
+        private Record(final int line) {
+            this.line = line;
+        }
+    }
+
+    /**
+     * Counts the records applied and collects the errors of those that failed, from every writer.
+     */
+    private static class Report {
+
+        private final long start = System.nanoTime();
+
+        private int applied;
+
+        private int failed;
+
+        private final List<Map<String, Object>> errors = new ArrayList<>();
+
+        private synchronized void applied(final int count) {
+            applied += count;
+            AuthorizationMetrics.recordImported(count, true);
+        }
+
+        private synchronized void failed(final Record record, final Exception e) {
+            failed++;
+            AuthorizationMetrics.recordImported(1, false);
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                final Map<String, Object> error = new LinkedHashMap<>();
+                if (record.line > 0) {
+                    error.put("line", record.line);
+                }
+                error.put("path", record.path);
+                error.put("message", e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+                errors.add(error);
+            }
+        }
+
+        private double seconds() {
+            return (System.nanoTime() - start) / 1e9;
+        }
+
+        private synchronized long throughput() {
+            final double seconds = seconds();
+            return seconds > 0 ? Math.round(applied / seconds) : applied;
+        }
+
+        private synchronized Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("applied", applied);
+            map.put("failed", failed);
+            map.put("seconds", Math.round(seconds() * 1000) / 1000.0);
+            map.put("recordsPerSecond", throughput());
+            map.put("errors", errors);
+            return map;
+        }
+    }
+}
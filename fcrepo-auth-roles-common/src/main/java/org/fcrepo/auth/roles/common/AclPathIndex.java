@@ -0,0 +1,257 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.modeshape.jcr.value.Path;
+
+/**
+ * In-memory index of the paths of every node carrying an ACL, held as a trie of path segments so that the ACL
+ * governing any path is found by a longest-prefix match instead of repository reads. Lookups are lock-free; updates
+ * are expected to be rare and take the lock of the index, so that segments emptied by a removal are dropped without
+ * losing an ACL added below them at the same time.
+ *
+ * Paths are held in the expanded form produced by {@link Path#getString()}.
+ *
+ * @author whikloj
+ */
+public class AclPathIndex {
+
+    private final Segment root = new Segment();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private volatile boolean built = false;
+
+    /**
+     * Record that a node carries an ACL.
+     *
+     * @param aclPath the expanded path of the node
+     */
+    public synchronized void add(final String aclPath) {
+        Segment s = root;
+        for (final String name : split(aclPath)) {
+            s = s.children.computeIfAbsent(name, n -> new Segment());
+        }
+        if (s.aclPath == null) {
+            size.incrementAndGet();
+        }
+        s.aclPath = aclPath;
+    }
+
+    /**
+     * Record that a node no longer carries an ACL.
+     *
+     * @param aclPath the expanded path of the node
+     */
+    public synchronized void remove(final String aclPath) {
+        final List<Segment> segments = walk(aclPath);
+        if (segments == null) {
+            return;
+        }
+        final Segment s = segments.get(segments.size() - 1);
+        if (s.aclPath != null) {
+            size.decrementAndGet();
+        }
+        s.aclPath = null;
+        prune(segments, split(aclPath));
+    }
+
+    /**
+     * Record that neither a node nor any of its descendants carries an ACL, as when the node has been removed.
+     *
+     * @param path the expanded path of the node
+     */
+    public synchronized void removeSubtree(final String path) {
+        final List<String> names = split(path);
+        if (names.isEmpty()) {
+            remove(path);
+            return;
+        }
+        final List<Segment> segments = walk(path);
+        if (segments == null) {
+            return;
+        }
+        final Segment removed = segments.get(segments.size() - 2).children.remove(names.get(names.size() - 1));
+        size.addAndGet(-count(removed));
+        prune(segments.subList(0, segments.size() - 1), names.subList(0, names.size() - 1));
+    }
+
+    /**
+     * @param path the expanded path
+     * @return the segments from the root down to the path, or null if the index holds no segment for the path
+     */
+    private List<Segment> walk(final String path) {
+        final List<Segment> segments = new ArrayList<>();
+        Segment s = root;
+        segments.add(s);
+        for (final String name : split(path)) {
+            s = s.children.get(name);
+            if (s == null) {
+                return null;
+            }
+            segments.add(s);
+        }
+        return segments;
+    }
+
+    /**
+     * Drop the segments at the bottom of a branch that neither carry an ACL nor lead to one, so that the index does
+     * not keep growing as ACLs come and go. Callers hold the lock of the index, so no ACL is added below a segment
+     * while it is dropped.
+     *
+     * @param segments the segments from the root down
+     * @param names the names of the segments below the root
+     */
+    private static void prune(final List<Segment> segments, final List<String> names) {
+        for (int i = segments.size() - 1; i > 0; i--) {
+            final Segment s = segments.get(i);
+            if (s.aclPath != null || !s.children.isEmpty()) {
+                return;
+            }
+            segments.get(i - 1).children.remove(names.get(i - 1), s);
+        }
+    }
+
+    private static int count(final Segment s) {
+        int n = s.aclPath == null ? 0 : 1;
+        for (final Segment child : s.children.values()) {
+            n += count(child);
+        }
+        return n;
+    }
+
+    /**
+     * Find the nearest node at or above a path that carries an ACL.
+     *
+     * @param path the real or potential node path
+     * @return the expanded path of the node carrying the ACL, or null if there is none
+     */
+    public String find(final Path path) {
+        Segment s = root;
+        String aclPath = s.aclPath;
+        for (final Path.Segment segment : path) {
+            s = s.children.get(segment.getString());
+            if (s == null) {
+                break;
+            }
+            final String p = s.aclPath;
+            if (p != null) {
+                aclPath = p;
+            }
+        }
+        return aclPath;
+    }
+
+    /**
+     * Find the nearest node at or above a path that carries an ACL.
+     *
+     * @param path the expanded path
+     * @return the expanded path of the node carrying the ACL, or null if there is none
+     */
+    public String find(final String path) {
+        Segment s = root;
+        String aclPath = s.aclPath;
+        for (final String name : split(path)) {
+            s = s.children.get(name);
+            if (s == null) {
+                break;
+            }
+            final String p = s.aclPath;
+            if (p != null) {
+                aclPath = p;
+            }
+        }
+        return aclPath;
+    }
+
+    /**
+     * @return the number of paths in the index
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return the number of segments held below the root, including those of paths without an ACL
+     */
+    int segments() {
+        return countSegments(root);
+    }
+
+    private static int countSegments(final Segment s) {
+        int n = 0;
+        for (final Segment child : s.children.values()) {
+            n += 1 + countSegments(child);
+        }
+        return n;
+    }
+
+    /**
+     * @return true once the index has been populated from the repository
+     */
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Mark the index as populated from the repository, after which it may answer lookups.
+     */
+    public void setBuilt() {
+        this.built = true;
+    }
+
+    /**
+     * Split an expanded path into its segments, ignoring separators inside namespace URIs.
+     *
+     * @param path the expanded path
+     * @return the segments of the path
+     */
+    static List<String> split(final String path) {
+        final List<String> segments = new ArrayList<>();
+        int start = 0;
+        int depth = 0;
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+            } else if (c == '/' && depth == 0) {
+                if (i > start) {
+                    segments.add(path.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+        if (start < path.length()) {
+            segments.add(path.substring(start));
+        }
+        return segments;
+    }
+
+    private static final class Segment {
+
+        private final ConcurrentMap<String, Segment> children = new ConcurrentHashMap<>();
+
+        private volatile String aclPath;
+    }
+}
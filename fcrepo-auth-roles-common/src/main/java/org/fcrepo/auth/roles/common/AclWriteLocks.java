@@ -0,0 +1,72 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Locks serializing the saving of access roles per node within this repository instance. A conditional write holds
+ * the lock of its node from comparing the roles last saved to saving its own, so no other write of those roles made
+ * through this instance can be saved in between.
+ *
+ * @author whikloj
+ */
+final class AclWriteLocks {
+
+    private static final Striped<Lock> LOCKS = Striped.lock(64);
+
+    private AclWriteLocks() {
+    }
+
+    /**
+     * Acquire the locks of some nodes, in an order shared by every caller so that batches cannot deadlock.
+     *
+     * @param nodes the nodes whose roles are about to be saved
+     * @return the locks acquired, to be given back to {@link #unlock(List)}
+     * @throws RepositoryException if the identifier of a node cannot be read
+     */
+    static List<Lock> lock(final Collection<Node> nodes) throws RepositoryException {
+        final List<String> ids = new ArrayList<>(nodes.size());
+        for (final Node node : nodes) {
+            ids.add(node.getIdentifier());
+        }
+        final List<Lock> locks = new ArrayList<>(ids.size());
+        for (final Lock lock : LOCKS.bulkGet(ids)) {
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    /**
+     * Release locks acquired by {@link #lock(Collection)}.
+     *
+     * @param locks the locks acquired
+     */
+    static void unlock(final List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+}
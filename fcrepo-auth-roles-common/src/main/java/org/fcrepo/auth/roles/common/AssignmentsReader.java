@@ -0,0 +1,131 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads the role assignments of a JSON object of role names keyed by principal one principal at a time, so that
+ * the roles of only the principal being read are held in memory. The parser still keeps the name of every principal
+ * read, to detect duplicates. Each assignment is validated as it is read, and the next assignment is read ahead so that
+ * a malformed first assignment is reported before anything is written.
+ *
+ * @author whikloj
+ */
+class AssignmentsReader implements Iterator<Map.Entry<String, Set<String>>>, AutoCloseable {
+
+    private static final JsonFactory FACTORY =
+            new JsonFactory().enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+
+    private final JsonParser parser;
+
+    private Map.Entry<String, Set<String>> next;
+
+    private boolean started = false;
+
+    private boolean done = false;
+
+    /**
+     * @param body the JSON object
+     */
+    AssignmentsReader(final InputStream body) {
+        try {
+            this.parser = FACTORY.createParser(body);
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the next assignment is malformed or invalid
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            try {
+                next = read();
+            } catch (final JsonProcessingException e) {
+                throw new IllegalArgumentException("Malformed access roles: " + e.getOriginalMessage(), e);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            done = next == null;
+        }
+        return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, Set<String>> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Map.Entry<String, Set<String>> entry = next;
+        next = null;
+        return entry;
+    }
+
+    private Map.Entry<String, Set<String>> read() throws IOException {
+        if (!started) {
+            started = true;
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Access roles must be a JSON object");
+            }
+        }
+        final JsonToken token = parser.nextToken();
+        if (token == JsonToken.END_OBJECT) {
+            if (parser.nextToken() != null) {
+                throw new IllegalArgumentException("Unexpected content after the access roles");
+            }
+            return null;
+        }
+        final String principal = parser.getCurrentName();
+        final Set<String> roles = new HashSet<>();
+        if (parser.nextToken() == JsonToken.START_ARRAY) {
+            for (JsonToken t = parser.nextToken(); t != JsonToken.END_ARRAY; t = parser.nextToken()) {
+                if (t != JsonToken.VALUE_STRING) {
+                    throw new IllegalArgumentException("Role names must be strings");
+                }
+                roles.add(parser.getText());
+            }
+        } else if (parser.getCurrentToken() != JsonToken.VALUE_NULL) {
+            throw new IllegalArgumentException("The roles of each principal must be an array");
+        }
+        AccessRoles.validateAssignment(principal, roles, false);
+        return new SimpleImmutableEntry<>(principal, roles);
+    }
+
+    @Override
+    public void close() {
+        try {
+            parser.close();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
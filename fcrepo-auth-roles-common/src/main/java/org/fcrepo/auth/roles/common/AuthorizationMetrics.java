@@ -0,0 +1,189 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+import org.fcrepo.metrics.RegistryService;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics of authorization decisions, held in the repository-wide registry so that they are reported by the
+ * reporters configured through {@code org.fcrepo.metrics.MetricsConfig}.
+ *
+ * @author whikloj
+ */
+public final class AuthorizationMetrics {
+
+    static final MetricRegistry registry = RegistryService.getInstance().getMetrics();
+
+    private static final Class<?> DELEGATE = AbstractRolesAuthorizationDelegate.class;
+
+    private static final Class<?> PROVIDER = RbAclAccessRolesProvider.class;
+
+    private static final String NO_ROLES = "none";
+
+    private static final String OTHER_ROLES = "other";
+
+    private static final Set<String> meteredRoles = ConcurrentHashMap.newKeySet();
+
+    private static final ConcurrentMap<String, Timer> permissionTimers = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, Meter> grantMeters = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, Meter> denialMeters = new ConcurrentHashMap<>();
+
+    private static final Timer findRolesTimer = registry.timer(name(PROVIDER, "findRolesForPath"));
+
+    private static final Histogram walkDepth = registry.histogram(name(PROVIDER, "findRolesForPath", "walk-depth"));
+
+    private static final Timer removeCheckTimer = registry.timer(name(DELEGATE, "remove-check"));
+
+    private static final Histogram removeCheckNodes =
+            registry.histogram(name(DELEGATE, "remove-check", "nodes-visited"));
+
+    private static final Meter importApplied = registry.meter(name(BulkAccessRoles.class, "records", "applied"));
+
+    private static final Meter importFailed = registry.meter(name(BulkAccessRoles.class, "records", "failed"));
+
+    private AuthorizationMetrics() {
+    }
+
+    /**
+     * @param actions the requested actions
+     * @return the latency timer of permission checks for those actions
+     */
+    public static Timer permissionTimer(final String[] actions) {
+        final String action = actions.length == 1 ? actions[0] : String.join(",", actions);
+        return permissionTimers.computeIfAbsent(action, a -> registry.timer(name(DELEGATE, "hasPermission", a)));
+    }
+
+    /**
+     * @return the latency timer of effective role lookups
+     */
+    public static Timer findRolesTimer() {
+        return findRolesTimer;
+    }
+
+    /**
+     * @return the latency timer of the checks that the descendants of a node may be removed
+     */
+    public static Timer removeCheckTimer() {
+        return removeCheckTimer;
+    }
+
+    /**
+     * Record how many ancestors were visited to find the node carrying the effective roles of a node.
+     *
+     * @param depth number of ancestors visited
+     */
+    public static void recordWalkDepth(final int depth) {
+        walkDepth.update(depth);
+    }
+
+    /**
+     * Record how many descendants were visited to check that a node may be removed.
+     *
+     * @param nodes number of descendants visited
+     */
+    public static void recordRemoveCheckNodes(final long nodes) {
+        removeCheckNodes.update(nodes);
+    }
+
+    /**
+     * Record access role records applied or failed by a bulk import.
+     *
+     * @param count number of records
+     * @param applied true if the records were applied
+     */
+    public static void recordImported(final long count, final boolean applied) {
+        (applied ? importApplied : importFailed).mark(count);
+    }
+
+    /**
+     * Give the decisions made for some roles meters of their own. Roles are named by ACL content, which any ACL
+     * writer controls, so only the roles that delegates define are metered apart.
+     *
+     * @param roles the roles a delegate defines
+     */
+    public static void meterRoles(final Collection<String> roles) {
+        meteredRoles.addAll(roles);
+    }
+
+    /**
+     * Record a permission decision against each metered role it was made for, and once against "other" if it was
+     * made for any other role.
+     *
+     * @param roles the effective roles of the request
+     * @param granted true if permission was granted
+     */
+    public static void recordDecision(final Set<String> roles, final boolean granted) {
+        final ConcurrentMap<String, Meter> meters = granted ? grantMeters : denialMeters;
+        final String outcome = granted ? "granted" : "denied";
+        if (roles.isEmpty()) {
+            meter(meters, NO_ROLES, outcome).mark();
+            return;
+        }
+        boolean other = false;
+        for (final String role : roles) {
+            if (meteredRoles.contains(role)) {
+                meter(meters, role, outcome).mark();
+            } else {
+                other = true;
+            }
+        }
+        if (other) {
+            meter(meters, OTHER_ROLES, outcome).mark();
+        }
+    }
+
+    private static Meter meter(final ConcurrentMap<String, Meter> meters, final String role, final String outcome) {
+        return meters.computeIfAbsent(role, r -> registry.meter(name(DELEGATE, "decisions", r, outcome)));
+    }
+
+    /**
+     * Register a gauge of the hit ratio of a cache, replacing any gauge of the same name.
+     *
+     * @param owner the class owning the cache
+     * @param cacheName the name of the cache
+     * @param hits supplies the number of hits
+     * @param misses supplies the number of misses
+     */
+    public static void registerHitRatio(final Class<?> owner, final String cacheName, final LongSupplier hits,
+            final LongSupplier misses) {
+        final String gaugeName = name(owner, cacheName, "hit-ratio");
+        registry.remove(gaugeName);
+        registry.register(gaugeName, new RatioGauge() {
+
+            @Override
+            protected Ratio getRatio() {
+                final long h = hits.getAsLong();
+                return Ratio.of(h, h + misses.getAsLong());
+            }
+        });
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.jcr.Session;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+
+/**
+ * Internal sessions dedicated to reading access roles, one per thread. A thread keeps its session across permission
+ * checks instead of opening a new one for each, and every session is logged out when the owner shuts down. Each
+ * session is tracked with a weak reference to its thread, and the sessions of threads that have died, as when a
+ * container retires pooled threads, are logged out whenever another session is opened.
+ *
+ * The sessions are only read from. A session without pending changes already sees every change saved through other
+ * sessions, so the sessions are not refreshed, which would discard the nodes they have cached.
+ *
+ * @author whikloj
+ */
+class AuthorizationSessions {
+
+    private final SessionFactory sessionFactory;
+
+    private final ThreadLocal<Session> current = new ThreadLocal<>();
+
+    private final ConcurrentMap<Session, WeakReference<Thread>> opened = new ConcurrentHashMap<>();
+
+    /**
+     * @param sessionFactory the source of internal sessions
+     */
+    AuthorizationSessions(final SessionFactory sessionFactory) {
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * Get the session of the calling thread, opening it on first use or if it has been logged out.
+     *
+     * @return the session
+     */
+    Session getSession() {
+        Session session = current.get();
+        if (session != null && session.isLive()) {
+            return session;
+        }
+        if (session != null) {
+            opened.remove(session);
+        }
+        logoutAbandoned();
+        session = sessionFactory.getInternalSession();
+        current.set(session);
+        opened.put(session, new WeakReference<>(Thread.currentThread()));
+        return session;
+    }
+
+    /**
+     * Log out the sessions of threads that have died, which can no longer use them.
+     */
+    private void logoutAbandoned() {
+        for (final Map.Entry<Session, WeakReference<Thread>> entry : opened.entrySet()) {
+            final Thread owner = entry.getValue().get();
+            if ((owner == null || !owner.isAlive()) && opened.remove(entry.getKey(), entry.getValue())) {
+                entry.getKey().logout();
+            }
+        }
+    }
+
+    /**
+     * @return the number of sessions open
+     */
+    int size() {
+        return opened.size();
+    }
+
+    /**
+     * Log out every session.
+     */
+    void close() {
+        for (final Session session : opened.keySet()) {
+            if (opened.remove(session) != null) {
+                session.logout();
+            }
+        }
+    }
+}
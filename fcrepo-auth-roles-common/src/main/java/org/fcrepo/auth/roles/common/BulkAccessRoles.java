@@ -0,0 +1,277 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static javax.jcr.PropertyType.PATH;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.jcr.AccessDeniedException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.ValueFormatException;
+import javax.jcr.query.Query;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.fcrepo.auth.roles.common.AclImport.CsvRecordReader;
+import org.fcrepo.auth.roles.common.AclImport.JsonRecordReader;
+import org.fcrepo.auth.roles.common.AclImport.RecordReader;
+import org.fcrepo.http.commons.AbstractResource;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.jvnet.hk2.annotations.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Scope;
+
+import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * RESTful interface to assign access roles to many resources at once. The request body holds one JSON record per
+ * line, each naming a repository path and the roles to assign there:
+ *
+ * <pre>
+ * {"path": "/objects/1", "roles": {"alice": ["writer"], "EVERYONE": ["reader"]}}
+ * {"path": "/objects/2", "roles": {"bob": ["admin"]}}
+ * </pre>
+ *
+ * Records are read one at a time and applied in batches, saving the session once per batch. A record that cannot be
+ * parsed or applied is reported and skipped; if a batch cannot be written, every record in it is reported and the
+ * following batches are still applied. The same assignments may be posted as CSV rows of path, principal and role,
+ * and several writers may apply the records in parallel, each with a session of its own.
+ *
+ * The access roles of every resource are exported in the same format, each record also carrying the cursor from
+ * which an interrupted export resumes after it.
+ *
+ * @author whikloj
+ */
+@Scope("request")
+@Path("/fcr:bulkaccessroles")
+public class BulkAccessRoles extends AbstractResource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkAccessRoles.class);
+
+    public static final String NDJSON = "application/x-ndjson";
+
+    public static final String CSV = "text/csv";
+
+    static final int MAX_WORKERS = 16;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Inject
+    protected Session session;
+
+    @Inject
+    @Optional
+    private AccessRolesProvider accessRolesProvider;
+
+    @Inject
+    private SessionFactory sessionFactory;
+
+    @Context
+    private HttpServletRequest servletRequest;
+
+    /**
+     * Apply role assignments to every resource named in the request body.
+     *
+     * @param batchSize number of records applied per save
+     * @param workers number of writers applying records in parallel, each with its own session
+     * @param body the records, one per line
+     * @return a report of the records applied and of those that failed
+     * @throws IOException if the request body cannot be read
+     */
+    @POST
+    @Consumes({NDJSON, APPLICATION_JSON})
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response post(@QueryParam("batchSize") @DefaultValue("500") final int batchSize,
+            @QueryParam("workers") @DefaultValue("1") final int workers, final InputStream body) throws IOException {
+        return importRecords(batchSize, workers, body, JsonRecordReader::new);
+    }
+
+    /**
+     * Apply role assignments to every resource named in the request body, one assignment per row.
+     *
+     * @param batchSize number of records applied per save
+     * @param workers number of writers applying records in parallel, each with its own session
+     * @param body the rows of path, principal and role
+     * @return a report of the records applied and of those that failed
+     * @throws IOException if the request body cannot be read
+     */
+    @POST
+    @Consumes(CSV)
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response postCsv(@QueryParam("batchSize") @DefaultValue("500") final int batchSize,
+            @QueryParam("workers") @DefaultValue("1") final int workers, final InputStream body) throws IOException {
+        return importRecords(batchSize, workers, body, CsvRecordReader::new);
+    }
+
+    private Response importRecords(final int batchSize, final int workers, final InputStream body,
+            final Function<BufferedReader, RecordReader> format) throws IOException {
+        if (batchSize < 1) {
+            throw new WebApplicationException(Response.status(Status.BAD_REQUEST)
+                    .entity("Batch size must be positive").build());
+        }
+        if (workers < 1 || workers > MAX_WORKERS) {
+            throw new WebApplicationException(Response.status(Status.BAD_REQUEST)
+                    .entity("Workers must be between 1 and " + MAX_WORKERS).build());
+        }
+        final List<Session> sessions = new ArrayList<>(workers);
+        sessions.add(session);
+        try (final BufferedReader reader = new BufferedReader(new InputStreamReader(body, UTF_8))) {
+            while (sessions.size() < workers) {
+                sessions.add(sessionFactory.getSession(servletRequest));
+            }
+            final AclImport aclImport = new AclImport(nodeService, accessRolesProvider, batchSize);
+            return Response.ok(aclImport.run(format.apply(reader), sessions)).build();
+        } finally {
+            sessions.forEach(Session::logout);
+        }
+    }
+
+    /**
+     * Export the access roles of every resource that carries any, one record per line, as they are read.
+     *
+     * @param cursor the cursor of the last record received by an earlier export, to resume after it
+     * @return the records
+     */
+    @GET
+    @Produces(NDJSON)
+    @Timed
+    public Response get(@QueryParam("cursor") final String cursor) {
+        try {
+            // a cursor that cannot be read would otherwise fail the export after its status has been sent
+            if (cursor != null && (!cursor.startsWith("/") || !isPath(cursor))) {
+                throw new WebApplicationException(Response.status(Status.BAD_REQUEST)
+                        .entity("Cursor must be the path of an exported record").build());
+            }
+        } finally {
+            session.logout();
+        }
+        return Response.ok((StreamingOutput) out -> {
+            final Session exportSession = sessionFactory.getSession(servletRequest);
+            try {
+                export(out, cursor, exportSession);
+            } finally {
+                exportSession.logout();
+            }
+        }).build();
+    }
+
+    /**
+     * @param cursor a cursor given by the client
+     * @return true if the cursor is a path the repository can read
+     */
+    private boolean isPath(final String cursor) {
+        try {
+            session.getValueFactory().createValue(cursor, PATH);
+            return true;
+        } catch (final ValueFormatException e) {
+            LOGGER.debug("Invalid export cursor: {}", e.getMessage());
+            return false;
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+    }
+
+    /**
+     * Write a record for each node carrying access roles, in path order. The cursor of a record is the path of its
+     * node, and a resumed export continues with the nodes whose paths follow it, so it neither repeats nor skips the
+     * nodes that kept their access roles in between.
+     *
+     * @param out the response body
+     * @param cursor the path of the last node exported earlier, or null to export from the start
+     * @param exportSession the session reading the access roles, opened only once the response is written
+     * @throws IOException if the response cannot be written
+     */
+    void export(final OutputStream out, final String cursor, final Session exportSession) throws IOException {
+        long exported = 0;
+        try (final JsonGenerator generator = MAPPER.getFactory().createGenerator(out)) {
+            generator.setRootValueSeparator(new SerializedString("\n"));
+            final Query query = exportSession.getWorkspace().getQueryManager().createQuery(
+                    "SELECT * FROM [" + rbaclAssignable.getQualified() + "] AS n" +
+                            (cursor == null ? "" : " WHERE n.[jcr:path] > $cursor") + " ORDER BY n.[jcr:path]",
+                    Query.JCR_SQL2);
+            if (cursor != null) {
+                query.bindValue("cursor", exportSession.getValueFactory().createValue(cursor, PATH));
+            }
+            for (final NodeIterator nodes = query.execute().getNodes(); nodes.hasNext();) {
+                final Node node = nodes.nextNode();
+                final Map<String, List<String>> roles = readRoles(node);
+                if (roles == null || roles.isEmpty()) {
+                    continue;
+                }
+                generator.writeStartObject();
+                generator.writeStringField("path", node.getPath());
+                generator.writeObjectField("roles", roles);
+                generator.writeStringField("cursor", node.getPath());
+                generator.writeEndObject();
+                exported++;
+            }
+            generator.writeRaw('\n');
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+        LOGGER.info("Exported the access roles of {} resources", exported);
+    }
+
+    /**
+     * @param node a node carrying access roles
+     * @return the roles assigned at the node, or null if the current user may not read them
+     */
+    private Map<String, List<String>> readRoles(final Node node) {
+        try {
+            return accessRolesProvider.getRoles(node, false);
+        } catch (final RepositoryRuntimeException e) {
+            if (e.getCause() instanceof AccessDeniedException) {
+                LOGGER.debug("Skipping access roles that may not be read: {}", e.getMessage());
+                return null;
+            }
+            throw e;
+        }
+    }
+}
@@ -42,7 +42,7 @@ public class Constants {
      */
     public static enum JcrName {
         rbaclAssignable(), Rbacl(), Assignment(), rbacl(), assignment(),
-        principal(), role();
+        principal(), role(), assignments(), revision();
 
         private String expandedName;
 
@@ -100,7 +100,9 @@ public class Constants {
     }
 
     /**
-     * Adds access roles prefix "authz" to the given session.
+     * Adds access roles prefix "authz" to the given session. Not needed when using {@link JcrName#getExpanded()}, and
+     * not needed for qualified names unless the session has remapped the prefix, since the prefix is registered with
+     * the repository along with the access roles node types.
      * @param session session
      * @throws RepositoryException if repository exception occurred
      */
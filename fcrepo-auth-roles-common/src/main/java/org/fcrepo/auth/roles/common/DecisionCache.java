@@ -0,0 +1,154 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Short-lived memo of permission decisions. Decisions are grouped by the principal set of a session, which is held
+ * weakly and compared by identity, so the memo lives no longer than the session that produced it. Within a session,
+ * decisions are keyed by the path of the governing ACL, the {@link AccessRolesProvider#getRolesVersion() version} of
+ * the roles known to the provider, a delegate-defined scope and the requested actions. Keying on the version means a
+ * decision made before an ACL changed is not found again once the provider has seen the change.
+ *
+ * @author whikloj
+ */
+public class DecisionCache {
+
+    private final Cache<Set<Principal>, ConcurrentMap<Key, Boolean>> decisions;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param expireSeconds seconds after which the decisions made for a principal set are discarded
+     */
+    public DecisionCache(final long expireSeconds) {
+        this.decisions = CacheBuilder.newBuilder().weakKeys().expireAfterWrite(expireSeconds, SECONDS).build();
+    }
+
+    /**
+     * Look up a decision.
+     *
+     * @param principals the principal set of the session
+     * @param aclPath the path of the governing ACL, or null if there is none
+     * @param version the version of the roles the decision is made against
+     * @param scope the scope of the decision within that ACL
+     * @param actions the requested actions
+     * @return the decision, or null if it has not been made yet
+     */
+    public Boolean get(final Set<Principal> principals, final String aclPath, final long version,
+            final String scope, final String[] actions) {
+        final ConcurrentMap<Key, Boolean> memo = decisions.getIfPresent(principals);
+        final Boolean decision = memo == null ? null : memo.get(new Key(aclPath, version, scope, actions));
+        if (decision == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return decision;
+    }
+
+    /**
+     * Record a decision.
+     *
+     * @param principals the principal set of the session
+     * @param aclPath the path of the governing ACL, or null if there is none
+     * @param version the version of the roles the decision was made against
+     * @param scope the scope of the decision within that ACL
+     * @param actions the requested actions
+     * @param decision the decision
+     */
+    public void put(final Set<Principal> principals, final String aclPath, final long version, final String scope,
+            final String[] actions, final boolean decision) {
+        try {
+            decisions.get(principals, ConcurrentHashMap::new).put(new Key(aclPath, version, scope, actions),
+                    decision);
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of lookups answered from the memo
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that required a full evaluation
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Discard all decisions.
+     */
+    public void invalidateAll() {
+        decisions.invalidateAll();
+    }
+
+    private static final class Key {
+
+        private final String aclPath;
+
+        private final long version;
+
+        private final String scope;
+
+        private final String[] actions;
+
+        private final int hash;
+
+        private Key(final String aclPath, final long version, final String scope, final String[] actions) {
+            this.aclPath = aclPath;
+            this.version = version;
+            this.scope = scope;
+            this.actions = actions;
+            this.hash = Objects.hash(aclPath, version, scope) * 31 + Arrays.hashCode(actions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return hash == other.hash && version == other.version && Objects.equals(aclPath, other.aclPath) &&
+                    Objects.equals(scope, other.scope) && Arrays.equals(actions, other.actions);
+        }
+    }
+}
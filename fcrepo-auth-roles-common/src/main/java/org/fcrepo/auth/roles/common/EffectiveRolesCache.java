@@ -0,0 +1,340 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * Bounded cache of effective role assignments. Resolved paths are mapped to the path of the nearest node carrying
+ * an ACL, and each ACL-bearing path is mapped to its role assignments along with the paths it has been found to
+ * govern, so descendants governed by the same ACL share a single entry and the change of one ACL discards only the
+ * paths it governs.
+ *
+ * Paths are keyed in the expanded form produced by {@link org.modeshape.jcr.value.Path#getString()}. Role
+ * assignments are held as {@link RoleAssignments}, so that the roles of a request are resolved from them by principal
+ * id.
+ *
+ * @author whikloj
+ */
+public class EffectiveRolesCache {
+
+    /**
+     * Marks a path for which no ancestor carries an ACL.
+     */
+    private static final String NO_ACL = "";
+
+    private final Cache<String, String> aclPaths;
+
+    private final Cache<String, AclEntry> acls;
+
+    /**
+     * @param maximumSize maximum number of entries held in each of the path and ACL maps
+     * @param expireSeconds seconds after which an entry is discarded, bounding staleness from changes made outside
+     *        of the {@link AccessRolesProvider}
+     */
+    public EffectiveRolesCache(final long maximumSize, final long expireSeconds) {
+        this.aclPaths = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(expireSeconds, SECONDS).recordStats()
+                .removalListener(this::pathRemoved).build();
+        this.acls = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(expireSeconds, SECONDS)
+                .removalListener(this::aclRemoved).build();
+    }
+
+    /**
+     * Stop tracking a path discarded from the path map as governed by its ACL.
+     *
+     * @param removal the discarded path and the path of its ACL
+     */
+    private void pathRemoved(final RemovalNotification<String, String> removal) {
+        final AclEntry entry = acls.getIfPresent(removal.getValue());
+        if (entry != null) {
+            entry.paths.remove(removal.getKey());
+        }
+    }
+
+    /**
+     * Discard the paths governed by an ACL discarded from the ACL map, which could otherwise be found again once the
+     * ACL is cached anew even though they may have come under another ACL in the meantime.
+     *
+     * @param removal the discarded ACL
+     */
+    private void aclRemoved(final RemovalNotification<String, AclEntry> removal) {
+        aclPaths.invalidateAll(removal.getValue().paths);
+    }
+
+    /**
+     * @return the number of path lookups answered by the cache
+     */
+    public long getHitCount() {
+        return aclPaths.stats().hitCount();
+    }
+
+    /**
+     * @return the number of path lookups the cache could not answer
+     */
+    public long getMissCount() {
+        return aclPaths.stats().missCount();
+    }
+
+    /**
+     * Look up the effective roles for a path.
+     *
+     * @param path the expanded path
+     * @return the cached entry, or null if the path is not cached
+     */
+    public Entry get(final String path) {
+        final String aclPath = aclPaths.getIfPresent(path);
+        if (aclPath == null) {
+            return null;
+        }
+        final AclEntry entry = acls.getIfPresent(aclPath);
+        if (entry == null || !entry.paths.contains(path)) {
+            // the path was resolved before its ACL was last discarded
+            return null;
+        }
+        return aclPath.equals(NO_ACL) ? new Entry(null, null) : new Entry(aclPath, entry.roles);
+    }
+
+    /**
+     * Look up the role assignments of an ACL-bearing node.
+     *
+     * @param aclPath the expanded path of the node carrying the ACL
+     * @return the cached role assignments, or null if they are not cached
+     */
+    public RoleAssignments getRoles(final String aclPath) {
+        final AclEntry entry = acls.getIfPresent(aclPath);
+        return entry == null ? null : entry.roles;
+    }
+
+    /**
+     * Record the effective roles resolved for a path.
+     *
+     * @param path the expanded path that was resolved
+     * @param aclPath the expanded path of the node carrying the ACL, or null if no ancestor carries one
+     * @param roles the role assignments of that node
+     * @return the role assignments as held by the cache
+     */
+    public RoleAssignments put(final String path, final String aclPath,
+            final Map<String, List<String>> roles) {
+        final String key = aclPath == null ? NO_ACL : aclPath;
+        final AclEntry entry;
+        try {
+            entry = acls.get(key, () -> new AclEntry(aclPath == null ? null : RoleAssignments.of(roles)));
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+        // a path mapped anew stops being tracked by the ACL it was mapped to, so it is tracked again after mapping
+        if (aclPath != null) {
+            aclPaths.put(aclPath, aclPath);
+            entry.paths.add(aclPath);
+        }
+        aclPaths.put(path, key);
+        entry.paths.add(path);
+        return entry.roles;
+    }
+
+    /**
+     * Discard the ACL of a node along with every path it may govern: the paths it was found to govern, and the paths
+     * below it found to be governed by an ancestor, which it now governs instead if it has gained an ACL. The ACLs of
+     * descendants are kept. Called once a node has gained, changed or lost its role assignments and the change has
+     * been saved.
+     *
+     * @param aclPath the expanded path of the modified node
+     */
+    public void invalidate(final String aclPath) {
+        acls.invalidate(aclPath);
+        final List<String> segments = AclPathIndex.split(aclPath);
+        final StringBuilder ancestor = new StringBuilder();
+        invalidateBelow(NO_ACL, aclPath);
+        invalidateBelow("/", aclPath);
+        for (final String segment : segments.subList(0, Math.max(segments.size() - 1, 0))) {
+            ancestor.append('/').append(segment);
+            invalidateBelow(ancestor.toString(), aclPath);
+        }
+    }
+
+    /**
+     * Discard what is cached of a node and its descendants, as when the node has been removed or moved: their ACLs,
+     * along with every path those may govern, and the paths below the node governed by an ancestor.
+     *
+     * @param path the expanded path of the node
+     */
+    public void invalidateSubtree(final String path) {
+        invalidate(path);
+        acls.invalidateAll(acls.asMap().keySet().stream().filter(p -> !p.equals(NO_ACL) && isSameOrDescendant(p,
+                path)).collect(toList()));
+    }
+
+    /**
+     * Discard the paths at or below a path that an ACL was found to govern.
+     *
+     * @param governing the expanded path of the node carrying the ACL, or {@link #NO_ACL}
+     * @param path the expanded path
+     */
+    private void invalidateBelow(final String governing, final String path) {
+        final AclEntry entry = acls.getIfPresent(governing);
+        if (entry != null) {
+            aclPaths.invalidateAll(entry.paths.stream().filter(p -> !p.equals(governing) &&
+                    isSameOrDescendant(p, path)).collect(toList()));
+        }
+    }
+
+    /**
+     * Discard all entries.
+     */
+    public void invalidateAll() {
+        acls.invalidateAll();
+        aclPaths.invalidateAll();
+    }
+
+    private static boolean isSameOrDescendant(final String path, final String ancestor) {
+        if (ancestor.equals("/")) {
+            return true;
+        }
+        return path.startsWith(ancestor) &&
+                (path.length() == ancestor.length() || path.charAt(ancestor.length()) == '/');
+    }
+
+    /**
+     * Get the cache key for a node, expanding namespace prefixes in its qualified path so that it matches the keys
+     * derived from ModeShape paths.
+     *
+     * @param node the node
+     * @return the expanded path of the node
+     * @throws RepositoryException if the path or a namespace cannot be resolved
+     */
+    public static String pathKey(final Node node) throws RepositoryException {
+        return pathKey(node.getPath(), node.getSession());
+    }
+
+    /**
+     * Get the cache key for a path, expanding the namespace prefixes of a session.
+     *
+     * @param path the qualified path
+     * @param session the session whose namespace prefixes the path uses
+     * @return the expanded path
+     * @throws RepositoryException if a namespace cannot be resolved
+     */
+    public static String pathKey(final String path, final Session session) throws RepositoryException {
+        if (path.indexOf(':') < 0) {
+            return path;
+        }
+        final StringBuilder key = new StringBuilder(path.length() + 64);
+        for (final String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            key.append('/');
+            final int colon = segment.indexOf(':');
+            if (colon > 0 && segment.charAt(0) != '{') {
+                key.append('{').append(session.getNamespaceURI(segment.substring(0, colon))).append('}')
+                        .append(segment.substring(colon + 1));
+            } else {
+                key.append(segment);
+            }
+        }
+        return key.length() == 0 ? "/" : key.toString();
+    }
+
+    /**
+     * Get the path named by a cache key, using the namespace prefixes of a session. The inverse of
+     * {@link #pathKey(String, Session)}.
+     *
+     * @param key the expanded path
+     * @param session the session whose namespace prefixes the path should use
+     * @return the qualified path
+     * @throws RepositoryException if a namespace has no prefix
+     */
+    public static String qualifiedPath(final String key, final Session session) throws RepositoryException {
+        if (key.indexOf('{') < 0) {
+            return key;
+        }
+        final StringBuilder path = new StringBuilder(key.length());
+        for (final String segment : AclPathIndex.split(key)) {
+            path.append('/');
+            final int close = segment.indexOf('}');
+            if (segment.charAt(0) == '{' && close > 0) {
+                final String prefix = session.getNamespacePrefix(segment.substring(1, close));
+                if (!prefix.isEmpty()) {
+                    path.append(prefix).append(':');
+                }
+                path.append(segment.substring(close + 1));
+            } else {
+                path.append(segment);
+            }
+        }
+        return path.length() == 0 ? "/" : path.toString();
+    }
+
+    /**
+     * Effective roles for a path, as held by the cache.
+     */
+    public static class Entry {
+
+        private final String aclPath;
+
+        private final RoleAssignments roles;
+
+        private Entry(final String aclPath, final RoleAssignments roles) {
+            this.aclPath = aclPath;
+            this.roles = roles;
+        }
+
+        /**
+         * @return the expanded path of the node carrying the ACL, or null if no ancestor carries one
+         */
+        public String getAclPath() {
+            return aclPath;
+        }
+
+        /**
+         * @return the role assignments for each principal, or null if no ancestor carries an ACL
+         */
+        public RoleAssignments getRoles() {
+            return roles;
+        }
+    }
+
+    /**
+     * The role assignments of an ACL, or of no ACL, and the paths found to be governed by it.
+     */
+    private static final class AclEntry {
+
+        private final RoleAssignments roles;
+
+        private final Set<String> paths = ConcurrentHashMap.newKeySet();
+
+        private AclEntry(final RoleAssignments roles) {
+            this.roles = roles;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.fcrepo.auth.roles.common.AbstractRolesAuthorizationDelegate.resolveRoles;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks that every descendant of a node may be removed, splitting the subtree across a fork-join pool. Each worker
+ * thread reads through its own authorization session, and the first denial stops all remaining work: tasks already
+ * running see the shared flag and return, and a task returning early cancels the tasks it forked that have not
+ * started.
+ *
+ * @author whikloj
+ */
+class ParallelRemoveCheck {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelRemoveCheck.class);
+
+    private static final String[] REMOVE_ACTIONS = {"remove"};
+
+    private final AbstractRolesAuthorizationDelegate delegate;
+
+    private final AccessRolesProvider accessRolesProvider;
+
+    private final AuthorizationSessions authorizationSessions;
+
+    private final Session userSession;
+
+    private final Set<Principal> allPrincipals;
+
+    private final AtomicBoolean denied = new AtomicBoolean(false);
+
+    private final ConcurrentMap<Thread, Session> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong visited;
+
+    /**
+     * @param delegate the delegate evaluating role permissions
+     * @param accessRolesProvider the access roles provider
+     * @param authorizationSessions the source of worker sessions
+     * @param userSession the user session
+     * @param allPrincipals all principals
+     * @param visited counts the descendants visited
+     */
+    ParallelRemoveCheck(final AbstractRolesAuthorizationDelegate delegate,
+            final AccessRolesProvider accessRolesProvider, final AuthorizationSessions authorizationSessions,
+            final Session userSession, final Set<Principal> allPrincipals, final AtomicLong visited) {
+        this.delegate = delegate;
+        this.accessRolesProvider = accessRolesProvider;
+        this.authorizationSessions = authorizationSessions;
+        this.userSession = userSession;
+        this.allPrincipals = allPrincipals;
+        this.visited = visited;
+    }
+
+    /**
+     * @param pool the pool running the check
+     * @param parentPath the parent path
+     * @param parentRoles the roles on the parent
+     * @return true if every descendant may be removed
+     */
+    boolean run(final ForkJoinPool pool, final String parentPath, final Set<String> parentRoles) {
+        return pool.invoke(new SubtreeCheck(parentPath, parentRoles, true)) && !denied.get();
+    }
+
+    /**
+     * @return the session of the calling worker thread
+     */
+    private Session getWorkerSession() {
+        return sessions.computeIfAbsent(Thread.currentThread(), t -> authorizationSessions.getSession());
+    }
+
+    /**
+     * Checks the children of a node, forking a task for each child that has children of its own.
+     */
+    private class SubtreeCheck extends RecursiveTask<Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+
+        private final Set<String> roles;
+
+        private final boolean removed;
+
+        /**
+         * @param path the path of the node whose children are checked
+         * @param roles the roles on the node
+         * @param removed true if the node is the removed node, whose own ACL node is not checked
+         */
+        private SubtreeCheck(final String path, final Set<String> roles, final boolean removed) {
+            this.path = path;
+            this.roles = roles;
+            this.removed = removed;
+        }
+
+        @Override
+        protected Boolean compute() {
+            if (denied.get()) {
+                return false;
+            }
+            try {
+                final Node parent = getWorkerSession().getNode(path);
+                if (!parent.hasNodes()) {
+                    return true;
+                }
+                final List<SubtreeCheck> forks = new ArrayList<>();
+                try {
+                    return checkChildren(parent, forks);
+                } finally {
+                    // a no-op for the forks that have completed
+                    forks.forEach(fork -> fork.cancel(true));
+                }
+            } catch (final RepositoryException e) {
+                throw new RepositoryRuntimeException(
+                        "Cannot lookup child permission check information for " + path, e);
+            }
+        }
+
+        /**
+         * @param parent the node whose children are checked
+         * @param forks collects the tasks forked for the children that have children of their own
+         * @return true if every child and every descendant checked by the forks may be removed
+         * @throws RepositoryException
+         */
+        private boolean checkChildren(final Node parent, final List<SubtreeCheck> forks) throws RepositoryException {
+            for (final NodeIterator ni = parent.getNodes(); ni.hasNext();) {
+                if (denied.get()) {
+                    return false;
+                }
+                final Node n = ni.nextNode();
+                if (removed && AbstractRolesAuthorizationDelegate.isAclNode(n)) {
+                    continue;
+                }
+                visited.incrementAndGet();
+                final Map<String, List<String>> acl = accessRolesProvider.getRoles(n, false);
+                final Set<String> childRoles = acl == null ? roles : resolveRoles(acl, allPrincipals);
+                final String checkedPath = AbstractRolesAuthorizationDelegate.checkedPath(n);
+                if (!delegate.rolesHavePermission(userSession, checkedPath, REMOVE_ACTIONS, childRoles)) {
+                    LOGGER.info("Remove permission denied at {} with roles {}", n.getPath(), childRoles);
+                    denied.set(true);
+                    return false;
+                }
+                if (n.hasNodes()) {
+                    final SubtreeCheck fork = new SubtreeCheck(n.getPath(), childRoles, false);
+                    fork.fork();
+                    forks.add(fork);
+                }
+            }
+            for (final SubtreeCheck fork : forks) {
+                if (!fork.join()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
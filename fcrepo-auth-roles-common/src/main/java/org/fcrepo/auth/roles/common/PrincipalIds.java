@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.security.Principal;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Interns principal names to small integer ids, so that the principals of a request can be matched against role
+ * assignments by comparing sorted id arrays rather than by hashing names. Only the principals named by role
+ * assignments are interned; the principals of requests are only looked up, so that the ids, which are never
+ * reclaimed, are bounded by the principals named in ACLs rather than by every user and group ever seen.
+ *
+ * @author whikloj
+ */
+final class PrincipalIds {
+
+    /**
+     * The id of no principal, returned for names that were never interned.
+     */
+    static final int NONE = -1;
+
+    private static final ConcurrentMap<String, Integer> IDS = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    /**
+     * Counts the calls that may have interned a name, each once the name is visible to {@link #find(String)}.
+     */
+    private static final AtomicInteger GENERATION = new AtomicInteger();
+
+    /**
+     * Principal sets normalized so far, compared by identity and held only as long as their session holds them.
+     */
+    private static final Cache<Set<Principal>, Normalized> NORMALIZED = CacheBuilder.newBuilder().weakKeys().build();
+
+    private PrincipalIds() {
+    }
+
+    /**
+     * @param name a principal name
+     * @return the id of the name, interning it if necessary
+     */
+    static int intern(final String name) {
+        final Integer id = IDS.get(name);
+        if (id != null) {
+            return id;
+        }
+        final int interned = IDS.computeIfAbsent(name, n -> NEXT_ID.getAndIncrement());
+        GENERATION.incrementAndGet();
+        return interned;
+    }
+
+    /**
+     * @param name a principal name
+     * @return the id of the name, or {@link #NONE} if it was never interned
+     */
+    static int find(final String name) {
+        final Integer id = IDS.get(name);
+        return id == null ? NONE : id;
+    }
+
+    /**
+     * Normalize the principals of a session to the ids of those named by role assignments, in ascending order,
+     * without duplicates. The result is computed once per set, and again only if a principal of the set may have been
+     * interned since, so the set must not change afterwards.
+     *
+     * @param principals all principals of a session
+     * @return the sorted ids, which must not be modified
+     */
+    static int[] normalize(final Set<Principal> principals) {
+        Normalized normalized = NORMALIZED.getIfPresent(principals);
+        if (normalized == null || (normalized.missing && normalized.generation != GENERATION.get())) {
+            normalized = new Normalized(principals);
+            NORMALIZED.put(principals, normalized);
+        }
+        return normalized.ids;
+    }
+
+    /**
+     * The ids of a set of principals, and whether any principal was not yet interned when they were found.
+     */
+    private static final class Normalized {
+
+        private final int generation = GENERATION.get();
+
+        private boolean missing;
+
+        private final int[] ids;
+
+        private Normalized(final Set<Principal> principals) {
+            this.ids = sortedIds(principals);
+        }
+
+        private int[] sortedIds(final Set<Principal> principals) {
+            final int[] ids = new int[principals.size()];
+            int count = 0;
+            for (final Principal p : principals) {
+                final int id = find(p.getName());
+                if (id == NONE) {
+                    missing = true;
+                } else {
+                    ids[count++] = id;
+                }
+            }
+            return distinct(ids, count);
+        }
+    }
+
+    /**
+     * @param ids ids, of which the first count are used
+     * @param count the number of ids used
+     * @return the used ids in ascending order, without duplicates
+     */
+    private static int[] distinct(final int[] ids, final int count) {
+        Arrays.sort(ids, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || ids[distinct - 1] != ids[i]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        return distinct == ids.length ? ids : Arrays.copyOf(ids, distinct);
+    }
+}
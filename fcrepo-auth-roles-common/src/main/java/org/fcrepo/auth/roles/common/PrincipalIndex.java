@@ -0,0 +1,187 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Collections.unmodifiableList;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory index from each principal to the nodes at which it is assigned roles, and to those roles, so that where a
+ * principal holds roles is answered without crawling the repository. Lookups are lock-free; updates are serialized.
+ *
+ * The index records saved assignments only, so a principal is forgotten as soon as the last node assigning it roles
+ * no longer does, and requests made only on behalf of principals it does not name hold no roles on any path.
+ *
+ * Paths are held in the expanded form produced by {@link org.modeshape.jcr.value.Path#getString()}.
+ *
+ * @author whikloj
+ */
+public class PrincipalIndex {
+
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, List<String>>> locations =
+            new ConcurrentHashMap<>();
+
+    private final TreeMap<String, Set<String>> principalsByPath = new TreeMap<>();
+
+    private volatile boolean built = false;
+
+    /**
+     * Record the role assignments of a node, replacing any recorded before.
+     *
+     * @param aclPath the expanded path of the node
+     * @param roles the roles assigned to each principal at the node
+     */
+    public synchronized void put(final String aclPath, final Map<String, ? extends Collection<String>> roles) {
+        final Set<String> principals = new HashSet<>();
+        for (final Map.Entry<String, ? extends Collection<String>> entry : roles.entrySet()) {
+            final String principal = entry.getKey();
+            locations.computeIfAbsent(principal, p -> new ConcurrentSkipListMap<>())
+                    .put(aclPath, unmodifiableList(new ArrayList<>(new LinkedHashSet<>(entry.getValue()))));
+            principals.add(principal);
+        }
+        // the new assignments are recorded first, so that a principal kept by the node is never briefly forgotten
+        final Set<String> previous = principals.isEmpty() ? principalsByPath.remove(aclPath) :
+                principalsByPath.put(aclPath, principals);
+        if (previous != null) {
+            for (final String principal : previous) {
+                if (!principals.contains(principal)) {
+                    removeLocation(principal, aclPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record that a node no longer carries role assignments.
+     *
+     * @param aclPath the expanded path of the node
+     */
+    public synchronized void remove(final String aclPath) {
+        removeLocation(aclPath);
+    }
+
+    /**
+     * Record that neither a node nor any of its descendants carries role assignments, as when the node has been
+     * removed.
+     *
+     * @param path the expanded path of the node
+     */
+    public synchronized void removeSubtree(final String path) {
+        final Collection<String> removed;
+        if (path.equals("/")) {
+            removed = new ArrayList<>(principalsByPath.keySet());
+        } else {
+            // descendants sort between the path followed by '/' and the path followed by the next character
+            removed = new ArrayList<>(principalsByPath.subMap(path + '/', path + (char) ('/' + 1)).keySet());
+            removed.add(path);
+        }
+        for (final String aclPath : removed) {
+            removeLocation(aclPath);
+        }
+    }
+
+    private void removeLocation(final String aclPath) {
+        final Set<String> principals = principalsByPath.remove(aclPath);
+        if (principals == null) {
+            return;
+        }
+        for (final String principal : principals) {
+            removeLocation(principal, aclPath);
+        }
+    }
+
+    private void removeLocation(final String principal, final String aclPath) {
+        final ConcurrentNavigableMap<String, List<String>> nodes = locations.get(principal);
+        if (nodes != null) {
+            nodes.remove(aclPath);
+            if (nodes.isEmpty()) {
+                locations.remove(principal);
+            }
+        }
+    }
+
+    /**
+     * @param candidates principals of a request
+     * @return true if any of the principals may be assigned roles
+     */
+    public boolean containsAny(final Set<Principal> candidates) {
+        for (final Principal p : candidates) {
+            if (locations.containsKey(p.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the nodes at which a principal is assigned roles, in path order.
+     *
+     * @param principal the principal name
+     * @param after the expanded path after which to start, or null to start from the first node
+     * @param limit the maximum number of nodes
+     * @return the roles assigned to the principal, keyed by the expanded path of each node
+     */
+    public SortedMap<String, List<String>> find(final String principal, final String after, final int limit) {
+        final SortedMap<String, List<String>> page = new TreeMap<>();
+        final ConcurrentNavigableMap<String, List<String>> nodes = locations.get(principal);
+        if (nodes == null) {
+            return page;
+        }
+        for (final Map.Entry<String, List<String>> entry :
+                (after == null ? nodes : nodes.tailMap(after, false)).entrySet()) {
+            if (page.size() >= limit) {
+                break;
+            }
+            page.put(entry.getKey(), entry.getValue());
+        }
+        return page;
+    }
+
+    /**
+     * @return the number of principals in the index
+     */
+    public int size() {
+        return locations.size();
+    }
+
+    /**
+     * @return true once the index has been populated from the repository
+     */
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Mark the index as populated from the repository, after which it may answer lookups.
+     */
+    public void setBuilt() {
+        this.built = true;
+    }
+}
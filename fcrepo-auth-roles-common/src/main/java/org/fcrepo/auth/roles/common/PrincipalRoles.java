@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
+import static org.fcrepo.auth.roles.common.EffectiveRolesCache.pathKey;
+import static org.fcrepo.auth.roles.common.EffectiveRolesCache.qualifiedPath;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.inject.Inject;
+import javax.jcr.NamespaceException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.fcrepo.http.commons.AbstractResource;
+import org.jvnet.hk2.annotations.Optional;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Scope;
+
+import com.codahale.metrics.annotation.Timed;
+
+/**
+ * RESTful interface listing the resources at which a principal is assigned roles, read from the principal index of
+ * the access roles provider rather than from the repository tree:
+ *
+ * <pre>
+ * GET /fcr:principalroles?principal=alice&amp;limit=2
+ *
+ * {"principal": "alice",
+ *  "locations": [{"path": "/objects/1", "roles": ["writer"]}, {"path": "/objects/2", "roles": ["reader"]}],
+ *  "next": "/objects/2"}
+ * </pre>
+ *
+ * Pass {@code next} as the {@code after} parameter to fetch the following page; it is absent from the last page. Like
+ * the paths listed, it uses the namespace prefixes of the repository, so the path of any listed resource may serve
+ * as a cursor.
+ * Only the resources whose access roles the current user may read are listed, so a page may hold fewer than
+ * {@code limit} resources.
+ *
+ * @author whikloj
+ */
+@Scope("request")
+@Path("/fcr:principalroles")
+public class PrincipalRoles extends AbstractResource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrincipalRoles.class);
+
+    static final int MAX_LIMIT = 1000;
+
+    @Inject
+    protected Session session;
+
+    @Inject
+    @Optional
+    private AccessRolesProvider accessRolesProvider;
+
+    /**
+     * List a page of the resources at which a principal is assigned roles.
+     *
+     * @param principal the principal name
+     * @param after the cursor returned as "next" by the previous page, if any
+     * @param limit the maximum number of resources to list
+     * @return the resources and the roles assigned there, in path order
+     * @throws RepositoryException if repository exception occurred
+     */
+    @GET
+    @Produces(APPLICATION_JSON)
+    @Timed
+    public Response get(@QueryParam("principal") final String principal, @QueryParam("after") final String after,
+            @QueryParam("limit") @DefaultValue("100") final int limit) throws RepositoryException {
+        try {
+            if (principal == null || principal.isEmpty()) {
+                throw badRequest("A principal must be given");
+            }
+            if (limit < 1 || limit > MAX_LIMIT) {
+                throw badRequest("The limit must be between 1 and " + MAX_LIMIT);
+            }
+            final SortedMap<String, List<String>> page = accessRolesProvider == null ? null :
+                    accessRolesProvider.findPrincipalRoles(principal, after == null ? null : afterKey(after), limit);
+            if (page == null) {
+                throw new WebApplicationException(Response.status(Status.NOT_IMPLEMENTED)
+                        .entity("Principals are not indexed").build());
+            }
+
+            final List<Map<String, Object>> locations = new ArrayList<>(page.size());
+            for (final Map.Entry<String, List<String>> entry : page.entrySet()) {
+                final String path = qualifiedPath(entry.getKey(), session);
+                if (!mayReadRoles(path)) {
+                    continue;
+                }
+                final Map<String, Object> location = new LinkedHashMap<>();
+                location.put("path", path);
+                location.put("roles", entry.getValue());
+                locations.add(location);
+            }
+            final Map<String, Object> result = new LinkedHashMap<>();
+            result.put("principal", principal);
+            result.put("locations", locations);
+            if (page.size() == limit) {
+                result.put("next", qualifiedPath(page.lastKey(), session));
+            }
+            LOGGER.debug("Listed {} of {} resources assigning roles to {}", locations.size(), page.size(),
+                    principal);
+            return Response.ok(result).build();
+        } finally {
+            session.logout();
+        }
+    }
+
+    /**
+     * @param path the qualified path of a node carrying access roles
+     * @return true if the current user may read the access roles of the node
+     * @throws RepositoryException
+     */
+    private boolean mayReadRoles(final String path) throws RepositoryException {
+        return session.hasPermission((path.equals("/") ? "" : path) + "/" + rbacl.getQualified(), "read");
+    }
+
+    /**
+     * @param after the cursor returned as "next" by the previous page
+     * @return the cursor as an expanded path
+     * @throws RepositoryException if the namespaces of the session cannot be read
+     */
+    private String afterKey(final String after) throws RepositoryException {
+        try {
+            return pathKey(after, session);
+        } catch (final NamespaceException e) {
+            throw badRequest("The cursor must be a path returned as \"next\": " + e.getMessage());
+        }
+    }
+
+    private static WebApplicationException badRequest(final String message) {
+        return new WebApplicationException(Response.status(Status.BAD_REQUEST).entity(message).build());
+    }
+}
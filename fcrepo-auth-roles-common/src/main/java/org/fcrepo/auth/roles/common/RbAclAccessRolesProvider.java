@@ -15,12 +15,20 @@
  */
 package org.fcrepo.auth.roles.common;
 
+import java.security.Principal;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.jcr.ItemNotFoundException;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
@@ -28,21 +36,31 @@ import javax.jcr.PathNotFoundException;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.Value;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
 
 import org.fcrepo.auth.roles.common.Constants.JcrName;
+import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.modeshape.jcr.value.Path;
 import org.slf4j.Logger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.stereotype.Component;
 
+import com.codahale.metrics.Timer;
+
 import static com.google.common.collect.Iterables.toArray;
-import static org.fcrepo.auth.roles.common.Constants.registerPrefixes;
+import static java.util.Arrays.asList;
+import static org.fcrepo.auth.roles.common.EffectiveRolesCache.pathKey;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.Assignment;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.Rbacl;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.assignment;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.assignments;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.principal;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.revision;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.role;
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -53,49 +71,285 @@ import static org.slf4j.LoggerFactory.getLogger;
  * @author whikloj
  */
 @Component
+@DependsOn("accessRolesTypes")
 public class RbAclAccessRolesProvider implements AccessRolesProvider {
 
     private static final Logger LOGGER = getLogger(RbAclAccessRolesProvider.class);
 
+    /**
+     * System property holding the maximum number of entries in the effective roles cache. The cache is disabled
+     * unless this is greater than zero.
+     */
+    public static final String CACHE_SIZE_PROPERTY = "fcrepo.auth.roles.cache.size";
+
+    /**
+     * System property holding the number of seconds after which a cached entry is discarded.
+     */
+    public static final String CACHE_EXPIRE_PROPERTY = "fcrepo.auth.roles.cache.expire";
+
+    /**
+     * System property that, when true, enables the in-memory index of nodes carrying access roles.
+     */
+    public static final String INDEX_PROPERTY = "fcrepo.auth.roles.index";
+
+    /**
+     * System property that, when true, enables the in-memory set of principals assigned roles anywhere in the
+     * repository.
+     */
+    public static final String PRINCIPAL_INDEX_PROPERTY = "fcrepo.auth.roles.index.principals";
+
+    /**
+     * System property that, when true, stores access roles in the compact format: a single multi-valued
+     * {@code authz:assignments} property on the node carrying them, instead of an {@code authz:rbacl} child holding
+     * one {@code authz:assignment} node per principal. Both formats are always read, and an ACL is migrated to the
+     * configured format the next time it is written.
+     */
+    public static final String COMPACT_STORAGE_PROPERTY = "fcrepo.auth.roles.storage.compact";
+
+    /**
+     * System property that, unless false, keeps the effective roles cache and the ACL index up to date with access
+     * roles changed through any session, as observed through repository events. It cannot be turned off while the
+     * principal index is enabled, since a principal missing from a stale index would be denied roles it holds.
+     */
+    public static final String OBSERVE_PROPERTY = "fcrepo.auth.roles.observe";
+
+    /**
+     * Separates the principal from the role in each value of the compact format. Role names may not contain it.
+     */
+    private static final char ASSIGNMENT_SEPARATOR = '=';
+
+    private static final long DEFAULT_CACHE_EXPIRE = 60;
+
+    private static final String DEFAULT_ROLES_TAG = "default";
+
+    private final EffectiveRolesCache rolesCache;
+
+    private final AclPathIndex aclIndex;
+
+    private final PrincipalIndex principalIndex;
+
+    private final boolean compactStorage;
+
+    private final boolean observe;
+
+    private final AtomicLong rolesVersion = new AtomicLong();
+
+    @Autowired(required = false)
+    private SessionFactory sessionFactory = null;
+
+    private AclChangeListener aclChangeListener;
+
+    private AclChangeListener aclRemovalListener;
+
+    /**
+     * Default constructor, configuring the effective roles cache and the indexes from system properties.
+     */
+    public RbAclAccessRolesProvider() {
+        this(createRolesCache(), Boolean.getBoolean(INDEX_PROPERTY) ? new AclPathIndex() : null,
+                Boolean.getBoolean(COMPACT_STORAGE_PROPERTY),
+                Boolean.getBoolean(PRINCIPAL_INDEX_PROPERTY) ? new PrincipalIndex() : null);
+    }
+
+    /**
+     * @param rolesCache the effective roles cache, or null to disable caching
+     */
+    public RbAclAccessRolesProvider(final EffectiveRolesCache rolesCache) {
+        this(rolesCache, null);
+    }
+
+    /**
+     * @param rolesCache the effective roles cache, or null to disable caching
+     * @param aclIndex the index of nodes carrying access roles, or null to disable indexing
+     */
+    public RbAclAccessRolesProvider(final EffectiveRolesCache rolesCache, final AclPathIndex aclIndex) {
+        this(rolesCache, aclIndex, false);
+    }
+
+    /**
+     * @param rolesCache the effective roles cache, or null to disable caching
+     * @param aclIndex the index of nodes carrying access roles, or null to disable indexing
+     * @param compactStorage true to write access roles in the compact format
+     */
+    public RbAclAccessRolesProvider(final EffectiveRolesCache rolesCache, final AclPathIndex aclIndex,
+            final boolean compactStorage) {
+        this(rolesCache, aclIndex, compactStorage, null);
+    }
+
+    /**
+     * @param rolesCache the effective roles cache, or null to disable caching
+     * @param aclIndex the index of nodes carrying access roles, or null to disable indexing
+     * @param compactStorage true to write access roles in the compact format
+     * @param principalIndex the index of principals assigned roles, or null to disable it
+     */
+    public RbAclAccessRolesProvider(final EffectiveRolesCache rolesCache, final AclPathIndex aclIndex,
+            final boolean compactStorage, final PrincipalIndex principalIndex) {
+        this.rolesCache = rolesCache;
+        this.aclIndex = aclIndex;
+        this.principalIndex = principalIndex;
+        this.compactStorage = compactStorage;
+        final boolean observeProperty = Boolean.parseBoolean(System.getProperty(OBSERVE_PROPERTY, "true"));
+        if (!observeProperty && principalIndex != null) {
+            LOGGER.warn("Observing changes to access roles, as the principal index requires, despite {}=false",
+                    OBSERVE_PROPERTY);
+        }
+        this.observe = observeProperty || principalIndex != null;
+        if (rolesCache != null) {
+            AuthorizationMetrics.registerHitRatio(RbAclAccessRolesProvider.class, "effective-roles-cache",
+                    rolesCache::getHitCount, rolesCache::getMissCount);
+        }
+    }
+
+    /**
+     * Start observing changes to access roles, then populate the indexes, so that no change made while they are built
+     * goes unnoticed.
+     */
+    @PostConstruct
+    public void init() {
+        observeAclChanges();
+        buildAclIndex();
+    }
+
+    /**
+     * Listen for changes to access roles made through any session, keeping the caches, the indexes and the
+     * {@link #getRolesVersion() version} of the roles up to date. Each of the two listeners is given a session of its
+     * own, since ModeShape may deliver events to both at once and a session must not be used by two threads.
+     */
+    public synchronized void observeAclChanges() {
+        if (!observe || sessionFactory == null || aclChangeListener != null) {
+            return;
+        }
+        try {
+            aclChangeListener = listen(AclChangeListener.SET_EVENT_TYPES, AclChangeListener.ACL_NODE_TYPES);
+            aclRemovalListener = listen(AclChangeListener.REMOVE_EVENT_TYPES, null);
+            LOGGER.info("Observing changes to access roles");
+        } catch (final RepositoryException e) {
+            shutdown();
+            throw new RepositoryRuntimeException(e);
+        }
+    }
+
+    /**
+     * Register a listener with a session of its own.
+     *
+     * @param eventTypes the events to listen for
+     * @param nodeTypeNames the node types of the events to listen for, or null for every node type
+     * @return the listener
+     * @throws RepositoryException
+     */
+    private AclChangeListener listen(final int eventTypes, final String[] nodeTypeNames) throws RepositoryException {
+        final Session session = sessionFactory.getInternalSession();
+        try {
+            final AclChangeListener listener = new AclChangeListener(this, rolesCache, aclIndex, principalIndex,
+                    rolesVersion, session);
+            session.getWorkspace().getObservationManager().addEventListener(listener, eventTypes, "/", true, null,
+                    nodeTypeNames, false);
+            return listener;
+        } catch (final RepositoryException e) {
+            session.logout();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop observing changes to access roles.
+     */
+    @PreDestroy
+    public synchronized void shutdown() {
+        unlisten(aclChangeListener);
+        unlisten(aclRemovalListener);
+        aclChangeListener = null;
+        aclRemovalListener = null;
+    }
+
+    private static void unlisten(final AclChangeListener listener) {
+        if (listener == null) {
+            return;
+        }
+        final Session session = listener.getSession();
+        try {
+            session.getWorkspace().getObservationManager().removeEventListener(listener);
+        } catch (final RepositoryException e) {
+            LOGGER.warn("Could not stop observing changes to access roles", e);
+        } finally {
+            session.logout();
+        }
+    }
+
+    /**
+     * Populate the ACL index with every node carrying access roles, and the principal index with every principal
+     * they name.
+     */
+    public void buildAclIndex() {
+        if ((aclIndex == null && principalIndex == null) || sessionFactory == null) {
+            return;
+        }
+        Session session = null;
+        try {
+            session = sessionFactory.getInternalSession();
+            final QueryManager queryManager = session.getWorkspace().getQueryManager();
+            final Query query = queryManager.createQuery(
+                    "SELECT * FROM [" + rbaclAssignable.getQualified() + "]", Query.JCR_SQL2);
+            for (final NodeIterator ni = query.execute().getNodes(); ni.hasNext();) {
+                final Node node = ni.nextNode();
+                if (aclIndex != null) {
+                    aclIndex.add(pathKey(node));
+                }
+                if (principalIndex != null) {
+                    principalIndex.put(pathKey(node), getRoles(node, false));
+                }
+            }
+            if (aclIndex != null) {
+                aclIndex.setBuilt();
+                LOGGER.info("Indexed {} nodes carrying access roles", aclIndex.size());
+            }
+            if (principalIndex != null) {
+                principalIndex.setBuilt();
+                LOGGER.info("Indexed {} principals assigned access roles", principalIndex.size());
+            }
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        } finally {
+            if (session != null) {
+                session.logout();
+            }
+        }
+    }
+
+    private static EffectiveRolesCache createRolesCache() {
+        final long size = Long.getLong(CACHE_SIZE_PROPERTY, 0L);
+        if (size <= 0) {
+            return null;
+        }
+        LOGGER.info("Caching effective roles for up to {} paths", size);
+        return new EffectiveRolesCache(size, Long.getLong(CACHE_EXPIRE_PROPERTY, DEFAULT_CACHE_EXPIRE));
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    public Map<String, List<String>> getRoles(final Node node, final boolean effective) {
+    public RoleAssignments getRoles(final Node node, final boolean effective) {
         try {
             LOGGER.debug("Finding roles for: {}, effective={}", node.getPath(), effective);
         } catch (final RepositoryException e) {
             LOGGER.debug("Unable to get path! {}", e.getMessage());
         }
 
-        final Map<String, List<String>> data = new HashMap<>();
         try {
-
-            final Session session = node.getSession();
-            registerPrefixes(session);
-            if (node.isNodeType(rbaclAssignable.getQualified())) {
+            if (node.isNodeType(rbaclAssignable.getExpanded())) {
+                final Map<String, List<String>> data = new HashMap<>();
                 getAssignments(node, data);
-                return data;
+                return RoleAssignments.of(data);
             }
             if (effective) { // look up the tree
                 try {
-                    for (Node n = node.getParent(); n != null; n = n.getParent()) {
-                        if (n.isNodeType(rbaclAssignable.getQualified())) {
-                            if (LOGGER.isDebugEnabled()) {
-                                LOGGER.debug("effective roles are assigned at node: {}", n.getPath());
-                            }
-                            getAssignments(n, data);
-                            if (LOGGER.isDebugEnabled()) {
-                                for (final Map.Entry<String, List<String>> entry : data.entrySet()) {
-                                    LOGGER.debug("{} has role(s) {}", entry.getKey(), entry.getValue());
-                                }
-                            }
-                            return data;
-                        }
+                    final Node aclNode = findAclAncestor(node);
+                    if (aclNode != null) {
+                        return getEffectiveAssignments(aclNode);
                     }
                 } catch (final ItemNotFoundException e) {
                     LOGGER.debug("Subject not found, using default access roles: {}", e.getMessage());
-                    return DEFAULT_ACCESS_ROLES;
+                    return RoleAssignments.EMPTY;
                 }
             }
         } catch (final RepositoryException e) {
@@ -105,6 +359,76 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
     }
 
     /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getRolesTag(final Node node, final boolean effective) {
+        try {
+            Node aclNode = null;
+            if (node.isNodeType(rbaclAssignable.getExpanded())) {
+                aclNode = node;
+            } else if (effective) {
+                try {
+                    aclNode = findAclAncestor(node);
+                } catch (final ItemNotFoundException e) {
+                    return DEFAULT_ROLES_TAG;
+                }
+            }
+            if (aclNode == null) {
+                return null;
+            }
+            // assignments written before revisions were recorded are identified by their node alone
+            return aclNode.hasProperty(revision.getExpanded()) ?
+                    aclNode.getProperty(revision.getExpanded()).getString() : aclNode.getIdentifier();
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+    }
+
+    /**
+     * Find the nearest ancestor of a node carrying an ACL.
+     *
+     * @param node the subject node
+     * @return the ancestor, or null if no ancestor carries an ACL
+     * @throws RepositoryException
+     */
+    private static Node findAclAncestor(final Node node) throws RepositoryException {
+        int depth = 0;
+        try {
+            for (Node n = node.getParent(); n != null; n = n.getParent()) {
+                depth++;
+                if (n.isNodeType(rbaclAssignable.getExpanded())) {
+                    return n;
+                }
+            }
+            return null;
+        } finally {
+            AuthorizationMetrics.recordWalkDepth(depth);
+        }
+    }
+
+    /**
+     * @param aclNode the node carrying the ACL
+     * @return the role assignments of the node
+     * @throws RepositoryException
+     */
+    private RoleAssignments getEffectiveAssignments(final Node aclNode) throws RepositoryException {
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("effective roles are assigned at node: {}", aclNode.getPath());
+        }
+        final Map<String, List<String>> data = new HashMap<>();
+        getAssignments(aclNode, data);
+        if (LOGGER.isDebugEnabled()) {
+            for (final Map.Entry<String, List<String>> entry : data.entrySet()) {
+                LOGGER.debug("{} has role(s) {}", entry.getKey(), entry.getValue());
+            }
+        }
+        return RoleAssignments.of(data);
+    }
+
+    /**
+     * Read the role assignments of a node, in either storage format.
+     *
      * @param node
      * @param data
      * @throws RepositoryException
@@ -112,41 +436,66 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
     private void getAssignments(final Node node, final Map<String, List<String>> data)
         throws RepositoryException {
 
-        if (node.isNodeType(rbaclAssignable.getQualified())) {
-            try {
-                final Node rbacl = node.getNode(JcrName.rbacl.getQualified());
-                LOGGER.debug("got rbacl: {}", rbacl);
-                for (final NodeIterator ni = rbacl.getNodes(); ni.hasNext();) {
-                    final Node assign = ni.nextNode();
-                    final String principalName =
-                            assign.getProperty(principal.getQualified())
-                                    .getString();
-                    if (principalName == null ||
-                            principalName.trim().length() == 0) {
-                        LOGGER.warn("found empty principal name on node {}",
-                                    node.getPath());
-                    } else {
-                        List<String> roles = data.get(principalName);
-                        if (roles == null) {
-                            roles = new ArrayList<>();
-                            data.put(principalName, roles);
-                        }
-                        for (final Value v : assign.getProperty(
-                                role.getQualified()).getValues()) {
-                            if (v == null || v.toString().trim().length() == 0) {
-                                LOGGER.warn("found empty role name on node {}",
-                                            node.getPath());
-                            } else {
-                                roles.add(v.toString());
-                            }
+        if (node.isNodeType(rbaclAssignable.getExpanded())) {
+            if (!node.hasProperty(assignments.getExpanded())) {
+                getNodeAssignments(node, data);
+                return;
+            }
+            for (final Value v : node.getProperty(assignments.getExpanded()).getValues()) {
+                final String value = v.getString();
+                final int separator = value.lastIndexOf(ASSIGNMENT_SEPARATOR);
+                if (separator <= 0 || separator == value.length() - 1) {
+                    LOGGER.warn("found malformed role assignment {} on node {}", value, node.getPath());
+                } else {
+                    data.computeIfAbsent(value.substring(0, separator), p -> new ArrayList<>())
+                            .add(value.substring(separator + 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Read role assignments held as one child node per principal.
+     *
+     * @param node
+     * @param data
+     * @throws RepositoryException
+     */
+    private void getNodeAssignments(final Node node, final Map<String, List<String>> data)
+        throws RepositoryException {
+        try {
+            final Node rbacl = node.getNode(JcrName.rbacl.getExpanded());
+            LOGGER.debug("got rbacl: {}", rbacl);
+            for (final NodeIterator ni = rbacl.getNodes(); ni.hasNext();) {
+                final Node assign = ni.nextNode();
+                final String principalName =
+                        assign.getProperty(principal.getExpanded())
+                                .getString();
+                if (principalName == null ||
+                        principalName.trim().length() == 0) {
+                    LOGGER.warn("found empty principal name on node {}",
+                                node.getPath());
+                } else {
+                    List<String> roles = data.get(principalName);
+                    if (roles == null) {
+                        roles = new ArrayList<>();
+                        data.put(principalName, roles);
+                    }
+                    for (final Value v : assign.getProperty(
+                            role.getExpanded()).getValues()) {
+                        if (v == null || v.toString().trim().length() == 0) {
+                            LOGGER.warn("found empty role name on node {}",
+                                        node.getPath());
+                        } else {
+                            roles.add(v.toString());
                         }
                     }
                 }
-            } catch (final PathNotFoundException e) {
-                LOGGER.info(
-                             "Found rbaclAssignable mixin without a corresponding node at {}",
-                             node.getPath());
             }
+        } catch (final PathNotFoundException e) {
+            LOGGER.info(
+                         "Found rbaclAssignable mixin without a corresponding node at {}",
+                         node.getPath());
         }
     }
 
@@ -156,29 +505,170 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
     @Override
     public void postRoles(final Node node, final Map<String, Set<String>> data)
             throws RepositoryException {
-        final Session session = node.getSession();
-        registerPrefixes(session);
-        if (!node.isNodeType(rbaclAssignable.getQualified())) {
-            node.addMixin(rbaclAssignable.getQualified());
+        postRoles(node, data.entrySet().iterator());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void postRoles(final Node node, final Iterator<Map.Entry<String, Set<String>>> entries)
+            throws RepositoryException {
+        final String[] compactValues = compactStorage ? encodeAssignments(entries) : null;
+        boolean changed = false;
+        if (!node.isNodeType(rbaclAssignable.getExpanded())) {
+            node.addMixin(rbaclAssignable.getExpanded());
             LOGGER.debug("added rbaclAssignable type");
+            changed = true;
+        }
+
+        if (compactValues != null) {
+            changed |= postCompactRoles(node, compactValues);
+        } else {
+            changed |= postNodeRoles(node, entries);
+        }
+        if (changed) {
+            node.setProperty(revision.getExpanded(), UUID.randomUUID().toString());
+        }
+    }
+
+    /**
+     * Write role assignments as one child node per principal, touching only the assignments that changed and
+     * removing any held in the compact format.
+     *
+     * @param node the node carrying the roles
+     * @param data the roles to assign
+     * @return true if any assignment changed
+     * @throws RepositoryException
+     */
+    private static boolean postNodeRoles(final Node node, final Iterator<Map.Entry<String, Set<String>>> data)
+            throws RepositoryException {
+        boolean changed = false;
+        if (node.hasProperty(assignments.getExpanded())) {
+            node.getProperty(assignments.getExpanded()).remove();
+            changed = true;
         }
 
-        Node acl;
+        final Node acl;
+        final Map<String, Node> existing = new HashMap<>();
 
-        if (node.hasNode(rbacl.getQualified())) {
-            acl = node.getNode(rbacl.getQualified());
+        if (node.hasNode(rbacl.getExpanded())) {
+            acl = node.getNode(rbacl.getExpanded());
             for (final NodeIterator ni = acl.getNodes(); ni.hasNext();) {
-                ni.nextNode().remove();
+                final Node assign = ni.nextNode();
+                if (existing.putIfAbsent(assign.getProperty(principal.getExpanded()).getString(), assign) != null) {
+                    // a duplicate assignment of the same principal
+                    assign.remove();
+                    changed = true;
+                }
             }
         } else {
-            acl = node.addNode(rbacl.getQualified(), Rbacl.getQualified());
+            acl = node.addNode(rbacl.getExpanded(), Rbacl.getExpanded());
         }
 
-        for (final Map.Entry<String, Set<String>> entry : data.entrySet()) {
-            final Node assign = acl.addNode(assignment.getQualified(), Assignment.getQualified());
-            assign.setProperty(principal.getQualified(), entry.getKey());
-            assign.setProperty(role.getQualified(), toArray(entry.getValue(), String.class));
+        while (data.hasNext()) {
+            final Map.Entry<String, Set<String>> entry = checkAssigned(data.next());
+            final Node assign = existing.remove(entry.getKey());
+            if (assign == null) {
+                final Node added = acl.addNode(assignment.getExpanded(), Assignment.getExpanded());
+                added.setProperty(principal.getExpanded(), entry.getKey());
+                added.setProperty(role.getExpanded(), toArray(entry.getValue(), String.class));
+                changed = true;
+            } else if (!entry.getValue().equals(getAssignedRoles(assign))) {
+                assign.setProperty(role.getExpanded(), toArray(entry.getValue(), String.class));
+                changed = true;
+            }
+        }
+        // principals no longer assigned
+        for (final Node assign : existing.values()) {
+            assign.remove();
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * Refuse to assign a principal no roles, which neither format can hold: the compact format would drop the
+     * principal and the node format would keep an assignment granting nothing.
+     *
+     * @param entry the roles of one principal
+     * @return the entry
+     */
+    private static Map.Entry<String, Set<String>> checkAssigned(final Map.Entry<String, Set<String>> entry) {
+        if (entry.getValue() == null || entry.getValue().isEmpty()) {
+            throw new IllegalArgumentException("Principal " + entry.getKey() + " must be assigned at least one role");
+        }
+        return entry;
+    }
+
+    /**
+     * @param assign a node holding the roles of one principal
+     * @return the roles held
+     * @throws RepositoryException
+     */
+    private static Set<String> getAssignedRoles(final Node assign) throws RepositoryException {
+        final Set<String> roles = new HashSet<>();
+        for (final Value v : assign.getProperty(role.getExpanded()).getValues()) {
+            roles.add(v.toString());
+        }
+        return roles;
+    }
+
+    /**
+     * Encode role assignments in the compact format, one {@code principal=role} value per role of each principal.
+     *
+     * @param data roles keyed by principal
+     * @return the encoded values
+     */
+    private static String[] encodeAssignments(final Iterator<Map.Entry<String, Set<String>>> data) {
+        final List<String> values = new ArrayList<>();
+        while (data.hasNext()) {
+            final Map.Entry<String, Set<String>> entry = checkAssigned(data.next());
+            for (final String r : entry.getValue()) {
+                if (r.indexOf(ASSIGNMENT_SEPARATOR) >= 0) {
+                    throw new IllegalArgumentException("Role names may not contain '" + ASSIGNMENT_SEPARATOR +
+                            "': " + r);
+                }
+                values.add(entry.getKey() + ASSIGNMENT_SEPARATOR + r);
+            }
         }
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Write role assignments in the compact format, removing any held in the node-per-assignment format.
+     *
+     * @param node the node carrying the roles
+     * @param values the encoded role assignments
+     * @return true if any assignment changed
+     * @throws RepositoryException
+     */
+    private static boolean postCompactRoles(final Node node, final String[] values) throws RepositoryException {
+        boolean changed = false;
+        if (!node.hasProperty(assignments.getExpanded()) ||
+                !getCompactValues(node).equals(new HashSet<>(asList(values)))) {
+            node.setProperty(assignments.getExpanded(), values);
+            changed = true;
+        }
+        if (node.hasNode(rbacl.getExpanded())) {
+            LOGGER.debug("Migrating access roles of {} to the compact format", node.getPath());
+            node.getNode(rbacl.getExpanded()).remove();
+            changed = true;
+        }
+        return changed;
+    }
+
+    /**
+     * @param node a node holding role assignments in the compact format
+     * @return the encoded role assignments
+     * @throws RepositoryException
+     */
+    private static Set<String> getCompactValues(final Node node) throws RepositoryException {
+        final Set<String> values = new HashSet<>();
+        for (final Value v : node.getProperty(assignments.getExpanded()).getValues()) {
+            values.add(v.getString());
+        }
+        return values;
     }
 
     /**
@@ -186,18 +676,22 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
      */
     @Override
     public void deleteRoles(final Node node) throws RepositoryException {
-        final Session session = node.getSession();
-        registerPrefixes(session);
-        if (node.isNodeType(rbaclAssignable.getQualified())) {
+        if (node.isNodeType(rbaclAssignable.getExpanded())) {
+            if (node.hasProperty(assignments.getExpanded())) {
+                node.getProperty(assignments.getExpanded()).remove();
+            }
+            if (node.hasProperty(revision.getExpanded())) {
+                node.getProperty(revision.getExpanded()).remove();
+            }
             // remove rbacl child
             try {
-                final Node rbacl = node.getNode(JcrName.rbacl.getQualified());
+                final Node rbacl = node.getNode(JcrName.rbacl.getExpanded());
                 rbacl.remove();
             } catch (final PathNotFoundException e) {
                 LOGGER.debug("Cannot find node: {}", node, e);
             }
             // remove mixin
-            node.removeMixin(rbaclAssignable.getQualified());
+            node.removeMixin(rbaclAssignable.getExpanded());
         }
     }
 
@@ -205,8 +699,232 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
      * {@inheritDoc}
      */
     @Override
-    public Map<String, List<String>> findRolesForPath(final Path absPath,
+    public void rolesSaved(final Node node) {
+        try {
+            final String aclPath = pathKey(node);
+            if (rolesCache != null) {
+                rolesCache.invalidate(aclPath);
+            }
+            final boolean assignable = node.isNodeType(rbaclAssignable.getExpanded());
+            if (aclIndex != null) {
+                if (assignable) {
+                    aclIndex.add(aclPath);
+                } else {
+                    aclIndex.remove(aclPath);
+                }
+            }
+            if (principalIndex != null) {
+                if (assignable) {
+                    principalIndex.put(aclPath, getRoles(node, false));
+                } else {
+                    principalIndex.remove(aclPath);
+                }
+            }
+            // only once the cache no longer holds the old roles
+            rolesVersion.incrementAndGet();
+        } catch (final RepositoryException e) {
+            throw new RepositoryRuntimeException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRolesVersion() {
+        return rolesVersion.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RoleAssignments findRolesForPath(final Path absPath,
             final Session session) throws RepositoryException {
+        try (final Timer.Context context = AuthorizationMetrics.findRolesTimer().time()) {
+            return lookupRolesForPath(absPath, session);
+        }
+    }
+
+    /**
+     * @param absPath the real or potential node path
+     * @param session session
+     * @return the effective role assignments
+     * @throws RepositoryException
+     */
+    private RoleAssignments lookupRolesForPath(final Path absPath, final Session session)
+            throws RepositoryException {
+        if (aclIndex != null && aclIndex.isBuilt()) {
+            // roles saved elsewhere whose event has not arrived yet may govern the path instead, so a hit is confirmed
+            // against the nodes below it and a miss by walking the tree below
+            final String indexed = aclIndex.find(absPath);
+            if (indexed != null) {
+                final String aclPath = confirmIndexedAclPath(absPath, indexed, session);
+                final RoleAssignments roles = findIndexedRoles(aclPath, session);
+                if (roles != null) {
+                    return roles;
+                }
+                LOGGER.debug("Indexed node no longer carries access roles: {}", aclPath);
+            }
+        }
+        if (rolesCache == null) {
+            return this.getRoles(findNearestNode(absPath, session), true);
+        }
+
+        final String key = absPath.getString();
+        final EffectiveRolesCache.Entry cached = rolesCache.get(key);
+        if (cached != null) {
+            LOGGER.trace("Using cached roles for: {}, assigned at: {}", key, cached.getAclPath());
+            return cached.getRoles();
+        }
+
+        final Node node = findNearestNode(absPath, session);
+        final Node aclNode;
+        try {
+            aclNode = node.isNodeType(rbaclAssignable.getExpanded()) ? node : findAclAncestor(node);
+        } catch (final ItemNotFoundException e) {
+            LOGGER.debug("Subject not found, using default access roles: {}", e.getMessage());
+            return RoleAssignments.EMPTY;
+        }
+        if (aclNode == null) {
+            return rolesCache.put(key, null, null);
+        }
+        final String aclPath = pathKey(aclNode);
+        RoleAssignments roles = rolesCache.getRoles(aclPath);
+        if (roles == null) {
+            roles = getEffectiveAssignments(aclNode);
+        }
+        return rolesCache.put(key, aclPath, roles);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean mayHaveRoles(final Set<Principal> principals) {
+        return principalIndex == null || !principalIndex.isBuilt() || principalIndex.containsAny(principals);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SortedMap<String, List<String>> findPrincipalRoles(final String principal, final String after,
+            final int limit) {
+        if (principalIndex == null || !principalIndex.isBuilt()) {
+            return null;
+        }
+        return principalIndex.find(principal, after, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String findAclPathForPath(final Path absPath, final Session session)
+            throws RepositoryException {
+        if (aclIndex != null && aclIndex.isBuilt()) {
+            final String aclPath = aclIndex.find(absPath);
+            if (aclPath != null) {
+                return confirmIndexedAclPath(absPath, aclPath, session);
+            }
+        }
+        if (rolesCache != null) {
+            final EffectiveRolesCache.Entry cached = rolesCache.get(absPath.getString());
+            if (cached != null) {
+                return cached.getAclPath();
+            }
+        }
+        final Node node = findNearestNode(absPath, session);
+        try {
+            final Node aclNode = node.isNodeType(rbaclAssignable.getExpanded()) ? node : findAclAncestor(node);
+            return aclNode == null ? null : pathKey(aclNode);
+        } catch (final ItemNotFoundException e) {
+            LOGGER.debug("Subject not found, no node carries the effective roles: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public RoleAssignments findRolesForAclPath(final String aclPath, final Session session)
+            throws RepositoryException {
+        try (final Timer.Context context = AuthorizationMetrics.findRolesTimer().time()) {
+            return findIndexedRoles(aclPath, session);
+        }
+    }
+
+    /**
+     * Read the role assignments of a node found through the ACL index. Entries for nodes that have since been removed
+     * or lost their access roles are not trusted; the caller then falls back to walking the tree.
+     *
+     * @param aclPath the expanded path of the indexed node
+     * @param session session
+     * @return the role assignments, or null if the node does not carry access roles
+     * @throws RepositoryException
+     */
+    private RoleAssignments findIndexedRoles(final String aclPath, final Session session)
+            throws RepositoryException {
+        if (rolesCache != null) {
+            final RoleAssignments cached = rolesCache.getRoles(aclPath);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final Node aclNode;
+        try {
+            aclNode = session.getNode(aclPath);
+        } catch (final PathNotFoundException e) {
+            return null;
+        }
+        if (!aclNode.isNodeType(rbaclAssignable.getExpanded())) {
+            return null;
+        }
+        final RoleAssignments roles = getEffectiveAssignments(aclNode);
+        return rolesCache == null ? roles : rolesCache.put(aclPath, aclPath, roles);
+    }
+
+    /**
+     * Confirm the ACL the index found for a path. Roles saved by another session on a node between the path and the
+     * indexed ACL are not indexed until their event arrives, and would meanwhile leave the path governed by the roles
+     * of the ancestor. Only the nodes below the indexed ACL are read.
+     *
+     * @param absPath the real or potential node path
+     * @param aclPath the indexed path of the nearest node carrying access roles
+     * @param session session
+     * @return the expanded path of the nearest node carrying access roles
+     * @throws RepositoryException
+     */
+    private static String confirmIndexedAclPath(final Path absPath, final String aclPath, final Session session)
+            throws RepositoryException {
+        final int aclDepth = AclPathIndex.split(aclPath).size();
+        int depth = 0;
+        try {
+            for (Node n = findNearestNode(absPath, session); n != null && n.getDepth() > aclDepth;
+                    n = n.getParent()) {
+                depth++;
+                if (n.isNodeType(rbaclAssignable.getExpanded())) {
+                    LOGGER.debug("Access roles at {} are not indexed yet", n.getPath());
+                    return pathKey(n);
+                }
+            }
+            return aclPath;
+        } finally {
+            AuthorizationMetrics.recordWalkDepth(depth);
+        }
+    }
+
+    /**
+     * Find the first real node at or above a path.
+     *
+     * @param absPath the real or potential node path
+     * @param session session
+     * @return the node, or null if no node was found
+     * @throws RepositoryException
+     */
+    private static Node findNearestNode(final Path absPath, final Session session) throws RepositoryException {
         Node node = null;
         for (Path p = absPath; p != null; p = p.getParent()) {
             try {
@@ -220,7 +938,6 @@ public class RbAclAccessRolesProvider implements AccessRolesProvider {
                 LOGGER.trace("Cannot find node: {}, trying parent.", p, e);
             }
         }
-        return this.getRoles(node, true);
+        return node;
     }
-
 }
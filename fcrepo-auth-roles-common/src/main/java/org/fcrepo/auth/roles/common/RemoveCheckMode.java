@@ -0,0 +1,43 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+/**
+ * How a roles-based authorization delegate verifies that every descendant of a node may be removed along with it.
+ *
+ * @author whikloj
+ */
+public enum RemoveCheckMode {
+
+    /**
+     * Visit every descendant node and check its effective roles.
+     */
+    RECURSIVE,
+
+    /**
+     * Query for the descendants carrying access roles and check only those and the ACL nodes below them. Equivalent to
+     * {@link #RECURSIVE} for delegates whose decisions depend only on the roles, the actions and whether the path is an
+     * ACL node, and scales with the number of ACLs rather than the number of nodes. The query scales so only when the
+     * repository defines a node type index, so {@link #RECURSIVE} is used instead until one is defined.
+     */
+    ACL_QUERY,
+
+    /**
+     * Visit every descendant node like {@link #RECURSIVE}, splitting the subtree across a bounded pool of worker
+     * threads.
+     */
+    PARALLEL
+}
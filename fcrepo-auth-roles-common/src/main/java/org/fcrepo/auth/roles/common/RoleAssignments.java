@@ -0,0 +1,197 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableList;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable ACL keyed by interned principal ids. It reads as the usual map of roles keyed by principal name, and
+ * resolves the roles of a request by merging its sorted principal ids with those of the ACL, without hashing names
+ * and, when a single principal matches, without allocating. The roles are resolved as a {@link RoleSet}, interned once
+ * per principal when the ACL is built.
+ *
+ * Each principal holds its distinct roles in the order they were first assigned. The hash code is computed once, so
+ * instances may be cached and shared between threads without copying, and compared cheaply with each other.
+ *
+ * @author whikloj
+ */
+public final class RoleAssignments extends AbstractMap<String, List<String>> {
+
+    /**
+     * An ACL without assignments.
+     */
+    public static final RoleAssignments EMPTY = new RoleAssignments(emptyMap());
+
+    private final int[] principalIds;
+
+    private final String[] principals;
+
+    private final List<String>[] roles;
+
+    private final RoleSet[] roleSets;
+
+    private final int hash;
+
+    @SuppressWarnings("unchecked")
+    private RoleAssignments(final Map<String, ? extends Collection<String>> acl) {
+        final int size = acl.size();
+        final long[] order = new long[size];
+        final String[] names = acl.keySet().toArray(new String[size]);
+        for (int i = 0; i < size; i++) {
+            order[i] = ((long) PrincipalIds.intern(names[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+        this.principalIds = new int[size];
+        this.principals = new String[size];
+        this.roles = new List[size];
+        this.roleSets = new RoleSet[size];
+        int h = 0;
+        for (int i = 0; i < size; i++) {
+            final String name = names[(int) order[i]];
+            final Set<String> distinct = new LinkedHashSet<>(acl.get(name));
+            principalIds[i] = (int) (order[i] >>> 32);
+            principals[i] = name;
+            roles[i] = unmodifiableList(new ArrayList<>(distinct));
+            roleSets[i] = RoleSet.of(distinct);
+            // the sum of the entry hashes, as for any map
+            h += name.hashCode() ^ roles[i].hashCode();
+        }
+        this.hash = h;
+    }
+
+    /**
+     * @param acl roles keyed by principal name
+     * @return the ACL keyed by principal id
+     */
+    public static RoleAssignments of(final Map<String, ? extends Collection<String>> acl) {
+        if (acl instanceof RoleAssignments) {
+            return (RoleAssignments) acl;
+        }
+        return acl.isEmpty() ? EMPTY : new RoleAssignments(acl);
+    }
+
+    /**
+     * Gather the roles assigned to any of some principals.
+     *
+     * @param ids principal ids in ascending order, as normalized by {@link PrincipalIds#normalize(Set)}
+     * @return the roles, which must not be modified
+     */
+    RoleSet resolve(final int[] ids) {
+        RoleSet matched = null;
+        int i = 0;
+        int j = 0;
+        while (i < principalIds.length && j < ids.length) {
+            if (principalIds[i] < ids[j]) {
+                i++;
+            } else if (principalIds[i] > ids[j]) {
+                j++;
+            } else {
+                matched = matched == null ? roleSets[i] : matched.union(roleSets[i]);
+                i++;
+                j++;
+            }
+        }
+        return matched == null ? RoleSet.EMPTY : matched;
+    }
+
+    @Override
+    public int size() {
+        return principals.length;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public List<String> get(final Object key) {
+        final int index = indexOf(key);
+        return index < 0 ? null : roles[index];
+    }
+
+    private int indexOf(final Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        final int id = PrincipalIds.find((String) key);
+        return id == PrincipalIds.NONE ? -1 : Arrays.binarySearch(principalIds, id);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof RoleAssignments)) {
+            return super.equals(o);
+        }
+        final RoleAssignments other = (RoleAssignments) o;
+        return hash == other.hash && Arrays.equals(principalIds, other.principalIds) &&
+                Arrays.equals(roles, other.roles);
+    }
+
+    @Override
+    public Set<Map.Entry<String, List<String>>> entrySet() {
+        return new AbstractSet<Map.Entry<String, List<String>>>() {
+
+            @Override
+            public int size() {
+                return principals.length;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, List<String>>> iterator() {
+                return new Iterator<Map.Entry<String, List<String>>>() {
+
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < principals.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, List<String>> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        final int index = next++;
+                        return new SimpleImmutableEntry<>(principals[index], roles[index]);
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable set of role names, held as small integer ids interned once per role name, so that delegates can match
+ * the roles of a request against the roles they recognize by comparing ids rather than names. Only the roles named by
+ * role assignments are interned, so the ids, which are never reclaimed, are bounded by the roles named in ACLs and
+ * recognized by delegates.
+ *
+ * @author whikloj
+ */
+public final class RoleSet extends AbstractSet<String> {
+
+    /**
+     * A set without roles.
+     */
+    public static final RoleSet EMPTY = new RoleSet(new int[0], new String[0]);
+
+    private static final ConcurrentMap<String, Integer> IDS = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private final int[] ids;
+
+    private final String[] names;
+
+    private RoleSet(final int[] ids, final String[] names) {
+        this.ids = ids;
+        this.names = names;
+    }
+
+    /**
+     * @param roles role names
+     * @return the roles, interned
+     */
+    static RoleSet of(final Collection<String> roles) {
+        if (roles.isEmpty()) {
+            return EMPTY;
+        }
+        final long[] order = new long[roles.size()];
+        final String[] given = roles.toArray(new String[roles.size()]);
+        for (int i = 0; i < given.length; i++) {
+            order[i] = ((long) intern(given[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+        final int[] ids = new int[order.length];
+        final String[] names = new String[order.length];
+        int size = 0;
+        for (final long o : order) {
+            final int id = (int) (o >>> 32);
+            if (size == 0 || ids[size - 1] != id) {
+                ids[size] = id;
+                names[size++] = given[(int) o];
+            }
+        }
+        return size == ids.length ? new RoleSet(ids, names) :
+                new RoleSet(Arrays.copyOf(ids, size), Arrays.copyOf(names, size));
+    }
+
+    /**
+     * Get the ids of the roles a delegate recognizes, to be matched by {@link #mask(int[])}.
+     *
+     * @param roles role names
+     * @return the id of each role, in the order given
+     */
+    public static int[] ids(final String... roles) {
+        final int[] ids = new int[roles.length];
+        for (int i = 0; i < roles.length; i++) {
+            ids[i] = intern(roles[i]);
+        }
+        return ids;
+    }
+
+    private static int intern(final String role) {
+        final Integer id = IDS.get(role);
+        return id != null ? id : IDS.computeIfAbsent(role, r -> NEXT_ID.getAndIncrement());
+    }
+
+    /**
+     * Match the roles against some recognized roles.
+     *
+     * @param roleIds ids of at most 32 roles, as given by {@link #ids(String...)}
+     * @return a mask with bit i set if the role with roleIds[i] is in this set
+     */
+    public int mask(final int[] roleIds) {
+        int mask = 0;
+        for (final int id : ids) {
+            for (int i = 0; i < roleIds.length; i++) {
+                if (roleIds[i] == id) {
+                    mask |= 1 << i;
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @param other other roles
+     * @return the roles in either set
+     */
+    RoleSet union(final RoleSet other) {
+        final int[] merged = new int[ids.length + other.ids.length];
+        final String[] mergedNames = new String[merged.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < ids.length || j < other.ids.length) {
+            if (j == other.ids.length || (i < ids.length && ids[i] < other.ids[j])) {
+                merged[size] = ids[i];
+                mergedNames[size++] = names[i++];
+            } else {
+                if (i < ids.length && ids[i] == other.ids[j]) {
+                    i++;
+                }
+                merged[size] = other.ids[j];
+                mergedNames[size++] = other.names[j++];
+            }
+        }
+        if (size == ids.length) {
+            return this;
+        }
+        if (size == other.ids.length) {
+            return other;
+        }
+        return new RoleSet(Arrays.copyOf(merged, size), Arrays.copyOf(mergedNames, size));
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        final Integer id = IDS.get(o);
+        return id != null && Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return ids.length;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < names.length;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return names[next++];
+            }
+        };
+    }
+}
@@ -16,6 +16,7 @@
 package org.fcrepo.auth.roles.common;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.when;
@@ -87,4 +88,19 @@ public class AbstractRolesAuthorizationDelegateTest {
                 0, roles.size());
     }
 
+    @Test
+    public void shouldReturnModifiableRolesOfInternedAcl() {
+        final Map<String, List<String>> acl = new HashMap<>();
+        acl.put("a", asList("reader"));
+        final Set<Principal> principals = new HashSet<>();
+        principals.add(principalA);
+
+        final Set<String> roles =
+                AbstractRolesAuthorizationDelegate.resolveUserRoles(RoleAssignments.of(acl), principals);
+        roles.add("writer");
+
+        assertEquals("Changing the roles returned should not change those resolved again", singleton("reader"),
+                AbstractRolesAuthorizationDelegate.resolveUserRoles(RoleAssignments.of(acl), principals));
+    }
+
 }
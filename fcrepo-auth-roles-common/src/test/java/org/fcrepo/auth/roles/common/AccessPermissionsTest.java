@@ -0,0 +1,145 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.modeshape.jcr.value.Path;
+
+/**
+ * @author whikloj
+ */
+public class AccessPermissionsTest {
+
+    @Mock
+    private AbstractRolesAuthorizationDelegate authorizationDelegate;
+
+    @Mock
+    private Session session;
+
+    private AccessPermissions accessPermissions;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        initMocks(this);
+        accessPermissions = new AccessPermissions() {
+
+            @Override
+            protected String toInternalPath(final String externalPath) {
+                return externalPath;
+            }
+        };
+        setField(accessPermissions, "authorizationDelegate", authorizationDelegate);
+        setField(accessPermissions, "session", session);
+        when(session.getNamespaceURI("test")).thenReturn("http://example.org/test#");
+    }
+
+    @Test
+    public void testDecisionsKeyedByPath() {
+        final List<Map<String, Boolean>> decisions =
+                asList(singletonMap("read", true), singletonMap("read", false));
+        when(authorizationDelegate.hasPermissions(eq(session), anyListOf(Path.class), eq(asList("read"))))
+                .thenReturn(decisions);
+
+        final Response response = accessPermissions.post(query(asList("/a", "/test:b"), asList("read")));
+
+        assertEquals("Expecting OK response", 200, response.getStatus());
+        @SuppressWarnings("unchecked")
+        final Map<String, Map<String, Boolean>> result = (Map<String, Map<String, Boolean>>) response.getEntity();
+        assertEquals("Decisions should be keyed by the requested paths", asList("/a", "/test:b"),
+                asList(result.keySet().toArray()));
+        assertEquals("Decisions should follow the order of the paths", false, result.get("/test:b").get("read"));
+        verify(session).logout();
+    }
+
+    @Test
+    public void testMissingActions() {
+        try {
+            accessPermissions.post(query(asList("/a"), null));
+            fail("Query without actions should be rejected");
+        } catch (final WebApplicationException e) {
+            assertEquals("Bad Request response expected", 400, e.getResponse().getStatus());
+        }
+        verify(authorizationDelegate, never()).hasPermissions(eq(session), anyListOf(Path.class),
+                anyListOf(String.class));
+        verify(session).logout();
+    }
+
+    @Test
+    public void testRemoveOnlyForOnePath() {
+        try {
+            accessPermissions.post(query(asList("/a", "/b"), asList("read", "remove")));
+            fail("Removal of several paths should not be decided in one query");
+        } catch (final WebApplicationException e) {
+            assertEquals("Bad Request response expected", 400, e.getResponse().getStatus());
+        }
+        verify(authorizationDelegate, never()).hasPermissions(eq(session), anyListOf(Path.class),
+                anyListOf(String.class));
+    }
+
+    @Test
+    public void testRepeatedPath() {
+        try {
+            accessPermissions.post(query(asList("/a", "/b", "/a"), asList("read")));
+            fail("A path asked about twice should be rejected");
+        } catch (final WebApplicationException e) {
+            assertEquals("Bad Request response expected", 400, e.getResponse().getStatus());
+        }
+        verify(authorizationDelegate, never()).hasPermissions(eq(session), anyListOf(Path.class),
+                anyListOf(String.class));
+        verify(session).logout();
+    }
+
+    @Test
+    public void testWithoutRolesDelegate() {
+        setField(accessPermissions, "authorizationDelegate", null);
+        try {
+            accessPermissions.post(query(asList("/a"), asList("read")));
+            fail("Query should not be answered without a roles-based delegate");
+        } catch (final WebApplicationException e) {
+            assertEquals("Not Implemented response expected", 501, e.getResponse().getStatus());
+        }
+    }
+
+    private static Map<String, List<String>> query(final List<String> paths, final List<String> actions) {
+        final Map<String, List<String>> query = new HashMap<>();
+        query.put("paths", paths);
+        query.put("actions", actions);
+        return query;
+    }
+}
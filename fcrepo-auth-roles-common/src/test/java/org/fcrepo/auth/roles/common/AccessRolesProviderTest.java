@@ -15,15 +15,20 @@
  */
 package org.fcrepo.auth.roles.common;
 
+import static java.util.Arrays.asList;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.Rbacl;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.assignments;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.principal;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.rbacl;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.revision;
 import static org.fcrepo.auth.roles.common.Constants.JcrName.role;
 import static org.fcrepo.kernel.modeshape.testutilities.TestNodeIterator.nodeIterator;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
@@ -33,9 +38,13 @@ import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.util.ReflectionTestUtils.getField;
 
+import java.security.Principal;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -53,6 +62,8 @@ import org.fcrepo.auth.roles.common.Constants.JcrName;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.modeshape.jcr.value.Path;
 
 /**
@@ -102,7 +113,7 @@ public class AccessRolesProviderTest {
             final String roleName) throws RepositoryException {
         // Set up principal for parent node
         when(principalProperty.getString()).thenReturn(principalName);
-        when(principalNode.getProperty(eq(principal.getQualified())))
+        when(principalNode.getProperty(eq(principal.getExpanded())))
                 .thenReturn(principalProperty);
 
         // Roles for parent
@@ -110,7 +121,7 @@ public class AccessRolesProviderTest {
         final Value roleValue = mock(Value.class);
         when(roleValue.toString()).thenReturn(roleName);
         when(roleProperty.getValues()).thenReturn(new Value[] {roleValue});
-        when(principalNode.getProperty(eq(role.getQualified())))
+        when(principalNode.getProperty(eq(role.getExpanded())))
                 .thenReturn(roleProperty);
     }
 
@@ -129,6 +140,17 @@ public class AccessRolesProviderTest {
                 data.isEmpty());
     }
 
+    @Test
+    public void testGetRolesDoesNotRegisterPrefixes() throws RepositoryException {
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.getNode(eq(rbacl.getExpanded()))).thenReturn(rbaclNode);
+
+        final Map<String, List<String>> data = provider.getRoles(node, true);
+
+        assertEquals("Roles should be read through expanded names", asList("role"), data.get("principal"));
+        verify(session, never()).setNamespacePrefix(anyString(), anyString());
+    }
+
     @Test
     public void testGetRolesRBACLsNullPrincipalName()
             throws RepositoryException {
@@ -272,13 +294,13 @@ public class AccessRolesProviderTest {
 
         // Set up parent node
         final Node parentNode1 = mock(Node.class);
-        when(parentNode1.isNodeType(eq(rbaclAssignable.getQualified())))
+        when(parentNode1.isNodeType(eq(rbaclAssignable.getExpanded())))
                 .thenReturn(true);
         when(parentNode1.getNode(anyString())).thenReturn(rbaclNode);
 
         // Set up immediate parent node
         final Node parentNode2 = mock(Node.class);
-        when(parentNode2.isNodeType(eq(rbaclAssignable.getQualified())))
+        when(parentNode2.isNodeType(eq(rbaclAssignable.getExpanded())))
                 .thenReturn(true);
         when(parentNode2.getNode(anyString())).thenReturn(rbaclNode);
         when(parentNode2.getParent()).thenReturn(parentNode1);
@@ -380,7 +402,7 @@ public class AccessRolesProviderTest {
         // Roles for parent
         final Property roleProperty = mock(Property.class);
         when(roleProperty.getValues()).thenReturn(new Value[] {null});
-        when(principalNode1.getProperty(eq(role.getQualified())))
+        when(principalNode1.getProperty(eq(role.getExpanded())))
                 .thenReturn(roleProperty);
 
         final Map<String, List<String>> data = provider.getRoles(node, true);
@@ -404,7 +426,7 @@ public class AccessRolesProviderTest {
         final Value roleValue = mock(Value.class);
         when(roleValue.toString()).thenReturn("");
         when(roleProperty.getValues()).thenReturn(new Value[] {roleValue});
-        when(principalNode1.getProperty(eq(JcrName.role.getQualified())))
+        when(principalNode1.getProperty(eq(JcrName.role.getExpanded())))
                 .thenReturn(roleProperty);
 
         final Map<String, List<String>> data = provider.getRoles(node, true);
@@ -426,9 +448,9 @@ public class AccessRolesProviderTest {
         provider.postRoles(node, data);
 
         // Node should be given node types to make it assignable
-        verify(node).addMixin(eq(JcrName.rbaclAssignable.getQualified()));
-        verify(node).addNode(eq(JcrName.rbacl.getQualified()),
-                eq(JcrName.Rbacl.getQualified()));
+        verify(node).addMixin(eq(JcrName.rbaclAssignable.getExpanded()));
+        verify(node).addNode(eq(JcrName.rbacl.getExpanded()),
+                eq(JcrName.Rbacl.getExpanded()));
         // No acl assignments should be made since data was empty
         verify(aclNode, never()).addNode(anyString());
     }
@@ -439,16 +461,16 @@ public class AccessRolesProviderTest {
         final Map<String, Set<String>> data =
                 new HashMap<>();
 
-        when(node.isNodeType(rbaclAssignable.getQualified()))
+        when(node.isNodeType(rbaclAssignable.getExpanded()))
                 .thenReturn(true);
 
         provider.postRoles(node, data);
 
         // Mixin should not be added
         verify(node, never()).addMixin(
-                eq(rbaclAssignable.getQualified()));
-        verify(node).addNode(eq(rbacl.getQualified()),
-                eq(Rbacl.getQualified()));
+                eq(rbaclAssignable.getExpanded()));
+        verify(node).addNode(eq(rbacl.getExpanded()),
+                eq(Rbacl.getExpanded()));
     }
 
     @Test
@@ -466,16 +488,16 @@ public class AccessRolesProviderTest {
         provider.postRoles(node, data);
 
         // Verify that node was setup to be assignable
-        verify(node).addMixin(eq(JcrName.rbaclAssignable.getQualified()));
-        verify(node).addNode(eq(JcrName.rbacl.getQualified()),
-                eq(JcrName.Rbacl.getQualified()));
+        verify(node).addMixin(eq(JcrName.rbaclAssignable.getExpanded()));
+        verify(node).addNode(eq(JcrName.rbacl.getExpanded()),
+                eq(JcrName.Rbacl.getExpanded()));
 
         // Verify that the new principals and roles were added
-        verify(aclNode).addNode(eq(JcrName.assignment.getQualified()),
-                eq(JcrName.Assignment.getQualified()));
-        verify(assignNode).setProperty(eq(JcrName.principal.getQualified()),
+        verify(aclNode).addNode(eq(JcrName.assignment.getExpanded()),
+                eq(JcrName.Assignment.getExpanded()));
+        verify(assignNode).setProperty(eq(JcrName.principal.getExpanded()),
                 eq("principal"));
-        verify(assignNode).setProperty(eq(JcrName.role.getQualified()),
+        verify(assignNode).setProperty(eq(JcrName.role.getExpanded()),
                 any(String[].class));
     }
 
@@ -484,16 +506,16 @@ public class AccessRolesProviderTest {
 
         final Map<String, Set<String>> data = new HashMap<>();
 
-        when(node.hasNode(eq(rbacl.getQualified()))).thenReturn(true);
+        when(node.hasNode(eq(rbacl.getExpanded()))).thenReturn(true);
 
         final Node aclNode = mock(Node.class);
         when(aclNode.getNodes()).thenReturn(rbaclIterator);
-        when(node.getNode(eq(rbacl.getQualified())))
+        when(node.getNode(eq(rbacl.getExpanded())))
                 .thenReturn(aclNode);
 
         provider.postRoles(node, data);
 
-        verify(node).addMixin(eq(rbaclAssignable.getQualified()));
+        verify(node).addMixin(eq(rbaclAssignable.getExpanded()));
 
         // Check that it attempted to remove existing principals
         verify(principalNode1).remove();
@@ -502,50 +524,171 @@ public class AccessRolesProviderTest {
         verify(node, never()).addNode(anyString(), anyString());
     }
 
+    @Test
+    public void testPostRolesWritesOnlyChanges() throws RepositoryException {
+        final Node unchanged = mock(Node.class);
+        setupPrincipalNode(unchanged, mock(Property.class), "unchanged", "reader");
+        final Node changed = mock(Node.class);
+        setupPrincipalNode(changed, mock(Property.class), "changed", "reader");
+        final Node dropped = mock(Node.class);
+        setupPrincipalNode(dropped, mock(Property.class), "dropped", "reader");
+        final Node duplicate = mock(Node.class);
+        setupPrincipalNode(duplicate, mock(Property.class), "unchanged", "reader");
+
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasNode(eq(rbacl.getExpanded()))).thenReturn(true);
+        when(node.getNode(eq(rbacl.getExpanded()))).thenReturn(rbaclNode);
+        when(rbaclNode.getNodes()).thenReturn(nodeIterator(unchanged, changed, dropped, duplicate));
+        final Node addedNode = mock(Node.class);
+        when(rbaclNode.addNode(anyString(), anyString())).thenReturn(addedNode);
+
+        final Map<String, Set<String>> data = new HashMap<>();
+        data.put("unchanged", new HashSet<>(asList("reader")));
+        data.put("changed", new HashSet<>(asList("writer")));
+        data.put("added", new HashSet<>(asList("admin")));
+
+        provider.postRoles(node, data);
+
+        verify(unchanged, never()).setProperty(anyString(), any(String[].class));
+        verify(unchanged, never()).remove();
+        verify(changed).setProperty(eq(role.getExpanded()), eq(new String[] {"writer"}));
+        verify(changed, never()).remove();
+        verify(dropped).remove();
+        verify(duplicate).remove();
+        verify(rbaclNode, times(1)).addNode(anyString(), anyString());
+        verify(addedNode).setProperty(eq(principal.getExpanded()), eq("added"));
+    }
+
+    @Test
+    public void testPostRolesRecordsRevision() throws RepositoryException {
+        final Node aclNode = mock(Node.class);
+        when(node.addNode(anyString(), anyString())).thenReturn(aclNode);
+        when(aclNode.addNode(anyString(), anyString())).thenReturn(mock(Node.class));
+        final Map<String, Set<String>> data = new HashMap<>();
+        data.put("principal", new HashSet<>(asList("role")));
+
+        provider.postRoles(node, data);
+
+        verify(node).setProperty(eq(revision.getExpanded()), anyString());
+    }
+
+    @Test
+    public void testPostRolesUnchangedKeepsRevision() throws RepositoryException {
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasNode(eq(rbacl.getExpanded()))).thenReturn(true);
+        when(node.getNode(eq(rbacl.getExpanded()))).thenReturn(rbaclNode);
+        final Map<String, Set<String>> data = new HashMap<>();
+        data.put("principal", new HashSet<>(asList("role")));
+
+        provider.postRoles(node, data);
+
+        verify(node, never()).setProperty(eq(revision.getExpanded()), anyString());
+    }
+
+    @Test
+    public void testGetRolesTag() throws RepositoryException {
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasProperty(eq(revision.getExpanded()))).thenReturn(true);
+        final Property revisionProperty = mock(Property.class);
+        when(revisionProperty.getString()).thenReturn("rev");
+        when(node.getProperty(eq(revision.getExpanded()))).thenReturn(revisionProperty);
+
+        assertEquals("Tag should be the revision of the roles", "rev", provider.getRolesTag(node, false));
+    }
+
+    @Test
+    public void testGetRolesTagEffective() throws RepositoryException {
+        final Node parent = mock(Node.class);
+        when(node.getParent()).thenReturn(parent);
+        when(parent.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(parent.getIdentifier()).thenReturn("parent-id");
+
+        assertNull("Node without roles should have no tag", provider.getRolesTag(node, false));
+        assertEquals("Effective tag should identify the governing roles", "parent-id",
+                provider.getRolesTag(node, true));
+    }
+
+    @Test
+    public void testPatchRoles() throws RepositoryException {
+        final Node other = mock(Node.class);
+        setupPrincipalNode(other, mock(Property.class), "other", "reader");
+
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasNode(eq(rbacl.getExpanded()))).thenReturn(true);
+        when(node.getNode(eq(rbacl.getExpanded()))).thenReturn(rbaclNode);
+        when(rbaclNode.getNodes()).thenReturn(nodeIterator(principalNode1, other),
+                nodeIterator(principalNode1, other));
+
+        final Map<String, Set<String>> delta = new HashMap<>();
+        delta.put("principal", new HashSet<String>());
+        delta.put("other", new HashSet<>(asList("writer")));
+
+        provider.patchRoles(node, delta);
+
+        verify(principalNode1).remove();
+        verify(other).setProperty(eq(role.getExpanded()), eq(new String[] {"writer"}));
+        verify(rbaclNode, never()).addNode(anyString(), anyString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPatchRolesRemovingEveryAssignment() throws RepositoryException {
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.getNode(eq(rbacl.getExpanded()))).thenReturn(rbaclNode);
+
+        final Map<String, Set<String>> delta = new HashMap<>();
+        delta.put("principal", new HashSet<String>());
+
+        try {
+            provider.patchRoles(node, delta);
+        } finally {
+            verify(principalNode1, never()).remove();
+        }
+    }
+
     @Test
     public void testDeleteRolesNonAssignable() throws RepositoryException {
 
-        when(node.isNodeType(eq(JcrName.rbaclAssignable.getQualified())))
+        when(node.isNodeType(eq(JcrName.rbaclAssignable.getExpanded())))
                 .thenReturn(false);
 
         provider.deleteRoles(node);
 
         // No work occurs since there are no roles to delete
         verify(node, never()).removeMixin(
-                eq(JcrName.rbaclAssignable.getQualified()));
+                eq(JcrName.rbaclAssignable.getExpanded()));
         verify(node, never()).getNode(anyString());
     }
 
     @Test
     public void testDeleteRolesRBACLPathNotFound() throws RepositoryException {
 
-        when(node.isNodeType(eq(JcrName.rbaclAssignable.getQualified())))
+        when(node.isNodeType(eq(JcrName.rbaclAssignable.getExpanded())))
                 .thenReturn(true);
 
-        when(node.getNode(eq(JcrName.rbacl.getQualified()))).thenThrow(new PathNotFoundException());
+        when(node.getNode(eq(JcrName.rbacl.getExpanded()))).thenThrow(new PathNotFoundException());
 
         provider.deleteRoles(node);
 
         // Verify that mixin still gets removed
-        verify(node).removeMixin(eq(JcrName.rbaclAssignable.getQualified()));
+        verify(node).removeMixin(eq(JcrName.rbaclAssignable.getExpanded()));
         // Verify that it attempted to get the rbacl node, and threw exception
-        verify(node).getNode(eq(JcrName.rbacl.getQualified()));
+        verify(node).getNode(eq(JcrName.rbacl.getExpanded()));
     }
 
     @Test
     public void testDeleteRoles() throws RepositoryException {
 
-        when(node.isNodeType(eq(JcrName.rbaclAssignable.getQualified())))
+        when(node.isNodeType(eq(JcrName.rbaclAssignable.getExpanded())))
                 .thenReturn(true);
 
-        when(node.getNode(eq(JcrName.rbacl.getQualified()))).thenReturn(
+        when(node.getNode(eq(JcrName.rbacl.getExpanded()))).thenReturn(
                 rbaclNode);
 
         provider.deleteRoles(node);
 
         // Check that mixin and rbacl node were removed
         verify(rbaclNode).remove();
-        verify(node).removeMixin(eq(JcrName.rbaclAssignable.getQualified()));
+        verify(node).removeMixin(eq(JcrName.rbaclAssignable.getExpanded()));
     }
 
     @Test
@@ -558,7 +701,7 @@ public class AccessRolesProviderTest {
         when(session.getRootNode()).thenReturn(node);
 
         // Not assignable and with no parents
-        when(node.isNodeType(eq(JcrName.rbaclAssignable.getQualified())))
+        when(node.isNodeType(eq(JcrName.rbaclAssignable.getExpanded())))
                 .thenReturn(false);
         when(node.getParent()).thenReturn(null);
 
@@ -583,7 +726,7 @@ public class AccessRolesProviderTest {
         when(session.getNode(eq(pathString))).thenReturn(node);
 
         // Not assignable, but with parent that is assignable
-        when(node.isNodeType(eq(JcrName.rbaclAssignable.getQualified())))
+        when(node.isNodeType(eq(JcrName.rbaclAssignable.getExpanded())))
                 .thenReturn(false);
 
         final Node parentNode = mock(Node.class);
@@ -620,7 +763,7 @@ public class AccessRolesProviderTest {
 
         when(session.getRootNode()).thenReturn(node);
 
-        when(node.isNodeType(eq(JcrName.rbaclAssignable.getQualified())))
+        when(node.isNodeType(eq(JcrName.rbaclAssignable.getExpanded())))
                 .thenReturn(true);
 
         when(node.getNode(anyString())).thenReturn(rbaclNode);
@@ -671,4 +814,383 @@ public class AccessRolesProviderTest {
             verify(session, times(2)).getNode(anyString());
         }
     }
+
+    @Test
+    public void testFindRolesForPathCached() throws RepositoryException {
+        provider = new RbAclAccessRolesProvider(new EffectiveRolesCache(100, 60));
+
+        final Path path = mock(Path.class);
+        when(path.getString()).thenReturn("/parent/child");
+        when(session.getNode(eq("/parent/child"))).thenReturn(node);
+
+        final Node parentNode = mock(Node.class);
+        when(parentNode.isNodeType(anyString())).thenReturn(true);
+        when(parentNode.getNode(anyString())).thenReturn(rbaclNode);
+        when(parentNode.getPath()).thenReturn("/parent");
+        when(node.getParent()).thenReturn(parentNode);
+
+        final Map<String, List<String>> data = provider.findRolesForPath(path, session);
+        final Map<String, List<String>> cached = provider.findRolesForPath(path, session);
+
+        assertEquals("One principal should be retrieved", 1, data.size());
+        assertEquals("Cached roles should match", data, cached);
+        // The repository should only be consulted once
+        verify(session).getNode(eq("/parent/child"));
+        verify(rbaclNode).getNodes();
+    }
+
+    @Test
+    public void testSavedRolesInvalidateCache() throws RepositoryException {
+        provider = new RbAclAccessRolesProvider(new EffectiveRolesCache(100, 60));
+
+        final Path path = mock(Path.class);
+        when(path.getString()).thenReturn("/parent");
+        when(session.getNode(eq("/parent"))).thenReturn(node);
+        when(node.getPath()).thenReturn("/parent");
+
+        assertNull("Unassignable node should return no role data", provider.findRolesForPath(path, session));
+
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasNode(eq(rbacl.getExpanded()))).thenReturn(true);
+        when(node.getNode(eq(rbacl.getExpanded()))).thenReturn(rbaclNode);
+        when(rbaclNode.getNodes()).thenReturn(nodeIterator(), nodeIterator(principalNode1));
+        provider.postRoles(node, new HashMap<String, Set<String>>());
+        assertNull("Roles should stay cached until the posted roles are saved",
+                provider.findRolesForPath(path, session));
+
+        provider.rolesSaved(node);
+        assertEquals("Roles should be looked up again after posting roles", 1,
+                provider.findRolesForPath(path, session).size());
+    }
+
+    @Test
+    public void testFindRolesForPathIndexed() throws RepositoryException {
+        final AclPathIndex index = new AclPathIndex();
+        index.add("/parent");
+        index.setBuilt();
+        provider = new RbAclAccessRolesProvider(null, index);
+
+        final Path path = mockPath("parent", "child");
+        final Node childNode = mock(Node.class);
+
+        when(session.getNode(eq("/parent"))).thenReturn(node);
+        when(session.getNode(eq("/parent/child"))).thenReturn(childNode);
+        when(childNode.getDepth()).thenReturn(2);
+        when(childNode.getParent()).thenReturn(node);
+        when(node.getDepth()).thenReturn(1);
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.getNode(anyString())).thenReturn(rbaclNode);
+
+        final Map<String, List<String>> data = provider.findRolesForPath(path, session);
+
+        assertEquals("One principal should be retrieved", 1, data.size());
+        assertEquals("Indexed ACL should govern the path", "/parent",
+                provider.findAclPathForPath(path, session));
+        // The hit is confirmed no further up than the indexed ACL
+        verify(node, never()).getParent();
+    }
+
+    @Test
+    public void testFindRolesForAclPath() throws RepositoryException {
+        when(session.getNode(eq("/parent"))).thenReturn(node);
+        when(session.getNode(eq("/gone"))).thenThrow(new PathNotFoundException());
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.getNode(anyString())).thenReturn(rbaclNode);
+
+        assertEquals("One principal should be retrieved", asList("role"),
+                provider.findRolesForAclPath("/parent", session).get("principal"));
+        assertNull("A removed node should carry no roles", provider.findRolesForAclPath("/gone", session));
+        // the roles are read from the node found earlier, not looked up again
+        verify(node, never()).getParent();
+    }
+
+    @Test
+    public void testFindRolesForPathIndexHitConfirmed() throws RepositoryException {
+        final AclPathIndex index = new AclPathIndex();
+        index.add("/parent");
+        index.setBuilt();
+        provider = new RbAclAccessRolesProvider(null, index);
+
+        // an ACL saved below the indexed one by another session, whose event has not arrived yet
+        final Node childNode = mock(Node.class);
+        final Node childRbaclNode = mock(Node.class);
+        final Node principalNode2 = mock(Node.class);
+        final Property principalProperty2 = mock(Property.class);
+        setupPrincipalNode(principalNode2, principalProperty2, "principal2", "role2");
+        when(childRbaclNode.getNodes()).thenReturn(nodeIterator(principalNode2));
+        when(session.getNode(eq("/parent/child"))).thenReturn(childNode);
+        when(childNode.getDepth()).thenReturn(2);
+        when(childNode.getPath()).thenReturn("/parent/child");
+        when(childNode.getSession()).thenReturn(session);
+        when(childNode.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(childNode.getNode(anyString())).thenReturn(childRbaclNode);
+
+        final Path path = mockPath("parent", "child");
+        final Map<String, List<String>> data = provider.findRolesForPath(path, session);
+
+        assertEquals("Roles of the nearer ACL should govern the path", asList("role2"), data.get("principal2"));
+        assertNull("Roles of the indexed ancestor should not apply", data.get("principal"));
+        assertEquals("Nearer ACL should govern the path", "/parent/child", provider.findAclPathForPath(path, session));
+    }
+
+    @Test
+    public void testFindRolesForPathIndexedNoAcl() throws RepositoryException {
+        final AclPathIndex index = new AclPathIndex();
+        index.setBuilt();
+        provider = new RbAclAccessRolesProvider(null, index);
+        when(session.getNode(eq("/parent/child"))).thenReturn(node);
+
+        assertNull("Path without an ACL should return no role data",
+                provider.findRolesForPath(mockPath("parent", "child"), session));
+    }
+
+    @Test
+    public void testFindRolesForPathIndexMissConfirmed() throws RepositoryException {
+        final AclPathIndex index = new AclPathIndex();
+        index.setBuilt();
+        provider = new RbAclAccessRolesProvider(null, index);
+
+        // an ACL saved by another session, whose event has not arrived yet
+        final Node parentNode = mock(Node.class);
+        when(parentNode.isNodeType(anyString())).thenReturn(true);
+        when(parentNode.getNode(anyString())).thenReturn(rbaclNode);
+        when(parentNode.getPath()).thenReturn("/parent");
+        when(session.getNode(eq("/parent/child"))).thenReturn(node);
+        when(node.getParent()).thenReturn(parentNode);
+
+        final Path path = mockPath("parent", "child");
+        assertEquals("Roles missing from the index should be found in the repository", 1,
+                provider.findRolesForPath(path, session).size());
+    }
+
+    @Test
+    public void testRolesSavedUpdatesIndex() throws RepositoryException {
+        final AclPathIndex index = new AclPathIndex();
+        provider = new RbAclAccessRolesProvider(null, index);
+        when(node.getPath()).thenReturn("/parent");
+        when(node.addNode(anyString(), anyString())).thenReturn(rbaclNode);
+
+        provider.postRoles(node, new HashMap<String, Set<String>>());
+        assertNull("Unsaved roles should not be indexed", index.find("/parent/child"));
+
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        provider.rolesSaved(node);
+        assertEquals("Saved node should be indexed", "/parent", index.find("/parent/child"));
+
+        when(node.getNode(eq(rbacl.getExpanded()))).thenReturn(rbaclNode);
+        provider.deleteRoles(node);
+        assertEquals("Unsaved deletion should leave the node indexed", "/parent", index.find("/parent/child"));
+
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(false);
+        provider.rolesSaved(node);
+        assertNull("Deleted node should no longer be indexed", index.find("/parent/child"));
+    }
+
+    @Test
+    public void testGetCompactRoles() throws RepositoryException {
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasProperty(eq(assignments.getExpanded()))).thenReturn(true);
+        final Property compact = mock(Property.class);
+        when(node.getProperty(eq(assignments.getExpanded()))).thenReturn(compact);
+        when(compact.getValues()).thenReturn(new Value[] {value("alice=reader"), value("alice=writer"),
+                value("a=b=admin"), value("malformed")});
+
+        final Map<String, List<String>> data = provider.getRoles(node, false);
+
+        assertEquals("Roles should be grouped by principal", asList("reader", "writer"), data.get("alice"));
+        assertEquals("Principal names may contain the separator", asList("admin"), data.get("a=b"));
+        assertEquals("Malformed values should be skipped", 2, data.size());
+        verify(node, never()).getNode(anyString());
+    }
+
+    @Test
+    public void testPostCompactRolesMigrates() throws RepositoryException {
+        final AccessRolesProvider compactProvider = new RbAclAccessRolesProvider(null, null, true);
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasNode(eq(rbacl.getExpanded()))).thenReturn(true);
+        when(node.getNode(eq(rbacl.getExpanded()))).thenReturn(rbaclNode);
+        final Map<String, Set<String>> data = new HashMap<>();
+        data.put("alice", new HashSet<>(asList("reader")));
+
+        compactProvider.postRoles(node, data);
+
+        verify(node).setProperty(eq(assignments.getExpanded()), eq(new String[] {"alice=reader"}));
+        verify(rbaclNode).remove();
+        verify(node, never()).addNode(anyString(), anyString());
+    }
+
+    @Test
+    public void testPrincipalIndexRecordsPostedPrincipals() throws RepositoryException {
+        final PrincipalIndex index = new PrincipalIndex();
+        final AccessRolesProvider indexedProvider = new RbAclAccessRolesProvider(null, null, true, index);
+        final Principal alice = mock(Principal.class);
+        when(alice.getName()).thenReturn("alice");
+        final Set<Principal> principals = new HashSet<>(asList(alice));
+        final Map<String, Set<String>> data = new HashMap<>();
+        data.put("alice", new HashSet<>(asList("reader")));
+
+        when(node.getPath()).thenReturn("/parent");
+
+        assertTrue("Principals may hold roles until the index is built", indexedProvider.mayHaveRoles(principals));
+        index.setBuilt();
+        assertFalse("Unassigned principals should hold no roles", indexedProvider.mayHaveRoles(principals));
+
+        indexedProvider.postRoles(node, data);
+        assertFalse("Unsaved assignments should not be indexed", indexedProvider.mayHaveRoles(principals));
+
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasProperty(eq(assignments.getExpanded()))).thenReturn(true);
+        final Property compact = mock(Property.class);
+        when(node.getProperty(eq(assignments.getExpanded()))).thenReturn(compact);
+        when(compact.getValues()).thenReturn(new Value[] {value("alice=reader")});
+        indexedProvider.rolesSaved(node);
+
+        assertTrue("Assigned principals may hold roles", indexedProvider.mayHaveRoles(principals));
+        assertEquals("Assigned roles should be indexed by path", asList("reader"),
+                indexedProvider.findPrincipalRoles("alice", null, 10).get("/parent"));
+    }
+
+    @Test
+    public void testPrincipalIndexKeepsObserving() {
+        System.setProperty(RbAclAccessRolesProvider.OBSERVE_PROPERTY, "false");
+        try {
+            assertFalse("Observation may be turned off without the principal index",
+                    (Boolean) getField(new RbAclAccessRolesProvider(null, new AclPathIndex()), "observe"));
+            assertTrue("Observation should stay on with the principal index", (Boolean) getField(
+                    new RbAclAccessRolesProvider(null, null, false, new PrincipalIndex()), "observe"));
+        } finally {
+            System.clearProperty(RbAclAccessRolesProvider.OBSERVE_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testPostCompactRolesUnchanged() throws RepositoryException {
+        final AccessRolesProvider compactProvider = new RbAclAccessRolesProvider(null, null, true);
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasProperty(eq(assignments.getExpanded()))).thenReturn(true);
+        final Property compact = mock(Property.class);
+        when(node.getProperty(eq(assignments.getExpanded()))).thenReturn(compact);
+        when(compact.getValues()).thenReturn(new Value[] {value("alice=writer"), value("alice=reader")});
+        final Map<String, Set<String>> data = new HashMap<>();
+        data.put("alice", new HashSet<>(asList("reader", "writer")));
+
+        compactProvider.postRoles(node, data);
+
+        verify(node, never()).setProperty(anyString(), any(String[].class));
+        verify(node, never()).setProperty(eq(revision.getExpanded()), anyString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPostCompactRolesRejectsSeparator() throws RepositoryException {
+        final AccessRolesProvider compactProvider = new RbAclAccessRolesProvider(null, null, true);
+        final Map<String, Set<String>> data = new HashMap<>();
+        data.put("alice", new HashSet<>(asList("a=b")));
+
+        compactProvider.postRoles(node, data);
+    }
+
+    @Test
+    public void testPostRolesRejectsPrincipalWithoutRoles() throws RepositoryException {
+        final Map<String, Set<String>> data = new HashMap<>();
+        data.put("alice", new HashSet<String>());
+        for (final boolean compact : new boolean[] {false, true}) {
+            try {
+                new RbAclAccessRolesProvider(null, null, compact).postRoles(node, data);
+                fail("A principal assigned no roles should be refused, compact: " + compact);
+            } catch (final IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testDeleteCompactRoles() throws RepositoryException {
+        when(node.isNodeType(eq(rbaclAssignable.getExpanded()))).thenReturn(true);
+        when(node.hasProperty(eq(assignments.getExpanded()))).thenReturn(true);
+        final Property compact = mock(Property.class);
+        when(node.getProperty(eq(assignments.getExpanded()))).thenReturn(compact);
+        when(node.getNode(eq(rbacl.getExpanded()))).thenThrow(new PathNotFoundException());
+
+        provider.deleteRoles(node);
+
+        verify(compact).remove();
+        verify(node).removeMixin(eq(rbaclAssignable.getExpanded()));
+    }
+
+    private static Value value(final String string) throws RepositoryException {
+        final Value value = mock(Value.class);
+        when(value.getString()).thenReturn(string);
+        return value;
+    }
+
+    @Test
+    public void testProviderDefaults() throws RepositoryException {
+        final Node parent = mock(Node.class);
+        when(node.getDepth()).thenReturn(2);
+        when(node.getParent()).thenReturn(parent);
+        when(parent.getPath()).thenReturn("/parent");
+        when(parent.getSession()).thenReturn(session);
+        final Path path = mock(Path.class);
+        when(path.getString()).thenReturn("/parent/node");
+        when(session.nodeExists("/parent/node")).thenReturn(true);
+        when(session.getNode("/parent/node")).thenReturn(node);
+
+        final Map<String, List<String>> parentRoles = new HashMap<>();
+        parentRoles.put("principal", asList("reader"));
+        final List<Map<String, Set<String>>> posted = new ArrayList<>();
+        final AccessRolesProvider minimal = new AccessRolesProvider() {
+
+            @Override
+            public Map<String, List<String>> getRoles(final Node subject, final boolean effective) {
+                return subject == parent ? parentRoles : null;
+            }
+
+            @Override
+            public void postRoles(final Node subject, final Map<String, Set<String>> data) {
+                posted.add(data);
+            }
+
+            @Override
+            public void deleteRoles(final Node subject) {
+            }
+
+            @Override
+            public Map<String, List<String>> findRolesForPath(final Path absPath, final Session s) {
+                return null;
+            }
+        };
+
+        assertEquals("Governing node should be found by walking up", "/parent",
+                minimal.findAclPathForPath(path, session));
+        assertNull("Roles should not be tagged", minimal.getRolesTag(parent, false));
+        assertNull("Principals should not be indexed", minimal.findPrincipalRoles("principal", null, 10));
+
+        final Map<String, Set<String>> delta = new HashMap<>();
+        delta.put("other", new HashSet<>(asList("writer")));
+        minimal.patchRoles(parent, delta);
+        minimal.postRoles(parent, delta.entrySet().iterator());
+
+        final Map<String, Set<String>> patched = new HashMap<>(delta);
+        patched.put("principal", new HashSet<>(asList("reader")));
+        assertEquals("Patch should merge the delta into the assigned roles", asList(patched, delta), posted);
+    }
+
+    private static Path mockPath(final String... names) {
+        final List<Path.Segment> segments = new ArrayList<>();
+        for (final String name : names) {
+            final Path.Segment segment = mock(Path.Segment.class);
+            when(segment.getString()).thenReturn(name);
+            segments.add(segment);
+        }
+        final Path path = mock(Path.class);
+        when(path.iterator()).thenAnswer(new Answer<Iterator<Path.Segment>>() {
+
+            @Override
+            public Iterator<Path.Segment> answer(final InvocationOnMock invocation) {
+                return segments.iterator();
+            }
+        });
+        when(path.getString()).thenReturn("/" + String.join("/", names));
+        return path;
+    }
 }
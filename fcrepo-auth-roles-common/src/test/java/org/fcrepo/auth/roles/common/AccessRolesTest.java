@@ -15,35 +15,60 @@
  */
 package org.fcrepo.auth.roles.common;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.Executors.newSingleThreadExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.fcrepo.http.commons.test.util.TestHelpers.mockSession;
+import static org.fcrepo.kernel.api.FedoraJcrTypes.FEDORA_BINARY;
+import static org.fcrepo.kernel.api.FedoraJcrTypes.FEDORA_RESOURCE;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 import static org.springframework.test.util.ReflectionTestUtils.setField;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 
 import javax.jcr.Node;
+import javax.jcr.NodeIterator;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.PathSegment;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 
+import org.fcrepo.http.commons.session.SessionFactory;
 import org.fcrepo.kernel.api.models.FedoraResource;
 import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
 import org.fcrepo.kernel.api.services.NodeService;
@@ -51,6 +76,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Matchers;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  * @author bbpennel
@@ -83,6 +110,12 @@ public class AccessRolesTest {
     @Mock
     private javax.jcr.Node mockNode;
 
+    @Mock
+    private HttpServletRequest servletRequest;
+
+    @Mock
+    private SessionFactory sessionFactory;
+
     @Before
     public void setUp() throws RepositoryException {
         initMocks(this);
@@ -92,8 +125,11 @@ public class AccessRolesTest {
         setField(accessRoles, "nodeService", nodeService);
         session = mockSession(accessRoles);
         setField(accessRoles, "session", session);
+        setField(accessRoles, "servletRequest", servletRequest);
+        setField(accessRoles, "sessionFactory", sessionFactory);
 
         when(session.getNode("/some/path")).thenReturn(mockNode);
+        when(mockNode.getIdentifier()).thenReturn("some-id");
 
         when(nodeService.find(any(Session.class), anyString()))
                 .thenReturn(fedoraResource);
@@ -157,73 +193,173 @@ public class AccessRolesTest {
         }
     }
 
+    @Test
+    public void testGetNotModified() throws RepositoryException {
+        when(accessRolesProvider.getRolesTag(any(Node.class), anyBoolean())).thenReturn("r1");
+        when(request.evaluatePreconditions(any(EntityTag.class))).thenReturn(Response.notModified());
+
+        final Response response = accessRoles.get("");
+
+        assertEquals("Not Modified response expected for a matching ETag", 304, response.getStatus());
+        assertEquals("Response should carry the ETag", "r1", response.getEntityTag().getValue());
+        verify(accessRolesProvider, never()).getRoles(any(Node.class), anyBoolean());
+        verify(session).logout();
+    }
+
+    @Test
+    public void testGetTagged() throws RepositoryException {
+        when(accessRolesProvider.getRolesTag(any(Node.class), anyBoolean())).thenReturn("r1");
+        when(accessRolesProvider.getRoles(any(Node.class), anyBoolean())).thenReturn(rolesData);
+
+        final Response response = accessRoles.get(null);
+
+        assertEquals("Expecting OK response", 200, response.getStatus());
+        assertEquals("Response should carry the ETag", "r1", response.getEntityTag().getValue());
+    }
+
+    @Test
+    public void testPostPreconditionFailed() throws RepositoryException {
+        when(accessRolesProvider.getRolesTag(any(Node.class), anyBoolean())).thenReturn("r1");
+        when(request.evaluatePreconditions(any(EntityTag.class))).thenReturn(
+                Response.status(Status.PRECONDITION_FAILED));
+
+        try {
+            accessRoles.post(json("{\"principalName\": [\"role\"]}"));
+            fail("Post should fail when the ETag does not match");
+        } catch (final WebApplicationException e) {
+            assertEquals("Precondition Failed response expected", 412, e.getResponse().getStatus());
+        }
+        verify(accessRolesProvider, never()).postRoles(any(Node.class),
+                Matchers.<Iterator<Map.Entry<String, Set<String>>>>any());
+        verify(session, never()).save();
+        verify(session).logout();
+    }
+
+    @Test
+    public void testPostConcurrentChangeFailsPrecondition() throws RepositoryException {
+        final Session saved = mock(Session.class);
+        final Node savedNode = mock(Node.class);
+        when(servletRequest.getHeader(HttpHeaders.IF_MATCH)).thenReturn("\"r1\"");
+        when(sessionFactory.getInternalSession()).thenReturn(saved);
+        when(saved.getNode(anyString())).thenReturn(savedNode);
+        when(accessRolesProvider.getRolesTag(any(Node.class), anyBoolean())).thenReturn("r1");
+        // another request saved new roles after the preconditions were evaluated
+        when(accessRolesProvider.getRolesTag(savedNode, false)).thenReturn("r2");
+
+        try {
+            accessRoles.post(json("{\"principalName\": [\"role\"]}"));
+            fail("Post should fail when the roles change before they are saved");
+        } catch (final WebApplicationException e) {
+            assertEquals("Precondition Failed response expected", 412, e.getResponse().getStatus());
+        }
+        verify(session, never()).save();
+        verify(session).logout();
+        verify(saved).logout();
+    }
+
+    @Test
+    public void testPostWaitsForConcurrentWrite() throws Exception {
+        final ExecutorService executor = newSingleThreadExecutor();
+        final List<Lock> locks = AclWriteLocks.lock(singletonList(mockNode));
+        try {
+            final Future<Response> post = executor.submit(() -> accessRoles.post(json("{\"alice\": [\"reader\"]}")));
+            verify(accessRolesProvider, timeout(1000)).postRoles(any(Node.class),
+                    Matchers.<Iterator<Map.Entry<String, Set<String>>>>any());
+            Thread.sleep(100);
+            verify(session, never()).save();
+
+            AclWriteLocks.unlock(locks);
+            post.get(10, SECONDS);
+            verify(session).save();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPostUnconditionalNotRechecked() throws RepositoryException {
+        accessRoles.post(json("{\"principalName\": [\"role\"]}"));
+
+        verify(sessionFactory, never()).getInternalSession();
+        verify(session).save();
+    }
+
+    @Test
+    public void testDeletePreconditionFailed() throws RepositoryException {
+        when(request.evaluatePreconditions()).thenReturn(Response.status(Status.PRECONDITION_FAILED));
+
+        try {
+            accessRoles.deleteNodeType();
+            fail("Delete should fail when If-Match names roles that do not exist");
+        } catch (final WebApplicationException e) {
+            assertEquals("Precondition Failed response expected", 412, e.getResponse().getStatus());
+        }
+        verify(accessRolesProvider, never()).deleteRoles(any(Node.class));
+        verify(session, never()).save();
+    }
+
     @Test(expected = WebApplicationException.class)
     public void testPostEmptyRoleData() throws RepositoryException {
 
-        final Map<String, Set<String>> data = new HashMap<>();
-
-        invalidPost(data);
+        invalidPost("{}");
     }
 
     @Test(expected = WebApplicationException.class)
     public void testPostEmptyRoleSet() throws RepositoryException {
 
-        final Map<String, Set<String>> data = new HashMap<>();
-        data.put("principalName", Collections.<String>emptySet());
-
-        invalidPost(data);
+        invalidPost("{\"principalName\": []}");
     }
 
     @Test(expected = WebApplicationException.class)
     public void testPostNullRoleSet() throws RepositoryException {
 
-        final Map<String, Set<String>> data = new HashMap<>();
-        data.put("principalName", null);
-
-        invalidPost(data);
+        invalidPost("{\"principalName\": null}");
     }
 
     @Test(expected = WebApplicationException.class)
     public void testPostEmptyRole() throws RepositoryException {
 
-        final Map<String, Set<String>> data = new HashMap<>();
-        final Set<String> roles = new HashSet<>();
-        roles.add(" ");
-
-        data.put("principalName", roles);
-
-        invalidPost(data);
+        invalidPost("{\"principalName\": [\" \"]}");
     }
 
     @Test(expected = WebApplicationException.class)
     public void testPostEmptyPrincipalName() throws RepositoryException {
 
-        final Map<String, Set<String>> data = new HashMap<>();
-        final Set<String> roles = new HashSet<>();
-        roles.add("role");
-        data.put(" ", roles);
-
-        invalidPost(data);
+        invalidPost("{\" \": [\"role\"]}");
     }
 
     @Test(expected = WebApplicationException.class)
-    public void testPostNullPrincipalName() throws RepositoryException {
+    public void testPostMalformedRoleData() throws RepositoryException {
 
-        final Map<String, Set<String>> data = new HashMap<>();
-        data.put(null, null);
+        invalidPost("{\"principalName\": [\"role\"");
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testPostDuplicatePrincipal() throws RepositoryException {
 
-        invalidPost(data);
+        invalidPost("{\"principalName\": [\"role\"], \"principalName\": [\"role\"]}");
     }
 
-    private void invalidPost(final Map<String, Set<String>> data)
+    private void invalidPost(final String data)
             throws RepositoryException {
 
+        // consume the assignments as the provider would
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                final Iterator<?> assignments = (Iterator<?>) invocation.getArguments()[1];
+                while (assignments.hasNext()) {
+                    assignments.next();
+                }
+                return null;
+            }
+        }).when(accessRolesProvider).postRoles(any(Node.class),
+                Matchers.<Iterator<Map.Entry<String, Set<String>>>>any());
+
         try {
-            accessRoles.post(data);
+            accessRoles.post(json(data));
         } finally {
-            // Verify that no work with the provider happened
-            verify(accessRolesProvider, never()).postRoles(any(Node.class),
-                    Matchers.<Map<String, Set<String>>>any());
             // Verify no changes saved
             verify(session, never()).save();
             verify(session).logout();
@@ -233,18 +369,11 @@ public class AccessRolesTest {
     @Test
     public void testApplyNewRoles() throws RepositoryException {
 
-        final Map<String, Set<String>> data = new HashMap<>();
-        final Set<String> roles = new HashSet<>();
-        roles.add("role1");
-        roles.add("role2");
-
-        data.put("principalName", roles);
-
-        final Response response = accessRoles.post(data);
+        final Response response = accessRoles.post(json("{\"principalName\": [\"role1\", \"role2\"]}"));
 
         // Check that work was called
         verify(accessRolesProvider).postRoles(any(Node.class),
-                Matchers.<Map<String, Set<String>>>any());
+                Matchers.<Iterator<Map.Entry<String, Set<String>>>>any());
         verify(session).save();
         verify(session).logout();
 
@@ -254,27 +383,139 @@ public class AccessRolesTest {
                         .getFirst("Location")).getPath());
     }
 
+    @Test
+    public void testApplyRolesStreamsAssignments() throws RepositoryException {
+        final Map<String, Set<String>> written = new HashMap<>();
+        doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(final InvocationOnMock invocation) {
+                @SuppressWarnings("unchecked")
+                final Iterator<Map.Entry<String, Set<String>>> assignments =
+                        (Iterator<Map.Entry<String, Set<String>>>) invocation.getArguments()[1];
+                while (assignments.hasNext()) {
+                    final Map.Entry<String, Set<String>> entry = assignments.next();
+                    written.put(entry.getKey(), entry.getValue());
+                }
+                return null;
+            }
+        }).when(accessRolesProvider).postRoles(any(Node.class),
+                Matchers.<Iterator<Map.Entry<String, Set<String>>>>any());
+
+        accessRoles.post(json("{\"alice\": [\"reader\", \"writer\"], \"bob\": [\"admin\"]}"));
+
+        assertEquals("Every principal should be written", 2, written.size());
+        assertEquals("Roles should be read per principal", new HashSet<>(Arrays.asList("reader", "writer")),
+                written.get("alice"));
+        verify(session).save();
+    }
+
     @Test(expected = RepositoryException.class)
     public void testApplyRolesException() throws RepositoryException {
 
-        final Map<String, Set<String>> data = new HashMap<>();
-        final Set<String> roles = new HashSet<>();
-        roles.add("role");
-        data.put("principalName", roles);
-
         doThrow(new RepositoryException()).when(accessRolesProvider).postRoles(
-                any(Node.class), Matchers.<Map<String, Set<String>>>any());
+                any(Node.class), Matchers.<Iterator<Map.Entry<String, Set<String>>>>any());
 
         try {
-            accessRoles.post(data);
+            accessRoles.post(json("{\"principalName\": [\"role\"]}"));
         } finally {
             verify(accessRolesProvider).postRoles(any(Node.class),
+                    Matchers.<Iterator<Map.Entry<String, Set<String>>>>any());
+            verify(session, never()).save();
+            verify(session).logout();
+        }
+    }
+
+    private static InputStream json(final String json) {
+        return new ByteArrayInputStream(json.getBytes(UTF_8));
+    }
+
+    @Test
+    public void testPostSubtree() throws IOException, RepositoryException {
+        final Node child = mock(Node.class);
+        final Node acl = mock(Node.class);
+        final Node binary = mock(Node.class);
+        final NodeIterator children = mock(NodeIterator.class);
+        when(fedoraResource.getNode()).thenReturn(mockNode);
+        when(mockNode.getPath()).thenReturn("/some/path");
+        when(mockNode.hasNodes()).thenReturn(true);
+        when(mockNode.getNodes()).thenReturn(children);
+        when(children.hasNext()).thenReturn(true, true, true, false);
+        when(children.nextNode()).thenReturn(acl, binary, child);
+        when(acl.getName()).thenReturn("authz:rbacl");
+        when(binary.getName()).thenReturn("jcr:content");
+        when(binary.isNodeType(FEDORA_BINARY)).thenReturn(true);
+        when(child.getName()).thenReturn("child");
+        when(child.getPath()).thenReturn("/some/path/child");
+        when(child.isNodeType(FEDORA_RESOURCE)).thenReturn(true);
+        final Map<String, Set<String>> data = Collections.singletonMap("alice", Collections.singleton("reader"));
+
+        final Response response = accessRoles.postSubtree(10, 1, data);
+
+        verify(nodeService).find(session, "/some/path");
+        verify(nodeService).find(session, "/some/path/child");
+        verify(accessRolesProvider, times(2)).postRoles(mockNode, data);
+        verify(binary, never()).getNodes();
+        verify(session).save();
+        verify(session).logout();
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> report = (Map<String, Object>) response.getEntity();
+        assertEquals("The node and every resource below it should be written", 2, report.get("applied"));
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testPostSubtreeInvalidWorkers() throws IOException, RepositoryException {
+        try {
+            accessRoles.postSubtree(10, 0, Collections.singletonMap("alice", Collections.singleton("reader")));
+        } finally {
+            verify(session, never()).save();
+            verify(session).logout();
+        }
+    }
+
+    @Test
+    public void testPatchRoles() throws RepositoryException {
+
+        final Map<String, Set<String>> delta = new HashMap<>();
+        delta.put("added", Collections.singleton("role"));
+        delta.put("removed", Collections.<String>emptySet());
+
+        final Response response = accessRoles.patch(delta);
+
+        verify(accessRolesProvider).patchRoles(any(Node.class), Matchers.eq(delta));
+        verify(session).save();
+        verify(session).logout();
+
+        assertEquals("Patch response must be NO CONTENT", 204, response.getStatus());
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testPatchEmptyDelta() throws RepositoryException {
+        try {
+            accessRoles.patch(new HashMap<String, Set<String>>());
+        } finally {
+            verify(accessRolesProvider, never()).patchRoles(any(Node.class),
                     Matchers.<Map<String, Set<String>>>any());
             verify(session, never()).save();
             verify(session).logout();
         }
     }
 
+    @Test(expected = WebApplicationException.class)
+    public void testPatchRemovingEveryAssignment() throws RepositoryException {
+        final Map<String, Set<String>> delta = new HashMap<>();
+        delta.put("principalName", Collections.<String>emptySet());
+        doThrow(new IllegalArgumentException()).when(accessRolesProvider).patchRoles(
+                any(Node.class), Matchers.<Map<String, Set<String>>>any());
+
+        try {
+            accessRoles.patch(delta);
+        } finally {
+            verify(session, never()).save();
+            verify(session).logout();
+        }
+    }
+
     @Test
     public void testDeleteRolesAtNode() throws RepositoryException {
         final Response response = accessRoles.deleteNodeType();
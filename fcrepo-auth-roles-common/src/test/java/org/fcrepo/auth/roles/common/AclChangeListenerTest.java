@@ -0,0 +1,181 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
+import static javax.jcr.observation.Event.NODE_REMOVED;
+import static javax.jcr.observation.Event.PROPERTY_CHANGED;
+import static javax.jcr.observation.Event.PROPERTY_REMOVED;
+import static org.fcrepo.auth.roles.common.Constants.JcrName.rbaclAssignable;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+/**
+ * @author whikloj
+ */
+public class AclChangeListenerTest {
+
+    private static final Map<String, List<String>> ACL = singletonMap("principal", asList("reader"));
+
+    private static final String AUTHZ = "{http://fedora.info/definitions/v4/authorization#}";
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Node node;
+
+    @Mock
+    private AccessRolesProvider provider;
+
+    private EffectiveRolesCache rolesCache;
+
+    private AclPathIndex aclIndex;
+
+    private AtomicLong rolesVersion;
+
+    private AclChangeListener listener;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        initMocks(this);
+        when(session.getNamespaceURI("authz")).thenReturn("http://fedora.info/definitions/v4/authorization#");
+        rolesCache = new EffectiveRolesCache(100, 60);
+        aclIndex = new AclPathIndex();
+        rolesVersion = new AtomicLong();
+        listener = new AclChangeListener(provider, rolesCache, aclIndex, null, rolesVersion, session);
+    }
+
+    @Test
+    public void testGetAclPath() {
+        assertEquals("Revision should identify its node", "/a", AclChangeListener.getAclPath("/a/" + AUTHZ +
+                "revision"));
+        assertEquals("Assignments should identify their node", "/", AclChangeListener.getAclPath("/" + AUTHZ +
+                "assignments"));
+        assertEquals("Items of an ACL child should identify its parent", "/a", AclChangeListener.getAclPath("/a/" +
+                AUTHZ + "rbacl/" + AUTHZ + "assignment/" + AUTHZ + "role"));
+        assertNull("Other properties should not concern access roles", AclChangeListener.getAclPath("/a/title"));
+    }
+
+    @Test
+    public void testMayConcernRoles() {
+        assertTrue("Revision should concern access roles", AclChangeListener.mayConcernRoles("/a/authz:revision"));
+        assertTrue("Items of an ACL child should concern access roles",
+                AclChangeListener.mayConcernRoles("/a/authz:rbacl/authz:assignment/authz:role"));
+        assertFalse("Other properties should not concern access roles",
+                AclChangeListener.mayConcernRoles("/a/dc:title"));
+    }
+
+    @Test
+    public void testUnrelatedChangesIgnored() throws RepositoryException {
+        listener.onEvent(events(event(PROPERTY_REMOVED, "/a/dc:title"), event(NODE_REMOVED, "/a/b")));
+
+        verify(session, never()).refresh(false);
+        verify(session, never()).getNode("/a");
+        assertEquals("Version of the roles should not advance", 0, rolesVersion.get());
+    }
+
+    @Test
+    public void testRolesChangedElsewhere() throws RepositoryException {
+        rolesCache.put("/a/b", "/a", ACL);
+        when(session.getNode("/a")).thenReturn(node);
+        when(node.isNodeType(rbaclAssignable.getExpanded())).thenReturn(true);
+
+        listener.onEvent(events(event(PROPERTY_CHANGED, "/a/authz:revision"),
+                event(PROPERTY_CHANGED, "/a/authz:revision")));
+
+        verify(session, times(1)).refresh(false);
+        assertNull("Roles governed by the changed ACL should be discarded", rolesCache.get("/a/b"));
+        assertEquals("Changed ACL should be indexed", "/a", aclIndex.find("/a/b"));
+        assertEquals("Version of the roles should advance", 1, rolesVersion.get());
+    }
+
+    @Test
+    public void testPrincipalsAssignedElsewhere() throws RepositoryException {
+        final PrincipalIndex principalIndex = new PrincipalIndex();
+        listener = new AclChangeListener(provider, null, null, principalIndex, new AtomicLong(), session);
+        when(session.getNode("/a")).thenReturn(node);
+        when(node.isNodeType(rbaclAssignable.getExpanded())).thenReturn(true);
+        when(provider.getRoles(node, false)).thenReturn(ACL);
+
+        listener.onEvent(events(event(PROPERTY_CHANGED, "/a/authz:revision")));
+
+        assertEquals("Principals of the changed ACL should be indexed", 1, principalIndex.size());
+    }
+
+    @Test
+    public void testRolesDeletedElsewhere() throws RepositoryException {
+        aclIndex.add("/a");
+        when(session.getNode("/a")).thenReturn(node);
+
+        listener.onEvent(events(event(PROPERTY_REMOVED, "/a/authz:revision")));
+
+        assertNull("Deleted ACL should no longer be indexed", aclIndex.find("/a/b"));
+    }
+
+    @Test
+    public void testNodeRemoved() throws RepositoryException {
+        aclIndex.add("/a");
+        aclIndex.add("/a/b/c");
+        rolesCache.put("/a/b/c/d", "/a/b/c", ACL);
+
+        listener.onEvent(events(event(NODE_REMOVED, "/a/b")));
+
+        assertEquals("ACLs of a removed subtree should no longer be indexed", "/a", aclIndex.find("/a/b/c"));
+        assertNull("Roles of a removed subtree should be discarded", rolesCache.getRoles("/a/b/c"));
+        assertNotNull("ACL outside the removed subtree should be kept", aclIndex.find("/a"));
+    }
+
+    private static Event event(final int type, final String path) throws RepositoryException {
+        final Event event = mock(Event.class);
+        when(event.getType()).thenReturn(type);
+        when(event.getPath()).thenReturn(path);
+        return event;
+    }
+
+    private static EventIterator events(final Event... events) {
+        final Iterator<Event> i = asList(events).iterator();
+        final EventIterator iterator = mock(EventIterator.class);
+        when(iterator.hasNext()).thenAnswer(invocation -> i.hasNext());
+        when(iterator.nextEvent()).thenAnswer(invocation -> i.next());
+        return iterator;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author whikloj
+ */
+public class AclPathIndexTest {
+
+    private AclPathIndex index;
+
+    @Before
+    public void setUp() {
+        index = new AclPathIndex();
+    }
+
+    @Test
+    public void testEmptyIndex() {
+        assertNull("Empty index should not find an ACL", index.find("/a/b"));
+    }
+
+    @Test
+    public void testLongestPrefix() {
+        index.add("/a");
+        index.add("/a/b/c");
+
+        assertEquals("Path should be governed by itself", "/a", index.find("/a"));
+        assertEquals("Path should be governed by the nearest ancestor", "/a", index.find("/a/b"));
+        assertEquals("Path should be governed by the deepest ancestor", "/a/b/c", index.find("/a/b/c/d/e"));
+        assertNull("Unrelated path should not be governed", index.find("/x/y"));
+        assertNull("Sibling sharing a name prefix should not be governed", index.find("/ab"));
+        assertEquals("Index should count its paths", 2, index.size());
+    }
+
+    @Test
+    public void testRoot() {
+        index.add("/");
+
+        assertEquals("Root ACL should govern every path", "/", index.find("/a/b"));
+    }
+
+    @Test
+    public void testRemove() {
+        index.add("/a");
+        index.add("/a/b");
+
+        index.remove("/a/b");
+        index.remove("/not/indexed");
+
+        assertEquals("Removed path should be governed by its ancestor", "/a", index.find("/a/b/c"));
+        assertEquals("Index should count its paths", 1, index.size());
+    }
+
+    @Test
+    public void testRemoveSubtree() {
+        index.add("/a");
+        index.add("/a/b");
+        index.add("/a/b/c");
+        index.add("/a/bb");
+
+        index.removeSubtree("/a/b");
+        index.removeSubtree("/not/indexed");
+
+        assertEquals("Removed subtree should be governed by its ancestor", "/a", index.find("/a/b/c/d"));
+        assertEquals("Sibling sharing a name prefix should be kept", "/a/bb", index.find("/a/bb"));
+        assertEquals("Index should count its paths", 2, index.size());
+    }
+
+    @Test
+    public void testRemovePrunesEmptySegments() {
+        index.add("/a");
+        index.add("/a/b/c/d");
+        index.add("/x/y/z");
+        index.add("/m/n");
+        index.add("/m/o");
+
+        index.remove("/a/b/c/d");
+        assertEquals("Segments leading only to the removed path should be dropped", 1 + 3 + 3, index.segments());
+        index.remove("/a");
+        index.removeSubtree("/x/y");
+        index.remove("/m/n");
+
+        assertEquals("Only segments leading to an ACL should be kept", asList(2, 1), asList(index.segments(),
+                index.size()));
+        assertEquals("Sibling of a removed path should be kept", "/m/o", index.find("/m/o/p"));
+    }
+
+    @Test
+    public void testRemoveDoesNotLoseConcurrentAdd() throws InterruptedException {
+        final int count = 2000;
+        final Thread adder = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                index.add("/p/q/" + i);
+            }
+        });
+        final Thread remover = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                index.add("/p/q/removed");
+                index.removeSubtree("/p/q/removed");
+            }
+        });
+        adder.start();
+        remover.start();
+        adder.join();
+        remover.join();
+
+        for (int i = 0; i < count; i++) {
+            assertEquals("Path added while a sibling was removed should be kept", "/p/q/" + i,
+                    index.find("/p/q/" + i));
+        }
+        assertEquals("Index should count its paths", count, index.size());
+    }
+
+    @Test
+    public void testSplitExpandedNames() {
+        assertEquals("Separators inside namespace URIs should be ignored",
+                asList("a", "{http://fedora.info/definitions/v4/authorization#}rbacl"),
+                AclPathIndex.split("/a/{http://fedora.info/definitions/v4/authorization#}rbacl"));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static com.codahale.metrics.MetricRegistry.name;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * @author whikloj
+ */
+public class AuthorizationMetricsTest {
+
+    private static final Class<?> DELEGATE = AbstractRolesAuthorizationDelegate.class;
+
+    @Test
+    public void testPermissionTimerPerAction() {
+        assertSame("Timer should be shared by checks of the same action",
+                AuthorizationMetrics.permissionTimer(new String[] {"read"}),
+                AuthorizationMetrics.registry.timer(name(DELEGATE, "hasPermission", "read")));
+    }
+
+    @Test
+    public void testDecisionsPerRole() {
+        AuthorizationMetrics.meterRoles(singleton("scribe"));
+        final long granted = count("scribe", "granted");
+        final long denied = count("none", "denied");
+
+        AuthorizationMetrics.recordDecision(singleton("scribe"), true);
+        AuthorizationMetrics.recordDecision(emptySet(), false);
+
+        assertEquals("Grant should be counted against the role", granted + 1, count("scribe", "granted"));
+        assertEquals("Denial without roles should be counted", denied + 1, count("none", "denied"));
+    }
+
+    @Test
+    public void testDecisionsForOtherRoles() {
+        final long other = count("other", "granted");
+
+        AuthorizationMetrics.recordDecision(new HashSet<>(asList("unmetered-1", "unmetered-2")), true);
+
+        assertEquals("Roles not metered apart should be counted once together", other + 1, count("other", "granted"));
+        assertFalse("Roles not metered apart should get no meter of their own", AuthorizationMetrics.registry
+                .getMeters().containsKey(name(DELEGATE, "decisions", "unmetered-1", "granted")));
+    }
+
+    private static long count(final String role, final String outcome) {
+        return AuthorizationMetrics.registry.meter(name(DELEGATE, "decisions", role, outcome)).getCount();
+    }
+
+    @Test
+    public void testHitRatio() {
+        final AtomicLong hits = new AtomicLong(3);
+        final AtomicLong misses = new AtomicLong(1);
+        AuthorizationMetrics.registerHitRatio(AuthorizationMetricsTest.class, "test-cache", hits::get, misses::get);
+        AuthorizationMetrics.registerHitRatio(AuthorizationMetricsTest.class, "test-cache", hits::get, misses::get);
+
+        final Gauge<?> gauge = AuthorizationMetrics.registry.getGauges()
+                .get(name(AuthorizationMetricsTest.class, "test-cache", "hit-ratio"));
+        assertEquals("Gauge should report the hit ratio", 0.75, (Double) gauge.getValue(), 0.001);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+/**
+ * @author whikloj
+ */
+public class AuthorizationSessionsTest {
+
+    @Mock
+    private SessionFactory sessionFactory;
+
+    @Mock
+    private Session session;
+
+    private AuthorizationSessions sessions;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        when(sessionFactory.getInternalSession()).thenReturn(session);
+        when(session.isLive()).thenReturn(true);
+        sessions = new AuthorizationSessions(sessionFactory);
+    }
+
+    @Test
+    public void testReusedWithoutRefresh() throws RepositoryException {
+        assertSame("First use should open a session", session, sessions.getSession());
+        assertSame("Later uses should reuse the session", session, sessions.getSession());
+
+        verify(sessionFactory, times(1)).getInternalSession();
+        verify(session, never()).refresh(false);
+    }
+
+    @Test
+    public void testReopenedWhenLoggedOut() {
+        final Session replacement = mock(Session.class);
+        sessions.getSession();
+        when(session.isLive()).thenReturn(false);
+        when(sessionFactory.getInternalSession()).thenReturn(replacement);
+
+        assertSame("Logged out session should be replaced", replacement, sessions.getSession());
+        assertEquals("Replaced session should no longer be tracked", 1, sessions.size());
+    }
+
+    @Test
+    public void testSessionPerThread() throws InterruptedException {
+        final Session other = mock(Session.class);
+        sessions.getSession();
+        when(sessionFactory.getInternalSession()).thenReturn(other);
+
+        final AtomicReference<Session> fromThread = new AtomicReference<>();
+        final Thread thread = new Thread(() -> fromThread.set(sessions.getSession()));
+        thread.start();
+        thread.join();
+
+        assertNotSame("Each thread should have its own session", session, fromThread.get());
+        assertEquals("Both sessions should be tracked", 2, sessions.size());
+    }
+
+    @Test
+    public void testSessionOfDeadThreadLoggedOut() throws InterruptedException {
+        final Session other = mock(Session.class);
+        when(sessionFactory.getInternalSession()).thenReturn(other);
+        final Thread thread = new Thread(sessions::getSession);
+        thread.start();
+        thread.join();
+
+        when(sessionFactory.getInternalSession()).thenReturn(session);
+        sessions.getSession();
+
+        verify(other).logout();
+        assertEquals("Only the session of the live thread should be tracked", 1, sessions.size());
+    }
+
+    @Test
+    public void testClose() {
+        sessions.getSession();
+
+        sessions.close();
+
+        verify(session).logout();
+        assertEquals("No session should remain open", 0, sessions.size());
+    }
+}
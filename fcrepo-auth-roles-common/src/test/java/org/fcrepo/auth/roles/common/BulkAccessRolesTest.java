@@ -0,0 +1,348 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.jcr.ValueFormatException;
+import javax.jcr.Workspace;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.query.QueryResult;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.fcrepo.kernel.api.exception.RepositoryRuntimeException;
+import org.fcrepo.kernel.api.models.FedoraResource;
+import org.fcrepo.kernel.api.services.NodeService;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+
+/**
+ * @author whikloj
+ */
+public class BulkAccessRolesTest {
+
+    @Mock
+    private AccessRolesProvider accessRolesProvider;
+
+    @Mock
+    private NodeService nodeService;
+
+    @Mock
+    private FedoraResource fedoraResource;
+
+    @Mock
+    private Node node;
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Session workerSession;
+
+    @Mock
+    private SessionFactory sessionFactory;
+
+    @Mock
+    private HttpServletRequest servletRequest;
+
+    private BulkAccessRoles bulkAccessRoles;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        initMocks(this);
+        bulkAccessRoles = new BulkAccessRoles();
+        setField(bulkAccessRoles, "accessRolesProvider", accessRolesProvider);
+        setField(bulkAccessRoles, "nodeService", nodeService);
+        setField(bulkAccessRoles, "session", session);
+        setField(bulkAccessRoles, "sessionFactory", sessionFactory);
+        setField(bulkAccessRoles, "servletRequest", servletRequest);
+        when(sessionFactory.getSession(servletRequest)).thenReturn(workerSession);
+        when(nodeService.find(any(Session.class), anyString())).thenReturn(fedoraResource);
+        when(fedoraResource.getNode()).thenReturn(node);
+        when(node.getIdentifier()).thenReturn("node-id");
+    }
+
+    @Test
+    public void testBatches() throws IOException, RepositoryException {
+        final Response response = bulkAccessRoles.post(2, 1, body(
+                "{\"path\": \"/a\", \"roles\": {\"alice\": [\"reader\"]}}",
+                "",
+                "{\"path\": \"/b\", \"roles\": {\"bob\": [\"writer\", \"reader\"]}}",
+                "{\"path\": \"/c\", \"roles\": {\"carol\": [\"admin\"]}}"));
+
+        verify(accessRolesProvider, times(3)).postRoles(eq(node), Matchers.<Map<String, Set<String>>>any());
+        verify(accessRolesProvider).postRoles(node, Collections.singletonMap("alice",
+                Collections.singleton("reader")));
+        verify(session, times(2)).save();
+        verify(session).logout();
+        assertEquals("Every record should be applied", 3, report(response).get("applied"));
+        assertEquals("No record should fail", 0, report(response).get("failed"));
+    }
+
+    @Test
+    public void testInvalidRecords() throws IOException, RepositoryException {
+        when(nodeService.find(any(Session.class), eq("/missing"))).thenThrow(
+                new RepositoryRuntimeException(new PathNotFoundException("/missing")));
+
+        final Response response = bulkAccessRoles.post(10, 1, body(
+                "not json",
+                "{\"roles\": {\"alice\": [\"reader\"]}}",
+                "{\"path\": \"/a\", \"roles\": {\"alice\": []}}",
+                "{\"path\": \"/missing\", \"roles\": {\"alice\": [\"reader\"]}}",
+                "{\"path\": \"/b\", \"roles\": {\"bob\": [\"writer\"]}}"));
+
+        verify(accessRolesProvider).postRoles(eq(node), Matchers.<Map<String, Set<String>>>any());
+        verify(session).save();
+        assertEquals("Only the valid record should be applied", 1, report(response).get("applied"));
+        assertEquals("Invalid records should fail", 4, report(response).get("failed"));
+        final List<Map<String, Object>> errors = errors(response);
+        assertEquals("Errors should name the line of the record", 1, errors.get(0).get("line"));
+        assertEquals("Errors should name the path of the record", "/missing", errors.get(3).get("path"));
+    }
+
+    @Test
+    public void testFailedSave() throws IOException, RepositoryException {
+        doThrow(new RepositoryException("conflict")).doNothing().when(session).save();
+
+        final Response response = bulkAccessRoles.post(2, 1, body(
+                "{\"path\": \"/a\", \"roles\": {\"alice\": [\"reader\"]}}",
+                "{\"path\": \"/b\", \"roles\": {\"bob\": [\"writer\"]}}",
+                "{\"path\": \"/c\", \"roles\": {\"carol\": [\"admin\"]}}"));
+
+        verify(session).refresh(false);
+        assertEquals("Records after the failed batch should be applied", 1, report(response).get("applied"));
+        assertEquals("Every record of the failed batch should fail", 2, report(response).get("failed"));
+        assertEquals("Errors should carry the cause", "conflict", errors(response).get(1).get("message"));
+    }
+
+    @Test
+    public void testFailedRecordDiscardsBatch() throws IOException, RepositoryException {
+        doThrow(new RepositoryRuntimeException(new RepositoryException("partly written")))
+                .when(accessRolesProvider).postRoles(node, Collections.singletonMap("bob",
+                        Collections.singleton("writer")));
+
+        final Response response = bulkAccessRoles.post(10, 1, body(
+                "{\"path\": \"/a\", \"roles\": {\"alice\": [\"reader\"]}}",
+                "{\"path\": \"/b\", \"roles\": {\"bob\": [\"writer\"]}}",
+                "{\"path\": \"/c\", \"roles\": {\"carol\": [\"admin\"]}}"));
+
+        verify(session).refresh(false);
+        verify(session).save();
+        assertEquals("Records after the discarded batch should be applied", 1, report(response).get("applied"));
+        assertEquals("Every record of the discarded batch should fail", 2, report(response).get("failed"));
+    }
+
+    @Test
+    public void testStoppedWriterReportsRemainingRecords() throws IOException, RepositoryException {
+        doThrow(new IllegalStateException("unexpected")).when(accessRolesProvider).postRoles(node,
+                Collections.singletonMap("bob", Collections.singleton("writer")));
+
+        final Response response = bulkAccessRoles.post(10, 1, body(
+                "{\"path\": \"/a\", \"roles\": {\"alice\": [\"reader\"]}}",
+                "{\"path\": \"/b\", \"roles\": {\"bob\": [\"writer\"]}}",
+                "{\"path\": \"/c\", \"roles\": {\"carol\": [\"admin\"]}}"));
+
+        verify(session, never()).save();
+        verify(accessRolesProvider, times(2)).postRoles(eq(node), Matchers.<Map<String, Set<String>>>any());
+        assertEquals("No record should be applied", 0, report(response).get("applied"));
+        assertEquals("The unsaved batch and every later record should fail", 3, report(response).get("failed"));
+        assertEquals("Errors should carry the cause", "unexpected", errors(response).get(2).get("message"));
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testInvalidBatchSize() throws IOException, RepositoryException {
+        try {
+            bulkAccessRoles.post(0, 1, body());
+        } finally {
+            verify(session, never()).save();
+        }
+    }
+
+    @Test
+    public void testParallelWriters() throws IOException, RepositoryException {
+        final Response response = bulkAccessRoles.post(1, 2, body(
+                "{\"path\": \"/a/1\", \"roles\": {\"alice\": [\"reader\"]}}",
+                "{\"path\": \"/b/1\", \"roles\": {\"bob\": [\"writer\"]}}",
+                "{\"path\": \"/a/2\", \"roles\": {\"carol\": [\"admin\"]}}",
+                "not json"));
+
+        verify(accessRolesProvider, times(3)).postRoles(eq(node), Matchers.<Map<String, Set<String>>>any());
+        verify(sessionFactory).getSession(servletRequest);
+        verify(session).logout();
+        verify(workerSession).logout();
+        assertEquals("Every valid record should be applied", 3, report(response).get("applied"));
+        assertEquals("Invalid records should fail", 1, report(response).get("failed"));
+        assertEquals("Siblings should share a writer", AclImport.partition(AclImport.parent("/a/1"), 2),
+                AclImport.partition(AclImport.parent("/a/2"), 2));
+    }
+
+    @Test
+    public void testCsv() throws IOException, RepositoryException {
+        final Response response = bulkAccessRoles.postCsv(10, 1, body(
+                "path,principal,role",
+                "/a,alice,reader",
+                "/a,\"CN=bob,O=example\",writer",
+                "/a,alice,writer",
+                "/b,carol",
+                "/c,carol,admin"));
+
+        final Map<String, Set<String>> roles = new HashMap<>();
+        roles.put("alice", new HashSet<>(asList("reader", "writer")));
+        roles.put("CN=bob,O=example", Collections.singleton("writer"));
+        verify(accessRolesProvider).postRoles(node, roles);
+        verify(accessRolesProvider).postRoles(node, Collections.singletonMap("carol",
+                Collections.singleton("admin")));
+        assertEquals("Consecutive rows of a path should be applied as one record", 2,
+                report(response).get("applied"));
+        assertEquals("Incomplete rows should fail", 1, report(response).get("failed"));
+        assertEquals("Errors should name the line of the row", 5, errors(response).get(0).get("line"));
+    }
+
+    @Test
+    public void testSplitQuotedFields() {
+        assertArrayEquals("Quoted fields should keep commas and escaped quotes",
+                new String[] {"/a", "CN=\"x\",O=y", "reader"},
+                AclImport.CsvRecordReader.split("/a,\"CN=\"\"x\"\",O=y\", reader"));
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testInvalidWorkers() throws IOException {
+        bulkAccessRoles.post(10, BulkAccessRoles.MAX_WORKERS + 1, body());
+    }
+
+    @Test
+    public void testExport() throws IOException, RepositoryException {
+        final Workspace workspace = mock(Workspace.class);
+        final QueryManager queryManager = mock(QueryManager.class);
+        final Query query = mock(Query.class);
+        final QueryResult result = mock(QueryResult.class);
+        final NodeIterator nodes = mock(NodeIterator.class);
+        final Node other = mock(Node.class);
+        final ValueFactory valueFactory = mock(ValueFactory.class);
+        final Value cursor = mock(Value.class);
+        when(session.getValueFactory()).thenReturn(valueFactory);
+        when(workerSession.getValueFactory()).thenReturn(valueFactory);
+        when(valueFactory.createValue("/0", PropertyType.PATH)).thenReturn(cursor);
+        when(workerSession.getWorkspace()).thenReturn(workspace);
+        when(workspace.getQueryManager()).thenReturn(queryManager);
+        when(queryManager.createQuery(anyString(), eq(Query.JCR_SQL2))).thenReturn(query);
+        when(query.execute()).thenReturn(result);
+        when(result.getNodes()).thenReturn(nodes);
+        when(nodes.hasNext()).thenReturn(true, true, false);
+        when(nodes.nextNode()).thenReturn(node, other);
+        when(node.getPath()).thenReturn("/a");
+        when(accessRolesProvider.getRoles(node, false)).thenReturn(
+                Collections.singletonMap("alice", Collections.singletonList("reader")));
+
+        final Response response = bulkAccessRoles.get("/0");
+        verify(session).logout();
+        // the export session is opened only once the response is written
+        verify(sessionFactory, never()).getSession(servletRequest);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(out);
+
+        verify(queryManager).createQuery(contains("WHERE n.[jcr:path] > $cursor ORDER BY n.[jcr:path]"),
+                eq(Query.JCR_SQL2));
+        verify(query).bindValue("cursor", cursor);
+        verify(workerSession).logout();
+        final String[] lines = out.toString(UTF_8.name()).split("\n");
+        assertEquals("Only nodes carrying roles should be exported", 1, lines.length);
+        assertEquals("Records should carry the path, the roles and the cursor",
+                "{\"path\":\"/a\",\"roles\":{\"alice\":[\"reader\"]},\"cursor\":\"/a\"}", lines[0]);
+
+        bulkAccessRoles.post(10, 1, body(lines));
+        verify(accessRolesProvider).postRoles(node, Collections.singletonMap("alice",
+                Collections.singleton("reader")));
+    }
+
+    @Test(expected = WebApplicationException.class)
+    public void testInvalidCursor() {
+        bulkAccessRoles.get("52000");
+    }
+
+    @Test
+    public void testUnreadableCursor() throws RepositoryException {
+        final ValueFactory valueFactory = mock(ValueFactory.class);
+        when(session.getValueFactory()).thenReturn(valueFactory);
+        when(valueFactory.createValue("/unknown:a", PropertyType.PATH)).thenThrow(new ValueFormatException());
+
+        try {
+            bulkAccessRoles.get("/unknown:a");
+            fail("A cursor with an unknown prefix should be refused before the export starts");
+        } catch (final WebApplicationException e) {
+            assertEquals("Bad Request response expected", 400, e.getResponse().getStatus());
+        }
+        verify(session).logout();
+        verify(sessionFactory, never()).getSession(servletRequest);
+    }
+
+    private static InputStream body(final String... lines) {
+        return new ByteArrayInputStream(String.join("\n", lines).getBytes(UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> report(final Response response) {
+        return (Map<String, Object>) response.getEntity();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> errors(final Response response) {
+        return (List<Map<String, Object>>) report(response).get("errors");
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.security.Principal;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+/**
+ * @author whikloj
+ */
+public class DecisionCacheTest {
+
+    private static final String[] READ_ACTION = {"read"};
+
+    @Mock
+    private Principal principal;
+
+    private Set<Principal> principals;
+
+    private DecisionCache cache;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        principals = singleton(principal);
+        cache = new DecisionCache(60);
+    }
+
+    @Test
+    public void testHitAfterPut() {
+        assertNull("Nothing should be memoized yet", cache.get(principals, "/a", 0, "content", READ_ACTION));
+
+        cache.put(principals, "/a", 0, "content", READ_ACTION, true);
+
+        assertTrue("Decision should be memoized",
+                cache.get(principals, "/a", 0, "content", new String[] {"read"}));
+        assertEquals("One hit should be counted", 1, cache.getHitCount());
+        assertEquals("One miss should be counted", 1, cache.getMissCount());
+    }
+
+    @Test
+    public void testKeyedByScopeAndAcl() {
+        cache.put(principals, "/a", 0, "content", READ_ACTION, true);
+
+        assertNull("Decision should not be shared across scopes",
+                cache.get(principals, "/a", 0, "acl", READ_ACTION));
+        assertNull("Decision should not be shared across ACLs",
+                cache.get(principals, "/b", 0, "content", READ_ACTION));
+        assertNull("Decision should not be shared across actions",
+                cache.get(principals, "/a", 0, "content", new String[] {"remove"}));
+    }
+
+    @Test
+    public void testNoAcl() {
+        cache.put(principals, null, 0, "content", READ_ACTION, false);
+
+        assertEquals("Decision without a governing ACL should be memoized", Boolean.FALSE,
+                cache.get(principals, null, 0, "content", READ_ACTION));
+    }
+
+    @Test
+    public void testKeyedByVersion() {
+        cache.put(principals, "/a", 0, "content", READ_ACTION, true);
+
+        assertNull("Decision should not be found once the roles have changed",
+                cache.get(principals, "/a", 1, "content", READ_ACTION));
+    }
+
+    @Test
+    public void testKeyedByPrincipalSetInstance() {
+        cache.put(principals, "/a", 0, "content", READ_ACTION, true);
+
+        assertNull("Decisions should not be shared with another principal set",
+                cache.get(new HashSet<>(principals), "/a", 0, "content", READ_ACTION));
+    }
+}
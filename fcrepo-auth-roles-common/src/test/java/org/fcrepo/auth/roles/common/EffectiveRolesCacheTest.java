@@ -0,0 +1,179 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+/**
+ * @author whikloj
+ */
+public class EffectiveRolesCacheTest {
+
+    private static final Map<String, List<String>> ACL = singletonMap("principal", asList("reader"));
+
+    @Mock
+    private Session session;
+
+    @Mock
+    private Node node;
+
+    private EffectiveRolesCache cache;
+
+    @Before
+    public void setUp() {
+        initMocks(this);
+        cache = new EffectiveRolesCache(100, 60);
+    }
+
+    @Test
+    public void testMissForUnknownPath() {
+        assertNull("Nothing should be cached for an unknown path", cache.get("/a"));
+    }
+
+    @Test
+    public void testDescendantsShareAcl() {
+        cache.put("/a/b", "/a", ACL);
+        cache.put("/a/c", "/a", ACL);
+
+        final EffectiveRolesCache.Entry entry = cache.get("/a/c");
+        assertNotNull("Descendant path should be cached", entry);
+        assertEquals("Descendant should be governed by the ACL ancestor", "/a", entry.getAclPath());
+        assertEquals("Descendant should carry the ancestor roles", ACL, entry.getRoles());
+        assertEquals("ACL path should map to itself", "/a", cache.get("/a").getAclPath());
+        assertEquals("ACL roles should be available by ACL path", ACL, cache.getRoles("/a"));
+    }
+
+    @Test
+    public void testCachesAbsenceOfAcl() {
+        cache.put("/a", null, null);
+
+        final EffectiveRolesCache.Entry entry = cache.get("/a");
+        assertNotNull("Path without an ACL should still be cached", entry);
+        assertNull("Path without an ACL has no ACL path", entry.getAclPath());
+        assertNull("Path without an ACL has no roles", entry.getRoles());
+    }
+
+    @Test
+    public void testInvalidateDescendants() {
+        cache.put("/a/b/c", "/a", ACL);
+        cache.put("/a/bb", "/a", ACL);
+        cache.put("/x/y", null, null);
+        cache.put("/x", "/x", ACL);
+
+        cache.invalidate("/a/b");
+
+        assertNull("Descendant governed by an ancestor of the invalidated path should be discarded",
+                cache.get("/a/b/c"));
+        assertNotNull("Sibling sharing a name prefix should be kept", cache.get("/a/bb"));
+        assertNotNull("Unrelated path should be kept", cache.get("/x"));
+        assertNotNull("Unrelated path without an ACL should be kept", cache.get("/x/y"));
+    }
+
+    @Test
+    public void testInvalidateGovernedPaths() {
+        cache.put("/a/b", "/a", ACL);
+        cache.put("/x", "/x", ACL);
+
+        cache.invalidate("/a");
+
+        assertNull("Path governed by the invalidated ACL should be discarded", cache.get("/a/b"));
+        assertNull("Invalidated ACL should be discarded", cache.getRoles("/a"));
+        assertNotNull("Path governed by another ACL should be kept", cache.get("/x"));
+    }
+
+    @Test
+    public void testInvalidateKeepsDescendantAcls() {
+        cache.put("/a/b/c", "/a/b", ACL);
+
+        cache.invalidate("/a");
+
+        assertNotNull("ACL of a descendant of an invalidated path should be kept", cache.get("/a/b/c"));
+    }
+
+    @Test
+    public void testInvalidateSubtreeDiscardsDescendantAcls() {
+        cache.put("/a/b/c", "/a/b", ACL);
+        cache.put("/a/d", "/a", ACL);
+
+        cache.invalidateSubtree("/a/b");
+
+        assertNull("ACL of a removed subtree should be discarded", cache.getRoles("/a/b"));
+        assertNull("Path governed by an ACL of a removed subtree should be discarded", cache.get("/a/b/c"));
+        assertNotNull("ACL outside the removed subtree should be kept", cache.get("/a/d"));
+    }
+
+    @Test
+    public void testInvalidateRoot() {
+        cache.put("/a/b", null, null);
+
+        cache.invalidate("/");
+
+        assertNull("An ACL at the root should govern paths without an ACL", cache.get("/a/b"));
+    }
+
+    @Test
+    public void testRemappedPathFollowsNewAcl() {
+        cache.put("/a/b", "/a", ACL);
+        cache.invalidate("/a/b");
+        cache.put("/a/b", "/a/b", ACL);
+
+        cache.invalidate("/a");
+
+        assertNotNull("Path remapped to another ACL should not be discarded with its old ACL", cache.get("/a/b"));
+    }
+
+    @Test
+    public void testPathKeyExpandsPrefixes() throws RepositoryException {
+        when(node.getSession()).thenReturn(session);
+        when(node.getPath()).thenReturn("/a/jcr:content");
+        when(session.getNamespaceURI("jcr")).thenReturn("http://www.jcp.org/jcr/1.0");
+
+        assertEquals("Qualified names should be expanded", "/a/{http://www.jcp.org/jcr/1.0}content",
+                EffectiveRolesCache.pathKey(node));
+    }
+
+    @Test
+    public void testQualifiedPath() throws RepositoryException {
+        when(session.getNamespacePrefix("http://www.jcp.org/jcr/1.0")).thenReturn("jcr");
+
+        assertEquals("Expanded names should be qualified", "/a/jcr:content",
+                EffectiveRolesCache.qualifiedPath("/a/{http://www.jcp.org/jcr/1.0}content", session));
+    }
+
+    @Test
+    public void testPathKeyUnqualified() throws RepositoryException {
+        when(node.getPath()).thenReturn("/a/b");
+
+        assertEquals("Unqualified path should be unchanged", "/a/b", EffectiveRolesCache.pathKey(node));
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author whikloj
+ */
+public class PrincipalIndexTest {
+
+    private PrincipalIndex index;
+
+    @Before
+    public void setUp() {
+        index = new PrincipalIndex();
+        final Map<String, List<String>> acl = new HashMap<>();
+        acl.put("alice", asList("reader", "reader"));
+        acl.put("bob", asList("admin"));
+        index.put("/a", acl);
+        index.put("/a/b", singletonMap("alice", asList("writer")));
+        index.put("/a/b/c", singletonMap("alice", asList("admin")));
+        index.put("/a-b", singletonMap("alice", asList("reader")));
+    }
+
+    @Test
+    public void testFindInPathOrder() {
+        assertEquals("Every node of the principal should be found in path order",
+                asList("/a", "/a-b", "/a/b", "/a/b/c"), asList(index.find("alice", null, 10).keySet().toArray()));
+        assertEquals("Roles should be held once each", asList("reader"), index.find("alice", null, 10).get("/a"));
+        assertTrue("Unknown principals should be found nowhere", index.find("carol", null, 10).isEmpty());
+    }
+
+    @Test
+    public void testFindPages() {
+        final String cursor = index.find("alice", null, 2).lastKey();
+
+        assertEquals("The next page should start after the cursor", asList("/a/b", "/a/b/c"),
+                asList(index.find("alice", cursor, 2).keySet().toArray()));
+    }
+
+    @Test
+    public void testPutReplaces() {
+        index.put("/a", singletonMap("alice", asList("admin")));
+
+        assertTrue("Replaced assignments should be forgotten", index.find("bob", null, 10).isEmpty());
+        assertFalse("Principals no longer assigned roles should be forgotten",
+                index.containsAny(singleton(principal("bob"))));
+        assertTrue("Principals still assigned roles should be named",
+                index.containsAny(singleton(principal("alice"))));
+    }
+
+    @Test
+    public void testRemoveSubtree() {
+        index.removeSubtree("/a/b");
+
+        assertEquals("Removed subtree should be forgotten", asList("/a", "/a-b"),
+                asList(index.find("alice", null, 10).keySet().toArray()));
+
+        index.removeSubtree("/a");
+        assertEquals("Principals assigned roles only in removed subtrees should be forgotten", 1, index.size());
+    }
+
+    private static Principal principal(final String name) {
+        final Principal principal = mock(Principal.class);
+        when(principal.getName()).thenReturn(name);
+        return principal;
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.jcr.NamespaceException;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+/**
+ * @author whikloj
+ */
+public class PrincipalRolesTest {
+
+    @Mock
+    private AccessRolesProvider accessRolesProvider;
+
+    @Mock
+    private Session session;
+
+    private PrincipalRoles principalRoles;
+
+    @Before
+    public void setUp() throws RepositoryException {
+        initMocks(this);
+        principalRoles = new PrincipalRoles();
+        setField(principalRoles, "accessRolesProvider", accessRolesProvider);
+        setField(principalRoles, "session", session);
+        when(session.hasPermission(anyString(), eq("read"))).thenReturn(true);
+    }
+
+    @Test
+    public void testPage() throws RepositoryException {
+        final SortedMap<String, List<String>> page = new TreeMap<>();
+        page.put("/a", asList("reader"));
+        page.put("/b", asList("writer"));
+        when(accessRolesProvider.findPrincipalRoles("alice", null, 2)).thenReturn(page);
+        when(session.hasPermission("/b/authz:rbacl", "read")).thenReturn(false);
+
+        final Response response = principalRoles.get("alice", null, 2);
+
+        assertEquals("Expecting OK response", 200, response.getStatus());
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> result = (Map<String, Object>) response.getEntity();
+        @SuppressWarnings("unchecked")
+        final List<Map<String, Object>> locations = (List<Map<String, Object>>) result.get("locations");
+        assertEquals("Only resources whose roles may be read should be listed", 1, locations.size());
+        assertEquals("Location should carry its path", "/a", locations.get(0).get("path"));
+        assertEquals("A full page should name the cursor of the next", "/b", result.get("next"));
+        verify(session).logout();
+    }
+
+    @Test
+    public void testLastPage() throws RepositoryException {
+        final SortedMap<String, List<String>> page = new TreeMap<>();
+        page.put("/a", asList("reader"));
+        when(accessRolesProvider.findPrincipalRoles("alice", "/0", 2)).thenReturn(page);
+
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> result = (Map<String, Object>) principalRoles.get("alice", "/0", 2).getEntity();
+
+        assertFalse("The last page should not name a cursor", result.containsKey("next"));
+    }
+
+    @Test
+    public void testCursorInFormOfPaths() throws RepositoryException {
+        final String uri = "http://fedora.info/definitions/v4/authorization#";
+        final SortedMap<String, List<String>> page = new TreeMap<>();
+        page.put("/{" + uri + "}a", asList("reader"));
+        when(session.getNamespaceURI("authz")).thenReturn(uri);
+        when(session.getNamespacePrefix(uri)).thenReturn("authz");
+        when(accessRolesProvider.findPrincipalRoles("alice", "/{" + uri + "}0", 1)).thenReturn(page);
+
+        @SuppressWarnings("unchecked")
+        final Map<String, Object> result = (Map<String, Object>) principalRoles.get("alice", "/authz:0", 1)
+                .getEntity();
+
+        assertEquals("The cursor should take the form of the listed paths", "/authz:a", result.get("next"));
+    }
+
+    @Test
+    public void testNotIndexed() throws RepositoryException {
+        try {
+            principalRoles.get("alice", null, 10);
+            fail("Query should not be answered without a principal index");
+        } catch (final WebApplicationException e) {
+            assertEquals("Not Implemented response expected", 501, e.getResponse().getStatus());
+        }
+        verify(session).logout();
+    }
+
+    @Test
+    public void testLimitTooLarge() throws RepositoryException {
+        try {
+            principalRoles.get("alice", null, PrincipalRoles.MAX_LIMIT + 1);
+            fail("Query with a limit above the maximum should be rejected");
+        } catch (final WebApplicationException e) {
+            assertEquals("Bad Request response expected", 400, e.getResponse().getStatus());
+        }
+    }
+
+    @Test
+    public void testCursorWithUnknownPrefix() throws RepositoryException {
+        when(session.getNamespaceURI("unknown")).thenThrow(new NamespaceException("unknown"));
+        try {
+            principalRoles.get("alice", "/unknown:a", 10);
+            fail("A cursor with an unknown namespace prefix should be rejected");
+        } catch (final WebApplicationException e) {
+            assertEquals("Bad Request response expected", 400, e.getResponse().getStatus());
+        }
+        verify(session).logout();
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author whikloj
+ */
+public class RoleAssignmentsTest {
+
+    private Map<String, List<String>> acl;
+
+    private RoleAssignments assignments;
+
+    @Before
+    public void setUp() {
+        acl = new HashMap<>();
+        acl.put("alice", asList("reader", "writer"));
+        acl.put("staff", asList("reader"));
+        acl.put("admins", asList("admin"));
+        assignments = RoleAssignments.of(acl);
+    }
+
+    @Test
+    public void testMapView() {
+        assertEquals("Assignments should read as the ACL they were built from", acl, assignments);
+        assertEquals("Roles should be found by principal name", asList("admin"), assignments.get("admins"));
+        assertNull("Unknown principals should have no roles", assignments.get("never-interned-principal"));
+        assertFalse("Unknown principals should not be contained", assignments.containsKey("bob"));
+        assertSame("Assignments should not be rebuilt", assignments, RoleAssignments.of(assignments));
+    }
+
+    @Test
+    public void testDistinctRoles() {
+        final Map<String, List<String>> duplicated = new HashMap<>();
+        duplicated.put("alice", asList("writer", "reader", "writer"));
+
+        assertEquals("Roles should be held once each, in the order first assigned", asList("writer", "reader"),
+                RoleAssignments.of(duplicated).get("alice"));
+    }
+
+    @Test
+    public void testEquality() {
+        final Map<String, List<String>> copy = new HashMap<>(acl);
+        final RoleAssignments same = RoleAssignments.of(copy);
+
+        assertEquals("Assignments built from equal ACLs should be equal", assignments, same);
+        assertEquals("Equal assignments should hash alike", assignments.hashCode(), same.hashCode());
+        assertEquals("Assignments should hash like the ACL they were built from", acl.hashCode(),
+                assignments.hashCode());
+        copy.put("staff", asList("writer"));
+        assertFalse("Assignments with different roles should not be equal", assignments.equals(
+                RoleAssignments.of(copy)));
+        assertSame("Empty ACLs should share one instance", RoleAssignments.EMPTY,
+                RoleAssignments.of(new HashMap<String, List<String>>()));
+    }
+
+    @Test
+    public void testResolveSinglePrincipal() {
+        final Set<String> roles = assignments.resolve(PrincipalIds.normalize(principals("alice", "bob")));
+
+        assertEquals("Roles of the matching principal should be resolved", new HashSet<>(asList("reader", "writer")),
+                roles);
+        assertSame("Roles of a single matching principal should be shared", roles,
+                assignments.resolve(PrincipalIds.normalize(principals("alice"))));
+    }
+
+    @Test
+    public void testResolveManyPrincipals() {
+        final Set<String> roles = assignments.resolve(PrincipalIds.normalize(principals("staff", "admins", "bob")));
+
+        assertEquals("Roles of every matching principal should be merged", new HashSet<>(asList("reader", "admin")),
+                roles);
+    }
+
+    @Test
+    public void testResolveNoPrincipal() {
+        assertTrue("No roles should be resolved without a matching principal",
+                assignments.resolve(PrincipalIds.normalize(principals("bob"))).isEmpty());
+    }
+
+    @Test
+    public void testNormalize() {
+        final Set<Principal> principals = principals("staff", "alice");
+        final int[] ids = PrincipalIds.normalize(principals);
+
+        assertEquals("Every principal should be normalized", 2, ids.length);
+        assertTrue("Ids should be sorted", ids[0] < ids[1]);
+        assertSame("Normalized ids should be computed once per principal set", ids,
+                PrincipalIds.normalize(principals));
+    }
+
+    @Test
+    public void testNormalizeDoesNotIntern() {
+        final Set<Principal> principals = principals("alice", "principal-assigned-later");
+        final int[] ids = PrincipalIds.normalize(principals);
+
+        assertEquals("Principals named by no ACL should be left out", 1, ids.length);
+        assertEquals("Principals of requests should not be interned", PrincipalIds.NONE,
+                PrincipalIds.find("principal-assigned-later"));
+
+        final Map<String, List<String>> later = new HashMap<>();
+        later.put("principal-assigned-later", asList("reader"));
+        assertEquals("Principals named by a later ACL should be normalized again", asList("reader"),
+                new ArrayList<>(RoleAssignments.of(later).resolve(PrincipalIds.normalize(principals))));
+    }
+
+    private static Set<Principal> principals(final String... names) {
+        final Set<Principal> principals = new HashSet<>();
+        for (final String name : names) {
+            final Principal principal = mock(Principal.class);
+            when(principal.getName()).thenReturn(name);
+            principals.add(principal);
+        }
+        return principals;
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * @author whikloj
+ */
+public class RoleSetTest {
+
+    @Test
+    public void testSetView() {
+        final RoleSet roles = RoleSet.of(asList("writer", "reader", "writer"));
+
+        assertEquals("Roles should be held once each", new HashSet<>(asList("reader", "writer")), roles);
+        assertTrue("Held roles should be contained", roles.contains("reader"));
+        assertFalse("Other roles should not be contained", roles.contains("never-assigned-role"));
+        assertSame("Empty sets should share one instance", RoleSet.EMPTY, RoleSet.of(new HashSet<String>()));
+    }
+
+    @Test
+    public void testMask() {
+        final int[] ids = RoleSet.ids("reader", "writer", "admin");
+
+        assertEquals("Recognized roles should set their bits", 0b101,
+                RoleSet.of(asList("admin", "other", "reader")).mask(ids));
+        assertEquals("Unrecognized roles should set no bits", 0, RoleSet.of(asList("other")).mask(ids));
+    }
+
+    @Test
+    public void testUnion() {
+        final RoleSet reader = RoleSet.of(asList("reader"));
+        final RoleSet readerWriter = RoleSet.of(asList("writer", "reader"));
+
+        assertEquals("Union should hold the roles of both sets", new HashSet<>(asList("reader", "writer", "admin")),
+                readerWriter.union(RoleSet.of(asList("admin"))));
+        assertSame("Union with a subset should be the larger set", readerWriter, reader.union(readerWriter));
+        assertSame("Union with a subset should be the larger set", readerWriter, readerWriter.union(reader));
+    }
+}
@@ -460,7 +460,7 @@ public abstract class AbstractRolesIT {
 
 
 
-    private static void setAuth(final AbstractHttpMessage method, final String username) {
+    protected static void setAuth(final AbstractHttpMessage method, final String username) {
         final String creds = username + ":password";
         // in test configuration we don't need real passwords
         final String encCreds =
@@ -0,0 +1,157 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.common.integration;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+import java.util.Map;
+import java.util.Set;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AccessRoles;
+import org.fcrepo.auth.roles.common.AclPathIndex;
+import org.fcrepo.auth.roles.common.EffectiveRolesCache;
+import org.fcrepo.auth.roles.common.PrincipalIndex;
+import org.fcrepo.auth.roles.common.RbAclAccessRolesProvider;
+import org.fcrepo.http.commons.session.SessionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.JcrRepository;
+import org.modeshape.jcr.ModeShapeEngine;
+import org.modeshape.jcr.RepositoryConfiguration;
+import org.modeshape.jcr.api.nodetype.NodeTypeManager;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+
+/**
+ * Saves access roles through one session of an in-memory repository and checks that a provider observing the
+ * repository through sessions of its own brings its cache and indexes up to date from the events alone.
+ *
+ * @author whikloj
+ */
+public class AclChangeListenerIT {
+
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private final PathFactory pathFactory = new ExecutionContext().getValueFactories().getPathFactory();
+
+    private ModeShapeEngine engine;
+
+    private JcrRepository repository;
+
+    private RbAclAccessRolesProvider provider;
+
+    private Session writer;
+
+    private Session reader;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new ModeShapeEngine();
+        engine.start();
+        final RepositoryConfiguration config = new RepositoryConfiguration("acl-change-listener-it");
+        repository = engine.deploy(config);
+        engine.startRepository(config.getName()).get();
+
+        writer = repository.login();
+        ((NodeTypeManager) writer.getWorkspace().getNodeTypeManager())
+                .registerNodeTypes(AccessRoles.class.getResource("/cnd/access-control.cnd"), true);
+        writer.getRootNode().addNode("a", "nt:unstructured").addNode("b", "nt:unstructured");
+        writer.save();
+        reader = repository.login();
+
+        final SessionFactory sessionFactory = mock(SessionFactory.class);
+        when(sessionFactory.getInternalSession()).thenAnswer(invocation -> repository.login());
+        provider = new RbAclAccessRolesProvider(new EffectiveRolesCache(100, 600), new AclPathIndex(), false,
+                new PrincipalIndex());
+        setField(provider, "sessionFactory", sessionFactory);
+        provider.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        provider.shutdown();
+        reader.logout();
+        writer.logout();
+        engine.shutdown().get();
+    }
+
+    @Test
+    public void testAclSavedThroughAnotherSession() throws Exception {
+        final Path path = pathFactory.create("/a/b");
+        assertTrue("No roles should be assigned yet", provider.findRolesForPath(path, reader).isEmpty());
+        final long version = provider.getRolesVersion();
+
+        // written by a provider of its own, as another repository client would
+        new RbAclAccessRolesProvider(null).postRoles(writer.getNode("/a"), assignment("alice", "reader"));
+        writer.save();
+
+        await("ACL index should pick up the saved ACL", () -> "/a".equals(provider.findAclPathForPath(path, reader)));
+        await("Principal index should pick up the saved ACL",
+                () -> provider.findPrincipalRoles("alice", null, 10).containsKey("/a"));
+        assertEquals("Cached roles should be replaced by the saved ACL", asList("reader"),
+                provider.findRolesForPath(path, reader).get("alice"));
+        assertTrue("Version of the roles should advance", provider.getRolesVersion() > version);
+    }
+
+    @Test
+    public void testAclRemovedThroughAnotherSession() throws Exception {
+        final Path path = pathFactory.create("/a/b");
+        new RbAclAccessRolesProvider(null).postRoles(writer.getNode("/a"), assignment("alice", "reader"));
+        writer.save();
+        await("ACL index should pick up the saved ACL", () -> "/a".equals(provider.findAclPathForPath(path, reader)));
+
+        writer.getNode("/a").remove();
+        writer.save();
+
+        await("Principal index should drop the removed ACL",
+                () -> provider.findPrincipalRoles("alice", null, 10).isEmpty());
+        await("ACL index should drop the removed ACL", () -> provider.findAclPathForPath(path, reader) == null);
+    }
+
+    private static Map<String, Set<String>> assignment(final String principal, final String role) {
+        return singletonMap(principal, singleton(role));
+    }
+
+    private static void await(final String message, final Condition condition)
+            throws RepositoryException, InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.holds()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(message);
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+
+        boolean holds() throws RepositoryException;
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.policy;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.common.AbstractRolesAuthorizationDelegate;
+import org.fcrepo.auth.roles.common.AuthorizationMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A roles-based authorization delegate whose roles are defined by a {@link RolePolicy} read from a file instead of
+ * being hard-coded, so that deployments may add roles or restrict them to parts of the repository without writing a
+ * delegate of their own. The file may be re-read while the repository runs; a policy that fails to parse is logged
+ * and the previous policy stays in force.
+ *
+ * @author whikloj
+ */
+public class PolicyRolesAuthorizationDelegate extends AbstractRolesAuthorizationDelegate {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PolicyRolesAuthorizationDelegate.class);
+
+    private static final int MAX_SCOPES = 10000;
+
+    private volatile Loaded loaded = new Loaded(RolePolicy.EMPTY, 0);
+
+    private File policyFile;
+
+    private long loadedModified;
+
+    private long reloadInterval = 0;
+
+    private ScheduledExecutorService reloader;
+
+    @Override
+    public boolean rolesHavePermission(final Session userSession, final String absPath,
+            final String[] actions, final Set<String> roles) {
+        return loaded.policy.permits(roles, absPath, actions);
+    }
+
+    /**
+     * Decisions are shared only between paths matched by the same path expressions of the current policy, and are
+     * never shared across policy reloads. The path expressions are matched once per path and policy, so that a
+     * check answered from the decision cache matches none of them.
+     */
+    @Override
+    protected String getDecisionScope(final String absPath) {
+        final Loaded current = loaded;
+        if (current.scopes == null) {
+            return current.scope;
+        }
+        final String cached = current.scopes.getIfPresent(absPath);
+        if (cached != null) {
+            return cached;
+        }
+        final String scope = current.scope + current.policy.getPathSignature(absPath);
+        current.scopes.put(absPath, scope);
+        return scope;
+    }
+
+    /**
+     * Load the policy and start watching the policy file for changes if a reload interval is set.
+     *
+     * @throws IOException if the policy file could not be read
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        if (policyFile == null) {
+            LOGGER.warn("No policy file configured, every request will be denied");
+            return;
+        }
+        load();
+        if (reloadInterval > 0) {
+            reloader = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "fcrepo-auth-roles-policy-reloader");
+                t.setDaemon(true);
+                return t;
+            });
+            reloader.scheduleWithFixedDelay(this::reloadIfModified, reloadInterval, reloadInterval, SECONDS);
+        }
+    }
+
+    /**
+     * Stop watching the policy file.
+     */
+    @PreDestroy
+    @Override
+    public synchronized void shutdown() {
+        super.shutdown();
+        if (reloader != null) {
+            reloader.shutdownNow();
+            reloader = null;
+        }
+    }
+
+    /**
+     * Re-read the policy file, keeping the current policy if the file cannot be read or parsed.
+     *
+     * @return true if a new policy was loaded
+     */
+    public boolean reload() {
+        try {
+            load();
+            return true;
+        } catch (final IOException | IllegalArgumentException e) {
+            LOGGER.error("Could not reload the role policy from {}, keeping the current policy", policyFile, e);
+            return false;
+        }
+    }
+
+    private void reloadIfModified() {
+        if (policyFile.lastModified() != loadedModified) {
+            reload();
+        }
+    }
+
+    private synchronized void load() throws IOException {
+        final long modified = policyFile.lastModified();
+        try (final Reader reader = Files.newBufferedReader(policyFile.toPath(), UTF_8)) {
+            setPolicy(RolePolicy.parse(reader));
+        }
+        loadedModified = modified;
+        LOGGER.info("Loaded role policy from {} for roles {}", policyFile, loaded.policy.getRoles());
+    }
+
+    /**
+     * Replace the policy in force.
+     *
+     * @param policy the new policy
+     */
+    public synchronized void setPolicy(final RolePolicy policy) {
+        AuthorizationMetrics.meterRoles(policy.getRoles());
+        this.loaded = new Loaded(policy, loaded.generation + 1);
+    }
+
+    /**
+     * @return the policy in force
+     */
+    public RolePolicy getPolicy() {
+        return loaded.policy;
+    }
+
+    /**
+     * @param policyFile path of the policy file
+     */
+    public void setPolicyFile(final String policyFile) {
+        this.policyFile = new File(policyFile);
+    }
+
+    /**
+     * @param seconds seconds between checks of the policy file for changes, or zero to never reload it (default)
+     */
+    public void setReloadInterval(final long seconds) {
+        this.reloadInterval = seconds;
+    }
+
+    /**
+     * A policy and the number of policies put in force before it, replaced together so that a decision scope never
+     * pairs one policy with the generation of another. The decision scopes of recently checked paths are kept with
+     * the policy they were matched against, and are discarded with it.
+     */
+    private static final class Loaded {
+
+        private final RolePolicy policy;
+
+        private final long generation;
+
+        private final String scope;
+
+        private final Cache<String, String> scopes;
+
+        private Loaded(final RolePolicy policy, final long generation) {
+            this.policy = policy;
+            this.generation = generation;
+            this.scope = generation + ":";
+            this.scopes = policy.hasPathExpressions() ? CacheBuilder.newBuilder().maximumSize(MAX_SCOPES).build()
+                    : null;
+        }
+    }
+}
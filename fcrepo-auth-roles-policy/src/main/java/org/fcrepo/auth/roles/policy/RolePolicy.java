@@ -0,0 +1,246 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.policy;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * An immutable, compiled set of role rules. Each rule grants or denies a role some actions on the paths matching a
+ * regular expression:
+ *
+ * <pre>
+ * # effect  role    actions           path
+ * allow     admin   *                 *
+ * allow     writer  read              .*&#47;(\{http://fedora\.info/definitions/v4/authorization#\}|authz:).*
+ * deny      writer  *                 .*&#47;(\{http://fedora\.info/definitions/v4/authorization#\}|authz:).*
+ * allow     writer  *                 *
+ * allow     reader  read              *
+ * </pre>
+ *
+ * Actions are a comma-separated list or {@code *} for every action, and a path of {@code *} matches every path. The
+ * rules of a role are evaluated in order and the first rule matching an action decides whether that role grants it;
+ * a request is permitted when every requested action is granted by at least one of the caller's roles.
+ *
+ * Role and action names are interned to small integer ids when the policy is compiled, so a check costs a map lookup
+ * per role and a bit test per rule, plus a regular expression match only for rules restricted to some paths.
+ *
+ * @author whikloj
+ */
+public final class RolePolicy {
+
+    /**
+     * A policy without rules, which permits nothing.
+     */
+    public static final RolePolicy EMPTY = new RolePolicy(new ArrayList<Rule>());
+
+    private static final long ALL_ACTIONS = -1L;
+
+    private static final String ANY = "*";
+
+    private final Map<String, Integer> actionIds;
+
+    private final Map<String, Rule[]> rulesByRole;
+
+    private final Pattern[] patterns;
+
+    private RolePolicy(final List<Rule> rules) {
+        final Map<String, Integer> actions = new HashMap<>();
+        final Map<String, List<Rule>> byRole = new LinkedHashMap<>();
+        final Map<String, Pattern> distinctPatterns = new LinkedHashMap<>();
+        for (final Rule rule : rules) {
+            for (final String action : rule.actionNames) {
+                if (!actions.containsKey(action)) {
+                    if (actions.size() == Long.SIZE - 1) {
+                        throw new IllegalArgumentException("A policy may name at most " + (Long.SIZE - 1) +
+                                " distinct actions");
+                    }
+                    actions.put(action, actions.size());
+                }
+                rule.actionMask |= 1L << actions.get(action);
+            }
+            if (rule.pattern != null) {
+                distinctPatterns.putIfAbsent(rule.pattern.pattern(), rule.pattern);
+            }
+            byRole.computeIfAbsent(rule.role, r -> new ArrayList<>()).add(rule);
+        }
+        final Map<String, Rule[]> compiled = new HashMap<>();
+        for (final Map.Entry<String, List<Rule>> entry : byRole.entrySet()) {
+            compiled.put(entry.getKey(), entry.getValue().toArray(new Rule[entry.getValue().size()]));
+        }
+        this.actionIds = actions.isEmpty() ? emptyMap() : unmodifiableMap(actions);
+        this.rulesByRole = unmodifiableMap(compiled);
+        this.patterns = distinctPatterns.values().toArray(new Pattern[distinctPatterns.size()]);
+    }
+
+    /**
+     * Determine whether some roles grant every requested action on a path.
+     *
+     * @param roles effective roles
+     * @param absPath path to the object
+     * @param actions requested actions
+     * @return true if permitted
+     */
+    public boolean permits(final Set<String> roles, final String absPath, final String[] actions) {
+        if (roles.isEmpty() || actions.length == 0) {
+            return false;
+        }
+        for (final String action : actions) {
+            final Integer id = actionIds.get(action);
+            final long bit = id == null ? 0 : 1L << id;
+            if (!granted(roles, absPath, bit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean granted(final Set<String> roles, final String absPath, final long bit) {
+        for (final String role : roles) {
+            final Rule[] rules = rulesByRole.get(role);
+            if (rules == null) {
+                continue;
+            }
+            for (final Rule rule : rules) {
+                if (rule.matches(bit, absPath)) {
+                    if (rule.allow) {
+                        return true;
+                    }
+                    break;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Describe which of the path expressions of this policy match a path. Two paths with the same signature receive
+     * the same decision for the same roles and actions.
+     *
+     * @param absPath path to the object
+     * @return the signature of the path
+     */
+    public String getPathSignature(final String absPath) {
+        final char[] signature = new char[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            signature[i] = patterns[i].matcher(absPath).matches() ? '1' : '0';
+        }
+        return new String(signature);
+    }
+
+    /**
+     * @return true if any rule is restricted to the paths matching an expression
+     */
+    public boolean hasPathExpressions() {
+        return patterns.length > 0;
+    }
+
+    /**
+     * @return the roles named by this policy
+     */
+    public Set<String> getRoles() {
+        return rulesByRole.keySet();
+    }
+
+    /**
+     * Parse and compile a policy.
+     *
+     * @param source the policy text
+     * @return the compiled policy
+     * @throws IOException if the policy could not be read
+     * @throws IllegalArgumentException if the policy is malformed
+     */
+    public static RolePolicy parse(final Reader source) throws IOException {
+        final List<Rule> rules = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(source);
+        int lineNumber = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            lineNumber++;
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            final String[] fields = trimmed.split("\\s+", 4);
+            if (fields.length != 4) {
+                throw new IllegalArgumentException("Line " + lineNumber +
+                        ": expected an effect, a role, actions and a path");
+            }
+            final boolean allow;
+            if (fields[0].equals("allow")) {
+                allow = true;
+            } else if (fields[0].equals("deny")) {
+                allow = false;
+            } else {
+                throw new IllegalArgumentException("Line " + lineNumber + ": unknown effect " + fields[0]);
+            }
+            final Pattern pattern;
+            try {
+                pattern = fields[3].equals(ANY) ? null : Pattern.compile(fields[3]);
+            } catch (final PatternSyntaxException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": invalid path expression", e);
+            }
+            rules.add(new Rule(allow, fields[1], fields[2], pattern));
+        }
+        return new RolePolicy(rules);
+    }
+
+    private static final class Rule {
+
+        private final boolean allow;
+
+        private final String role;
+
+        private final List<String> actionNames = new ArrayList<>();
+
+        private long actionMask;
+
+        private final Pattern pattern;
+
+        private Rule(final boolean allow, final String role, final String actions, final Pattern pattern) {
+            this.allow = allow;
+            this.role = role;
+            this.pattern = pattern;
+            if (actions.equals(ANY)) {
+                this.actionMask = ALL_ACTIONS;
+            } else {
+                for (final String action : actions.split(",")) {
+                    if (!action.trim().isEmpty()) {
+                        actionNames.add(action.trim());
+                    }
+                }
+            }
+        }
+
+        private boolean matches(final long bit, final String absPath) {
+            if (actionMask != ALL_ACTIONS && (actionMask & bit) == 0) {
+                return false;
+            }
+            return pattern == null || pattern.matcher(absPath).matches();
+        }
+    }
+}
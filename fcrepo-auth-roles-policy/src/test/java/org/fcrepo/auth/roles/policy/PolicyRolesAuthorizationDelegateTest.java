@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.policy;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.jcr.Session;
+
+import org.fcrepo.auth.roles.basic.BasicRolesAuthorizationDelegate;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+
+/**
+ * @author whikloj
+ */
+public class PolicyRolesAuthorizationDelegateTest {
+
+    private static final String[] READ = {"read"};
+
+    private static final String[] WRITE = {"write"};
+
+    private static final String CONTENT_PATH = "/a/b";
+
+    private static final String ACL_PATH = "/a/b/{http://fedora.info/definitions/v4/authorization#}rbacl";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private Session session;
+
+    private PolicyRolesAuthorizationDelegate delegate;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        delegate = new PolicyRolesAuthorizationDelegate();
+        delegate.setPolicyFile(Paths.get(getClass().getResource("/basic-policy.txt").toURI()).toString());
+        delegate.init();
+    }
+
+    private boolean permits(final String role, final String path, final String[] actions) {
+        return delegate.rolesHavePermission(session, path, actions, singleton(role));
+    }
+
+    @Test
+    public void testBasicPolicy() {
+        assertTrue("Admin should write ACLs", permits("admin", ACL_PATH, WRITE));
+        assertTrue("Writer should write content", permits("writer", CONTENT_PATH, WRITE));
+        assertTrue("Writer should read ACLs", permits("writer", ACL_PATH, READ));
+        assertFalse("Writer should not write ACLs", permits("writer", ACL_PATH, WRITE));
+        assertTrue("Reader should read content", permits("reader", CONTENT_PATH, READ));
+        assertFalse("Reader should not write content", permits("reader", CONTENT_PATH, WRITE));
+    }
+
+    @Test
+    public void testBasicPolicyMatchesBasicDelegate() {
+        final BasicRolesAuthorizationDelegate basic = new BasicRolesAuthorizationDelegate();
+        final String[] roleNames = {"reader", "writer", "admin", "something_else"};
+        final String[][] actionSets = {READ, WRITE, {"read", "write"}, {"remove"}};
+        final String[] paths = {CONTENT_PATH, ACL_PATH, "/a/b/authz:rbacl", "/a/b/authz:rbacl/authz:assignment",
+                "/a/b/{http://fedora.info/definitions/v4/authorization#}assignments", "/a/b/authz:assignments",
+                "/a/b/authz:revision"};
+
+        for (int subset = 0; subset < 1 << roleNames.length; subset++) {
+            final Set<String> roles = new HashSet<>();
+            for (int i = 0; i < roleNames.length; i++) {
+                if ((subset & 1 << i) != 0) {
+                    roles.add(roleNames[i]);
+                }
+            }
+            for (final String[] actions : actionSets) {
+                for (final String path : paths) {
+                    assertEquals("Decision for roles " + roles + ", actions " + asList(actions) + ", path " + path,
+                            basic.rolesHavePermission(session, path, actions, roles),
+                            delegate.rolesHavePermission(session, path, actions, roles));
+                }
+            }
+        }
+        assertFalse("Writer should not write qualified ACL paths", permits("writer", "/a/b/authz:assignments", WRITE));
+    }
+
+    @Test
+    public void testDecisionScope() {
+        assertEquals("Content paths should share a scope",
+                delegate.getDecisionScope(CONTENT_PATH), delegate.getDecisionScope("/c/d"));
+        assertNotEquals("ACL paths should not share the scope of content",
+                delegate.getDecisionScope(CONTENT_PATH), delegate.getDecisionScope(ACL_PATH));
+
+        final String before = delegate.getDecisionScope(CONTENT_PATH);
+        delegate.setPolicy(delegate.getPolicy());
+        assertNotEquals("A new policy should not share decisions with the old one",
+                before, delegate.getDecisionScope(CONTENT_PATH));
+    }
+
+    @Test
+    public void testDecisionScopeWithoutPathExpressions() throws IOException {
+        delegate.setPolicy(RolePolicy.parse(new StringReader("allow reader read *\n")));
+        assertEquals("Every path should share a scope when no rule is restricted to some paths",
+                delegate.getDecisionScope(CONTENT_PATH), delegate.getDecisionScope(ACL_PATH));
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        final File file = folder.newFile("policy.txt");
+        Files.write(file.toPath(), "allow reader read *\n".getBytes(UTF_8));
+        delegate.setPolicyFile(file.getPath());
+        assertTrue("Policy should reload", delegate.reload());
+        assertFalse("Reloaded policy should replace the old one", permits("admin", CONTENT_PATH, READ));
+
+        final RolePolicy loaded = delegate.getPolicy();
+        Files.write(file.toPath(), "grant reader read *\n".getBytes(UTF_8));
+        assertFalse("Malformed policy should not load", delegate.reload());
+        assertSame("Malformed policy should keep the current one", loaded, delegate.getPolicy());
+    }
+
+    @Test
+    public void testNoPolicyFile() throws IOException {
+        final PolicyRolesAuthorizationDelegate unconfigured = new PolicyRolesAuthorizationDelegate();
+        unconfigured.init();
+        final Set<String> roles = singleton("admin");
+        assertFalse("Unconfigured delegate should deny", unconfigured.rolesHavePermission(session, CONTENT_PATH,
+                READ, roles));
+    }
+
+    @Test
+    public void testEveryonePrincipal() {
+        assertEquals("Everyone principal should be named", PolicyRolesAuthorizationDelegate.EVERYONE_NAME,
+                delegate.getEveryonePrincipal().getName());
+    }
+}
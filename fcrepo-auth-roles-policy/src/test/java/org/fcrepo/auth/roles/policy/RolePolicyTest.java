@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015 DuraSpace, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.fcrepo.auth.roles.policy;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author whikloj
+ */
+public class RolePolicyTest {
+
+    private static final String[] READ = {"read"};
+
+    private static final String[] WRITE = {"write"};
+
+    private static final String[] READ_WRITE = {"read", "write"};
+
+    private static RolePolicy parse(final String text) throws IOException {
+        return RolePolicy.parse(new StringReader(text));
+    }
+
+    @Test
+    public void testFirstMatchingRuleWins() throws IOException {
+        final RolePolicy policy = parse("deny editor write /private/.*\nallow editor * *\n");
+        final Set<String> editor = singleton("editor");
+
+        assertTrue("Editor should write public paths", policy.permits(editor, "/public/a", WRITE));
+        assertFalse("Editor should not write private paths", policy.permits(editor, "/private/a", WRITE));
+        assertTrue("Editor should read private paths", policy.permits(editor, "/private/a", READ));
+    }
+
+    @Test
+    public void testEveryActionMustBeGranted() throws IOException {
+        final RolePolicy policy = parse("allow reader read *\nallow scribe write *\n");
+
+        assertFalse("Reader should not read and write", policy.permits(singleton("reader"), "/a", READ_WRITE));
+        final Set<String> both = new HashSet<>();
+        both.add("reader");
+        both.add("scribe");
+        assertTrue("Roles together should grant read and write", policy.permits(both, "/a", READ_WRITE));
+    }
+
+    @Test
+    public void testUnknownActionsAndRoles() throws IOException {
+        final RolePolicy policy = parse("# comment\n\nallow reader read *\nallow admin * *\n");
+
+        assertFalse("Unnamed action should not be granted", policy.permits(singleton("reader"), "/a",
+                new String[] {"remove"}));
+        assertTrue("Wildcard should grant unnamed actions", policy.permits(singleton("admin"), "/a",
+                new String[] {"remove"}));
+        assertFalse("Unknown role should grant nothing", policy.permits(singleton("guest"), "/a", READ));
+        assertFalse("No roles should grant nothing", policy.permits(emptySet(), "/a", READ));
+        assertEquals("Policy should list its roles", 2, policy.getRoles().size());
+    }
+
+    @Test
+    public void testPathSignature() throws IOException {
+        final RolePolicy policy = parse("allow a read /x/.*\nallow b read /x/.*\nallow c read .*/y\n");
+
+        assertEquals("Paths matching the same expressions should share a signature",
+                policy.getPathSignature("/x/1"), policy.getPathSignature("/x/2"));
+        assertNotEquals("Paths matching other expressions should not share a signature",
+                policy.getPathSignature("/x/1"), policy.getPathSignature("/x/y"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownEffect() throws IOException {
+        parse("permit reader read *\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingField() throws IOException {
+        parse("allow reader read\n");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidExpression() throws IOException {
+        parse("allow reader read /a/(\n");
+    }
+}